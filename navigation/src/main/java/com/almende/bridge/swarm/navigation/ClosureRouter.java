@@ -0,0 +1,256 @@
+/*
+ * Copyright: Almende B.V. (2014), Rotterdam, The Netherlands
+ * License: The Apache Software License, Version 2.0
+ */
+package com.almende.bridge.swarm.navigation;
+
+import java.util.PriorityQueue;
+
+import com.almende.util.jackson.JOM;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.graphhopper.routing.util.DefaultEdgeFilter;
+import com.graphhopper.routing.util.FlagEncoder;
+import com.graphhopper.storage.Graph;
+import com.graphhopper.storage.NodeAccess;
+import com.graphhopper.util.EdgeExplorer;
+import com.graphhopper.util.EdgeIterator;
+import com.graphhopper.util.EdgeIteratorState;
+import com.graphhopper.util.Helper;
+
+import gnu.trove.list.array.TIntArrayList;
+import gnu.trove.map.hash.TIntDoubleHashMap;
+import gnu.trove.map.hash.TIntIntHashMap;
+import gnu.trove.set.hash.TIntHashSet;
+
+/**
+ * A* over the base graph which takes road closures into account, so routes
+ * can avoid closed roads without re-preparing the CH graph. The heuristic is
+ * the best of the landmark lower bound (if landmarks are available) and the
+ * straight line distance at the maximum vehicle speed.
+ */
+public class ClosureRouter {
+	private final Graph			graph;
+	private final FlagEncoder	encoder;
+	private final RoadClosures	closures;
+	private final Landmarks		landmarks;
+	private final NodeAccess	nodeAccess;
+	private final double		maxSpeed;
+
+	/**
+	 * Instantiates a new closure router.
+	 *
+	 * @param graph
+	 *            the graph, shortcuts are skipped through its base graph
+	 * @param encoder
+	 *            the flag encoder of the vehicle
+	 * @param closures
+	 *            the road closures
+	 * @param landmarks
+	 *            the landmarks, or null if not (yet) available
+	 */
+	public ClosureRouter(final Graph graph, final FlagEncoder encoder,
+			final RoadClosures closures, final Landmarks landmarks) {
+		this.graph = graph.getBaseGraph();
+		this.encoder = encoder;
+		this.closures = closures;
+		this.landmarks = landmarks;
+		this.nodeAccess = this.graph.getNodeAccess();
+		this.maxSpeed = encoder.getMaxSpeed();
+	}
+
+	/**
+	 * Calculate the route between two graph nodes. Like the GraphHopper
+	 * routes, it starts and ends at the exact points asked for: these are
+	 * connected to the first and last node of the path by straight legs, at
+	 * the speed of the adjacent edge (as {@link DestinationTrees#walk}).
+	 *
+	 * @param from
+	 *            the start node
+	 * @param to
+	 *            the end node
+	 * @param startLat
+	 *            the lat of the exact start
+	 * @param startLon
+	 *            the lon of the exact start
+	 * @param endLat
+	 *            the lat of the exact end
+	 * @param endLon
+	 *            the lon of the exact end
+	 * @return the route, or null if the end node can't be reached
+	 */
+	public ObjectNode route(final int from, final int to,
+			final double startLat, final double startLon, final double endLat,
+			final double endLon) {
+		final TIntArrayList path = search(from, to);
+		if (path == null) {
+			return null;
+		}
+		final RouteBuilder builder = new RouteBuilder(startLat, startLon);
+		double speed = firstSpeed(path, from);
+		builder.addLeg(nodeAccess.getLatitude(from),
+				nodeAccess.getLongitude(from), speed);
+		int node = from;
+		for (int i = path.size() - 1; i >= 0; i--) {
+			final int edge = path.get(i);
+			final int next = graph.getEdgeProps(edge, node).getAdjNode();
+			final EdgeIteratorState state = graph.getEdgeProps(edge, next);
+			speed = encoder.getSpeed(state.getFlags());
+			builder.addEdge(state, state.getDistance() * 3600 / speed);
+			node = next;
+		}
+		builder.addLeg(endLat, endLon, speed);
+		return builder.build();
+	}
+
+	/**
+	 * Calculate the travel time and distance between two points, along the
+	 * same path as {@link #route}, without building its geometry.
+	 *
+	 * @param from
+	 *            the start node
+	 * @param to
+	 *            the end node
+	 * @param startLat
+	 *            the lat of the exact start
+	 * @param startLon
+	 *            the lon of the exact start
+	 * @param endLat
+	 *            the lat of the exact end
+	 * @param endLon
+	 *            the lon of the exact end
+	 * @return the "millis" and "distance", or null if the end node can't be
+	 *         reached
+	 */
+	public ObjectNode eta(final int from, final int to, final double startLat,
+			final double startLon, final double endLat, final double endLon) {
+		final TIntArrayList path = search(from, to);
+		if (path == null) {
+			return null;
+		}
+		double speed = firstSpeed(path, from);
+		double distance = Helper.DIST_EARTH.calcDist(startLat, startLon,
+				nodeAccess.getLatitude(from), nodeAccess.getLongitude(from));
+		double millis = speed > 0 ? distance * 3600 / speed : 0;
+		int node = from;
+		for (int i = path.size() - 1; i >= 0; i--) {
+			final int edge = path.get(i);
+			final int next = graph.getEdgeProps(edge, node).getAdjNode();
+			final EdgeIteratorState state = graph.getEdgeProps(edge, next);
+			speed = encoder.getSpeed(state.getFlags());
+			millis += state.getDistance() * 3600 / speed;
+			distance += state.getDistance();
+			node = next;
+		}
+		final double leg = Helper.DIST_EARTH.calcDist(
+				nodeAccess.getLatitude(to), nodeAccess.getLongitude(to),
+				endLat, endLon);
+		millis += speed > 0 ? leg * 3600 / speed : 0;
+		distance += leg;
+		final ObjectNode result = JOM.createObjectNode();
+		result.put("distance", distance);
+		result.put("millis", (long) millis);
+		return result;
+	}
+
+	/**
+	 * A* from start to end node.
+	 *
+	 * @return the edges of the path, from the end node back to the start
+	 *         node, or null if the end node can't be reached
+	 */
+	private TIntArrayList search(final int from, final int to) {
+		final EdgeExplorer explorer = graph
+				.createEdgeExplorer(new DefaultEdgeFilter(encoder, false, true));
+		final TIntDoubleHashMap weights = new TIntDoubleHashMap(1024, 0.5f,
+				-1, Double.POSITIVE_INFINITY);
+		final TIntIntHashMap parentEdges = new TIntIntHashMap(1024, 0.5f, -1,
+				-1);
+		final TIntHashSet settled = new TIntHashSet();
+		final PriorityQueue<Label> queue = new PriorityQueue<Label>();
+		weights.put(from, 0);
+		queue.add(new Label(from, 0, estimate(from, to)));
+
+		boolean found = false;
+		while (!queue.isEmpty()) {
+			final Label label = queue.poll();
+			if (settled.contains(label.node)
+					|| label.weight > weights.get(label.node)) {
+				continue;
+			}
+			if (label.node == to) {
+				found = true;
+				break;
+			}
+			settled.add(label.node);
+			final EdgeIterator iter = explorer.setBaseNode(label.node);
+			while (iter.next()) {
+				final double speed = encoder.getSpeed(iter.getFlags());
+				final int adj = iter.getAdjNode();
+				if (speed <= 0 || settled.contains(adj)) {
+					continue;
+				}
+				final double weight = label.weight + iter.getDistance() * 3600
+						/ speed + closures.getPenalty(iter.getEdge());
+				if (weight < weights.get(adj)) {
+					weights.put(adj, weight);
+					parentEdges.put(adj, iter.getEdge());
+					queue.add(new Label(adj, weight, weight + estimate(adj, to)));
+				}
+			}
+		}
+		if (!found) {
+			return null;
+		}
+
+		final TIntArrayList path = new TIntArrayList();
+		int node = to;
+		while (node != from) {
+			final int edge = parentEdges.get(node);
+			path.add(edge);
+			node = graph.getEdgeProps(edge, node).getBaseNode();
+		}
+		return path;
+	}
+
+	// The speed on the first edge of the path, 0 if it has none.
+	private double firstSpeed(final TIntArrayList path, final int from) {
+		if (path.isEmpty()) {
+			return 0;
+		}
+		final int edge = path.get(path.size() - 1);
+		final int next = graph.getEdgeProps(edge, from).getAdjNode();
+		return encoder.getSpeed(graph.getEdgeProps(edge, next).getFlags());
+	}
+
+	private double estimate(final int node, final int target) {
+		double result = 0;
+		if (maxSpeed > 0) {
+			result = Helper.DIST_EARTH.calcDist(nodeAccess.getLatitude(node),
+					nodeAccess.getLongitude(node),
+					nodeAccess.getLatitude(target),
+					nodeAccess.getLongitude(target))
+					* 3600 / maxSpeed;
+		}
+		if (landmarks != null) {
+			result = Math.max(result, landmarks.getLowerBound(node, target));
+		}
+		return result;
+	}
+
+	private static class Label implements Comparable<Label> {
+		final int		node;
+		final double	weight;
+		final double	estimate;
+
+		Label(final int node, final double weight, final double estimate) {
+			this.node = node;
+			this.weight = weight;
+			this.estimate = estimate;
+		}
+
+		@Override
+		public int compareTo(final Label o) {
+			return Double.compare(estimate, o.estimate);
+		}
+	}
+}
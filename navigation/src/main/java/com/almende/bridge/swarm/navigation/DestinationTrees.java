@@ -0,0 +1,214 @@
+/*
+ * Copyright: Almende B.V. (2014), Rotterdam, The Netherlands
+ * License: The Apache Software License, Version 2.0
+ */
+package com.almende.bridge.swarm.navigation;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.almende.util.jackson.JOM;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.graphhopper.routing.util.FlagEncoder;
+import com.graphhopper.storage.Graph;
+import com.graphhopper.storage.NodeAccess;
+import com.graphhopper.util.EdgeIteratorState;
+
+import gnu.trove.iterator.TIntIntIterator;
+import gnu.trove.map.hash.TIntIntHashMap;
+
+/**
+ * Cache of reverse shortest path trees for hot destinations, such as the
+ * rally points and hospitals most resources converge on. Once a destination
+ * has been asked for often enough, a reverse tree is kept for it; any origin
+ * then gets its route by growing the tree until the origin is settled (often
+ * it already is) and walking the parents to the destination. Trees are
+ * evicted in LRU order, and all of them are dropped when the road closures
+ * change. The demand counts of destinations that aren't hot (yet) decay:
+ * when too many destinations are counted, all counts are halved and the
+ * ones that drop to zero are forgotten. Each tree stops growing at a maximum
+ * number of nodes; origins beyond that are routed without the tree.
+ */
+public class DestinationTrees {
+	private final Graph								graph;
+	private final FlagEncoder						encoder;
+	private final RoadClosures						closures;
+	private final int								hotness;
+	private final int								maxNodes;
+	private final Map<Integer, ShortestPathTree>	trees;
+	private final int								maxDemand;
+	private final TIntIntHashMap					demand		= new TIntIntHashMap();
+
+	private final AtomicLong						hits		= new AtomicLong();
+	private final AtomicLong						builds		= new AtomicLong();
+	private final AtomicLong						evictions	= new AtomicLong();
+
+	/**
+	 * Instantiates a new destination tree cache.
+	 *
+	 * @param graph
+	 *            the graph
+	 * @param encoder
+	 *            the flag encoder of the vehicle
+	 * @param closures
+	 *            the road closures
+	 * @param maxSize
+	 *            the maximum number of trees
+	 * @param hotness
+	 *            the number of requests for a destination before a tree is
+	 *            built for it
+	 * @param maxNodes
+	 *            the maximum number of nodes per tree
+	 */
+	public DestinationTrees(final Graph graph, final FlagEncoder encoder,
+			final RoadClosures closures, final int maxSize, final int hotness,
+			final int maxNodes) {
+		this.graph = graph.getBaseGraph();
+		this.encoder = encoder;
+		this.closures = closures;
+		this.hotness = hotness;
+		this.maxNodes = maxNodes;
+		this.maxDemand = Math.max(1024, maxSize * 64);
+		this.trees = new LinkedHashMap<Integer, ShortestPathTree>(16, 0.75f,
+				true) {
+			private static final long	serialVersionUID	= 1L;
+
+			@Override
+			protected boolean removeEldestEntry(
+					final Map.Entry<Integer, ShortestPathTree> eldest) {
+				if (size() > maxSize) {
+					evictions.incrementAndGet();
+					return true;
+				}
+				return false;
+			}
+		};
+	}
+
+	/**
+	 * Gets the tree for a destination, counting the request. The tree is
+	 * created when the destination becomes hot.
+	 *
+	 * @param endNode
+	 *            the destination node
+	 * @return the tree, or null if the destination isn't hot (yet)
+	 */
+	public synchronized ShortestPathTree get(final int endNode) {
+		ShortestPathTree tree = trees.get(endNode);
+		if (tree != null) {
+			hits.incrementAndGet();
+			return tree;
+		}
+		if (demand.adjustOrPutValue(endNode, 1, 1) < hotness) {
+			if (demand.size() > maxDemand) {
+				decay();
+			}
+			return null;
+		}
+		demand.remove(endNode);
+		tree = new ShortestPathTree(graph, encoder, endNode, true, closures,
+				maxNodes);
+		trees.put(endNode, tree);
+		builds.incrementAndGet();
+		return tree;
+	}
+
+	/**
+	 * Gets the tree for a destination if there is one, without counting the
+	 * request or creating a tree.
+	 *
+	 * @param endNode
+	 *            the destination node
+	 * @return the tree, or null
+	 */
+	public synchronized ShortestPathTree peek(final int endNode) {
+		return trees.get(endNode);
+	}
+
+	/**
+	 * Gets the route from an origin to the root of the tree, by walking the
+	 * tree. Like the GraphHopper routes, it starts and ends at the exact
+	 * points asked for: these are connected to the first and last node of the
+	 * path by straight legs, at the speed of the adjacent edge.
+	 *
+	 * @param tree
+	 *            the tree, grown until the origin is settled
+	 * @param startNode
+	 *            the origin node
+	 * @param startLat
+	 *            the lat of the exact start
+	 * @param startLon
+	 *            the lon of the exact start
+	 * @param endLat
+	 *            the lat of the exact end
+	 * @param endLon
+	 *            the lon of the exact end
+	 * @return the route, or null if the origin isn't settled
+	 */
+	public ObjectNode walk(final ShortestPathTree tree, final int startNode,
+			final double startLat, final double startLon, final double endLat,
+			final double endLon) {
+		if (!tree.isSettled(startNode)) {
+			return null;
+		}
+		final NodeAccess nodeAccess = graph.getNodeAccess();
+		final RouteBuilder builder = new RouteBuilder(startLat, startLon);
+		int node = startNode;
+		int parent = tree.getParent(node);
+		double speed = parent >= 0 ? encoder.getSpeed(graph.getEdgeProps(
+				tree.getParentEdge(node), parent).getFlags()) : 0;
+		builder.addLeg(nodeAccess.getLatitude(startNode),
+				nodeAccess.getLongitude(startNode), speed);
+		while (parent >= 0) {
+			final EdgeIteratorState edge = graph.getEdgeProps(
+					tree.getParentEdge(node), parent);
+			speed = encoder.getSpeed(edge.getFlags());
+			builder.addEdge(edge, edge.getDistance() * 3600 / speed);
+			node = parent;
+			parent = tree.getParent(node);
+		}
+		builder.addLeg(endLat, endLon, speed);
+		return builder.build();
+	}
+
+	private void decay() {
+		final TIntIntIterator iter = demand.iterator();
+		while (iter.hasNext()) {
+			iter.advance();
+			final int count = iter.value() / 2;
+			if (count > 0) {
+				iter.setValue(count);
+			} else {
+				iter.remove();
+			}
+		}
+	}
+
+	/**
+	 * Drop all trees and demand counts.
+	 */
+	public synchronized void clear() {
+		trees.clear();
+		demand.clear();
+	}
+
+	/**
+	 * Gets the cache statistics.
+	 *
+	 * @return the stats
+	 */
+	public synchronized ObjectNode getStats() {
+		final ObjectNode result = JOM.createObjectNode();
+		result.put("size", trees.size());
+		result.put("hits", hits.get());
+		result.put("builds", builds.get());
+		result.put("evictions", evictions.get());
+		long nodes = 0;
+		for (ShortestPathTree tree : trees.values()) {
+			nodes += tree.size();
+		}
+		result.put("nodes", nodes);
+		return result;
+	}
+}
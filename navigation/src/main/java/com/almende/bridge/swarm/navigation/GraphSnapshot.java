@@ -0,0 +1,215 @@
+/*
+ * Copyright: Almende B.V. (2014), Rotterdam, The Netherlands
+ * License: The Apache Software License, Version 2.0
+ */
+package com.almende.bridge.swarm.navigation;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.graphhopper.util.CmdArgs;
+import com.graphhopper.util.Constants;
+import com.graphhopper.util.Helper;
+
+/**
+ * Versioned graph snapshots. When enabled (graph.snapshot=true), the graph
+ * location is derived from a key over the OSM file contents, the GraphHopper
+ * storage versions and the import/CH configuration. A complete snapshot for
+ * that key is loaded memory mapped, without import or CH preparation; when
+ * the key changes, the graph is imported into a new snapshot directory.
+ */
+public final class GraphSnapshot {
+	private static final Logger		LOG			= Logger.getLogger(GraphSnapshot.class
+														.getName());
+	private static final String		MARKER		= "snapshot.properties";
+	private static final int		VERSION		= 1;
+	private static final String[]	CONFIGKEYS	= { "graph.flagEncoders",
+			"graph.bytesForFlags", "graph.elevation.provider",
+			"graph.doSort", "prepare.doPrepare", "prepare.chShortcuts",
+			"prepare.chWeighting", "prepare.minNetworkSize",
+			"prepare.minOneWayNetworkSize", "osmreader.wayPointMaxDistance",
+			"osmreader.instructions"			};
+
+	private GraphSnapshot() {}
+
+	/**
+	 * Point the arguments to the snapshot for the current OSM file and
+	 * configuration. The config file (config=...) is merged first, so the
+	 * snapshot key covers the effective configuration, not only the command
+	 * line. Without graph.snapshot=true the merged arguments are returned
+	 * untouched.
+	 *
+	 * @param cmdArgs
+	 *            the GraphHopper arguments
+	 * @return the arguments, merged with the config file
+	 */
+	public static CmdArgs prepare(final CmdArgs cmdArgs) {
+		final CmdArgs args = CmdArgs.readFromConfigAndMerge(cmdArgs, "config",
+				"graphhopper.config");
+		if (!args.getBool("graph.snapshot", false)) {
+			return args;
+		}
+		final File osmFile = new File(args.get("osmreader.osm", ""));
+		final String key;
+		try {
+			key = createKey(osmFile, args);
+		} catch (IOException e) {
+			LOG.log(Level.WARNING, "Couldn't create snapshot key for "
+					+ osmFile + ", importing as usual.", e);
+			return args;
+		}
+		final File dir = new File(args.get("graph.snapshot.dir", "snapshots"),
+				Helper.pruneFileEnd(osmFile.getName()).replace(".osm", "")
+						+ "-" + key.substring(0, 16));
+		args.put("graph.location", dir.getPath());
+		args.put("graph.snapshot.key", key);
+		if (isComplete(dir, key)) {
+			LOG.info("Loading graph snapshot " + dir);
+			args.put("graph.dataaccess", "MMAP");
+		} else {
+			LOG.info("No graph snapshot for key " + key + ", importing into "
+					+ dir);
+			if (dir.exists()) {
+				Helper.removeDir(dir);
+			}
+			args.put("graph.dataaccess", "RAM_STORE");
+		}
+		return args;
+	}
+
+	/**
+	 * Mark the snapshot as complete, after the graph has been imported and
+	 * prepared into its location.
+	 *
+	 * @param args
+	 *            the arguments, as returned by prepare
+	 */
+	public static void commit(final CmdArgs args) {
+		final String key = args.get("graph.snapshot.key", "");
+		if (key.isEmpty()) {
+			return;
+		}
+		final File dir = new File(args.get("graph.location", ""));
+		if (isComplete(dir, key)) {
+			return;
+		}
+		final Map<String, String> props = new HashMap<String, String>();
+		props.put("key", key);
+		props.put("osm", args.get("osmreader.osm", ""));
+		props.put("created", String.valueOf(System.currentTimeMillis()));
+		FileWriter writer = null;
+		try {
+			writer = new FileWriter(new File(dir, MARKER));
+			Helper.saveProperties(props, writer);
+			LOG.info("Graph snapshot written to " + dir);
+		} catch (IOException e) {
+			LOG.log(Level.WARNING, "Couldn't mark graph snapshot " + dir, e);
+		} finally {
+			Helper.close(writer);
+		}
+	}
+
+	private static boolean isComplete(final File dir, final String key) {
+		final File marker = new File(dir, MARKER);
+		if (!marker.exists()) {
+			return false;
+		}
+		final Map<String, String> props = new HashMap<String, String>();
+		FileReader reader = null;
+		try {
+			reader = new FileReader(marker);
+			Helper.loadProperties(props, reader);
+		} catch (IOException e) {
+			return false;
+		} finally {
+			Helper.close(reader);
+		}
+		return key.equals(props.get("key"));
+	}
+
+	private static String createKey(final File osmFile, final CmdArgs args)
+			throws IOException {
+		final StringBuilder sb = new StringBuilder();
+		sb.append(VERSION).append('|').append(Constants.VERSION).append('|')
+				.append(Constants.getVersions()).append('|')
+				.append(hashFile(osmFile));
+		for (String configKey : CONFIGKEYS) {
+			sb.append('|').append(configKey).append('=')
+					.append(args.get(configKey, ""));
+		}
+		return toHex(digest().digest(sb.toString().getBytes(Helper.UTF_CS)));
+	}
+
+	/**
+	 * Hash the OSM file contents. Hashing a country extract takes a while, so
+	 * the result is kept next to the file and reused as long as size and
+	 * modification time are unchanged.
+	 */
+	private static String hashFile(final File file) throws IOException {
+		final File cache = new File(file.getPath() + ".sha1");
+		final String stamp = file.length() + ":" + file.lastModified();
+		final Map<String, String> props = new HashMap<String, String>();
+		if (cache.exists()) {
+			FileReader reader = null;
+			try {
+				reader = new FileReader(cache);
+				Helper.loadProperties(props, reader);
+			} finally {
+				Helper.close(reader);
+			}
+			if (stamp.equals(props.get("stamp")) && props.containsKey("sha1")) {
+				return props.get("sha1");
+			}
+		}
+		final MessageDigest md = digest();
+		final InputStream in = new FileInputStream(file);
+		try {
+			final byte[] buffer = new byte[1 << 20];
+			int read;
+			while ((read = in.read(buffer)) > 0) {
+				md.update(buffer, 0, read);
+			}
+		} finally {
+			in.close();
+		}
+		final String hash = toHex(md.digest());
+		props.put("stamp", stamp);
+		props.put("sha1", hash);
+		FileWriter writer = null;
+		try {
+			writer = new FileWriter(cache);
+			Helper.saveProperties(props, writer);
+		} catch (IOException e) {
+			LOG.log(Level.FINE, "Couldn't store OSM file hash", e);
+		} finally {
+			Helper.close(writer);
+		}
+		return hash;
+	}
+
+	private static MessageDigest digest() {
+		try {
+			return MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static String toHex(final byte[] bytes) {
+		final StringBuilder sb = new StringBuilder(bytes.length * 2);
+		for (byte b : bytes) {
+			sb.append(String.format("%02x", b & 0xff));
+		}
+		return sb.toString();
+	}
+}
@@ -0,0 +1,173 @@
+/*
+ * Copyright: Almende B.V. (2014), Rotterdam, The Netherlands
+ * License: The Apache Software License, Version 2.0
+ */
+package com.almende.bridge.swarm.navigation;
+
+import java.util.Arrays;
+import java.util.PriorityQueue;
+import java.util.logging.Logger;
+
+import com.graphhopper.routing.util.DefaultEdgeFilter;
+import com.graphhopper.routing.util.FlagEncoder;
+import com.graphhopper.storage.Graph;
+import com.graphhopper.util.EdgeExplorer;
+import com.graphhopper.util.EdgeIterator;
+
+/**
+ * Landmark lower bounds for A* (ALT). For a few landmarks, spread over the
+ * graph by farthest selection, the travel time from every node to the
+ * landmark is stored in seconds. By the triangle inequality d(v,t) &gt;=
+ * d(v,L) - d(t,L), which gives an admissible heuristic towards any target.
+ * The travel times are computed without road closures; closures only
+ * increase travel times, so the bounds stay valid and don't need to be
+ * recomputed when closures change.
+ */
+public class Landmarks {
+	private static final Logger	LOG		= Logger.getLogger(Landmarks.class
+												.getName());
+	private static final char	UNKNOWN	= Character.MAX_VALUE;
+
+	private final int[]			landmarks;
+	private final char[][]		toLandmark;
+
+	/**
+	 * Select the landmarks and compute their travel times. This runs a full
+	 * Dijkstra over the base graph per landmark, so it takes a while on large
+	 * graphs.
+	 *
+	 * @param graph
+	 *            the graph
+	 * @param encoder
+	 *            the flag encoder of the vehicle
+	 * @param count
+	 *            the number of landmarks
+	 */
+	public Landmarks(final Graph graph, final FlagEncoder encoder,
+			final int count) {
+		final long start = System.currentTimeMillis();
+		final Graph base = graph.getBaseGraph();
+		final EdgeExplorer explorer = base
+				.createEdgeExplorer(new DefaultEdgeFilter(encoder, true, false));
+		final int nodes = base.getNodes();
+		landmarks = new int[count];
+		toLandmark = new char[count][];
+
+		// Start from the node farthest away from an arbitrary node, each next
+		// landmark is the node farthest away from all landmarks so far.
+		int next = farthest(search(explorer, encoder, 0, nodes), null);
+		for (int i = 0; i < count; i++) {
+			landmarks[i] = next;
+			final int[] millis = search(explorer, encoder, next, nodes);
+			final char[] seconds = new char[nodes];
+			for (int node = 0; node < nodes; node++) {
+				final long value = millis[node] == Integer.MAX_VALUE ? UNKNOWN
+						: millis[node] / 1000;
+				seconds[node] = value >= UNKNOWN ? UNKNOWN : (char) value;
+			}
+			toLandmark[i] = seconds;
+			next = farthest(null, Arrays.copyOf(toLandmark, i + 1));
+		}
+		LOG.info("Prepared " + count + " landmarks for " + nodes
+				+ " nodes in " + (System.currentTimeMillis() - start) + "ms");
+	}
+
+	/**
+	 * Gets the landmark nodes.
+	 *
+	 * @return the landmarks
+	 */
+	public int[] getLandmarks() {
+		return landmarks.clone();
+	}
+
+	/**
+	 * Gets a lower bound of the travel time from node to target.
+	 *
+	 * @param node
+	 *            the node
+	 * @param target
+	 *            the target
+	 * @return the lower bound in millis
+	 */
+	public double getLowerBound(final int node, final int target) {
+		int best = 0;
+		for (char[] seconds : toLandmark) {
+			final char fromNode = seconds[node];
+			final char fromTarget = seconds[target];
+			if (fromNode == UNKNOWN || fromTarget == UNKNOWN) {
+				continue;
+			}
+			// Both are rounded down to whole seconds: subtract one more second
+			// to stay below the real difference.
+			final int bound = fromNode - fromTarget - 1;
+			if (bound > best) {
+				best = bound;
+			}
+		}
+		return best * 1000.0;
+	}
+
+	/**
+	 * Dijkstra over the incoming edges, giving the travel times in millis from
+	 * all nodes to the root, Integer.MAX_VALUE for nodes that can't reach it.
+	 */
+	private static int[] search(final EdgeExplorer explorer,
+			final FlagEncoder encoder, final int root, final int nodes) {
+		final int[] millis = new int[nodes];
+		Arrays.fill(millis, Integer.MAX_VALUE);
+		millis[root] = 0;
+		final PriorityQueue<Long> queue = new PriorityQueue<Long>();
+		queue.add(Long.valueOf(root));
+		while (!queue.isEmpty()) {
+			final long label = queue.poll();
+			final int node = (int) (label & 0xFFFFFFFFL);
+			final int weight = (int) (label >>> 32);
+			if (weight > millis[node]) {
+				continue;
+			}
+			final EdgeIterator iter = explorer.setBaseNode(node);
+			while (iter.next()) {
+				final double speed = encoder.getReverseSpeed(iter.getFlags());
+				if (speed <= 0) {
+					continue;
+				}
+				final long adjWeight = weight
+						+ (long) (iter.getDistance() * 3600 / speed);
+				final int adj = iter.getAdjNode();
+				if (adjWeight < millis[adj]) {
+					millis[adj] = (int) adjWeight;
+					queue.add((adjWeight << 32) | adj);
+				}
+			}
+		}
+		return millis;
+	}
+
+	/**
+	 * Gets the reachable node with the largest travel time, either in the
+	 * given millis, or as smallest travel time to any of the given landmarks.
+	 */
+	private static int farthest(final int[] millis, final char[][] seconds) {
+		int best = 0;
+		long bestValue = -1;
+		final int nodes = millis != null ? millis.length : seconds[0].length;
+		for (int node = 0; node < nodes; node++) {
+			long value;
+			if (millis != null) {
+				value = millis[node] == Integer.MAX_VALUE ? -1 : millis[node];
+			} else {
+				value = Long.MAX_VALUE;
+				for (char[] landmark : seconds) {
+					value = Math.min(value, landmark[node] == UNKNOWN ? -1
+							: landmark[node]);
+				}
+			}
+			if (value > bestValue) {
+				bestValue = value;
+				best = node;
+			}
+		}
+		return best;
+	}
+}
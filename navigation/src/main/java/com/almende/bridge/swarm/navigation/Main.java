@@ -48,7 +48,10 @@ public class Main {
 		// Load navigation data (first through normal graphhopper init, later by
 		// merging with Eve configuration.
 
-		final CmdArgs cargs = CmdArgs.read(args);
+		// With graph.snapshot=true, a prebuilt graph+CH snapshot matching the
+		// OSM file and configuration (merged with the config file) is loaded
+		// instead of importing.
+		final CmdArgs cargs = GraphSnapshot.prepare(CmdArgs.read(args));
 		final Config configfile = YamlReader.load(new FileInputStream(new File(
 				cargs.get("eveyaml", "eve.yaml"))));
 		Boot.boot(configfile);
@@ -62,6 +65,7 @@ public class Main {
 				JOM.createObjectNode());
 
 		hopper = module.getGraphHopper();
+		GraphSnapshot.commit(cargs);
 	}
 
 	/**
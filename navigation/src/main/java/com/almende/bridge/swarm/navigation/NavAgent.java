@@ -5,26 +5,20 @@
 
 package com.almende.bridge.swarm.navigation;
 
-import java.util.List;
-
 import com.almende.eve.agent.Agent;
 import com.almende.eve.protocol.jsonrpc.annotation.Access;
 import com.almende.eve.protocol.jsonrpc.annotation.AccessType;
 import com.almende.eve.protocol.jsonrpc.annotation.Name;
-import com.almende.util.jackson.JOM;
+import com.almende.eve.protocol.jsonrpc.annotation.Optional;
 import com.fasterxml.jackson.databind.node.ArrayNode;
 import com.fasterxml.jackson.databind.node.ObjectNode;
-import com.graphhopper.GHRequest;
-import com.graphhopper.GHResponse;
-import com.graphhopper.util.GPXEntry;
-import com.graphhopper.util.InstructionList;
-import com.graphhopper.util.shapes.GHPoint;
 
 /**
  * The Class NavAgent.
  */
 public class NavAgent extends Agent {
-	
+	private RoutingEngine	engine	= null;
+
 	/**
 	 * Instantiates a new nav agent.
 	 *
@@ -41,9 +35,27 @@ public class NavAgent extends Agent {
 	public NavAgent() {
 		super();
 	}
-	
+
+	/**
+	 * Gets the routing engine, created on first use as the graph is loaded
+	 * after the agents are booted.
+	 *
+	 * @return the engine
+	 */
+	private synchronized RoutingEngine getEngine() {
+		if (engine == null) {
+			if (Main.getHopper() == null) {
+				throw new IllegalStateException(
+						"Navigation data not loaded yet.");
+			}
+			engine = new RoutingEngine(Main.getHopper(), getConfig());
+		}
+		return engine;
+	}
+
 	/**
-	 * Gets the route.
+	 * Gets the route. Start and end are snapped to the nearest graph nodes,
+	 * routes between the same pair of nodes are served from the route cache.
 	 *
 	 * @param startLat
 	 *            the start lat
@@ -53,38 +65,172 @@ public class NavAgent extends Agent {
 	 *            the end lat
 	 * @param endLon
 	 *            the end lon
+	 * @param encoding
+	 *            optional route encoding: "polyline" returns the route as
+	 *            compact "encodedRoute" string (see {@link RouteCodec})
+	 *            instead of the "route" array.
 	 * @return the route
 	 */
 	@Access(AccessType.PUBLIC)
 	public ObjectNode getRoute(@Name("startLat") Double startLat, @Name("startLon") Double startLon,
+			@Name("endLat") Double endLat, @Name("endLon") Double endLon,
+			@Optional @Name("encoding") String encoding) {
+		return getEngine().getRoute(startLat, startLon, endLat, endLon,
+				encoding);
+	}
+
+	/**
+	 * Gets the travel time and distance of the route, without building the
+	 * route itself.
+	 *
+	 * @param startLat
+	 *            the start lat
+	 * @param startLon
+	 *            the start lon
+	 * @param endLat
+	 *            the end lat
+	 * @param endLon
+	 *            the end lon
+	 * @return the "millis" and "distance" of the route
+	 */
+	@Access(AccessType.PUBLIC)
+	public ObjectNode getEta(@Name("startLat") Double startLat,
+			@Name("startLon") Double startLon, @Name("endLat") Double endLat,
+			@Name("endLon") Double endLon) {
+		return getEngine().getEta(startLat, startLon, endLat, endLon);
+	}
+
+	/**
+	 * Gets the travel times from many origins to a single destination, with a
+	 * single search.
+	 *
+	 * @param origins
+	 *            the origins, as array of {"lat":..,"lon":..} objects
+	 * @param endLat
+	 *            the end lat
+	 * @param endLon
+	 *            the end lon
+	 * @return per origin, in the same order, an object with "millis" and
+	 *         "distance"; both are -1 if the origin can't reach the
+	 *         destination.
+	 */
+	@Access(AccessType.PUBLIC)
+	public ArrayNode getRouteMatrix(@Name("origins") ArrayNode origins,
 			@Name("endLat") Double endLat, @Name("endLon") Double endLon) {
-		ObjectNode result = JOM.createObjectNode();
+		return getEngine().getRouteMatrix(origins, endLat, endLon);
+	}
 
-		GHRequest req = new GHRequest(new GHPoint(startLat, startLon), new GHPoint(
-				endLat, endLon));
+	/**
+	 * Gets the route cache statistics.
+	 *
+	 * @return the route cache stats
+	 */
+	@Access(AccessType.PUBLIC)
+	public ObjectNode getRouteCacheStats() {
+		return getEngine().getRouteCacheStats();
+	}
 
-		GHResponse res = Main.getHopper().route(req);
-		if (res.hasErrors()){
-			throw new IllegalStateException("Route has error(s):"+res.getErrors());
-		}
-		InstructionList list = res.getInstructions();
-		final List<GPXEntry> gpx = list.createGPXList();
-		final ArrayNode parts = JOM.createArrayNode();
-		for (GPXEntry entry : gpx){
-			final ArrayNode item = JOM.createArrayNode();
-			item.add(entry.getLon());
-			item.add(entry.getLat());
-			item.add(Double.isNaN(entry.getEle())?0:entry.getEle());
-			item.add(entry.getMillis());
-			parts.add(item);
-		}
-		result.set("route",parts);
-		result.put("distance", res.getDistance());
-		result.put("millis", res.getMillis());
+	/**
+	 * Gets the routing worker pool statistics: queue depth, rejections and
+	 * latencies.
+	 *
+	 * @return the routing stats
+	 */
+	@Access(AccessType.PUBLIC)
+	public ObjectNode getRoutingStats() {
+		return getEngine().getRoutingStats();
+	}
+
+	/**
+	 * Clear the route cache.
+	 */
+	@Access(AccessType.PUBLIC)
+	public void clearRouteCache() {
+		getEngine().clearRouteCache();
+	}
 
-		return result;
+	/**
+	 * Precompute the routes between all given points, e.g. the points of
+	 * interest of a scenario, and pin them in the route cache.
+	 *
+	 * @param points
+	 *            the points, as array of {"lat":..,"lon":..} objects
+	 * @return the travel time table: "millis" and "distance" matrices, indexed
+	 *         [origin][destination] in the order of the points, -1 if
+	 *         unreachable.
+	 */
+	@Access(AccessType.PUBLIC)
+	public ObjectNode precomputeRoutes(@Name("points") ArrayNode points) {
+		return getEngine().precomputeRoutes(points);
 	}
-	
+
+	/**
+	 * Gets the travel time table of the last precomputeRoutes call.
+	 *
+	 * @return the table, or null if none was computed
+	 */
+	@Access(AccessType.PUBLIC)
+	public ObjectNode getTravelTimeTable() {
+		return getEngine().getTravelTimeTable();
+	}
+
+	/**
+	 * Close all roads within the given radius, e.g. at a roadblock. Routes
+	 * passing the closure are recalculated around it.
+	 *
+	 * @param lat
+	 *            the lat
+	 * @param lon
+	 *            the lon
+	 * @param radius
+	 *            the radius in meters
+	 * @return the id of the closure
+	 */
+	@Access(AccessType.PUBLIC)
+	public String addRoadClosure(@Name("lat") Double lat,
+			@Name("lon") Double lon, @Name("radius") Double radius) {
+		return getEngine().addRoadClosure(lat, lon, radius);
+	}
+
+	/**
+	 * Remove a road closure.
+	 *
+	 * @param id
+	 *            the id
+	 * @return true, if the closure existed
+	 */
+	@Access(AccessType.PUBLIC)
+	public boolean removeRoadClosure(@Name("id") String id) {
+		return getEngine().removeRoadClosure(id);
+	}
+
+	/**
+	 * Remove all road closures.
+	 */
+	@Access(AccessType.PUBLIC)
+	public void clearRoadClosures() {
+		getEngine().clearRoadClosures();
+	}
+
+	/**
+	 * Reset all scenario dependent routing state: road closures, cached
+	 * routes and destination trees.
+	 */
+	@Access(AccessType.PUBLIC)
+	public void resetRouting() {
+		getEngine().reset();
+	}
+
+	/**
+	 * Gets the road closures.
+	 *
+	 * @return the road closures
+	 */
+	@Access(AccessType.PUBLIC)
+	public ArrayNode getRoadClosures() {
+		return getEngine().getRoadClosures();
+	}
+
 //	/**
 //	 * Gets the search pattern.
 //	 *
@@ -0,0 +1,239 @@
+/*
+ * Copyright: Almende B.V. (2014), Rotterdam, The Netherlands
+ * License: The Apache Software License, Version 2.0
+ */
+package com.almende.bridge.swarm.navigation;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.almende.util.jackson.JOM;
+import com.almende.util.uuid.UUID;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.graphhopper.storage.Graph;
+import com.graphhopper.storage.NodeAccess;
+import com.graphhopper.storage.index.LocationIndex;
+import com.graphhopper.util.DistanceCalcEarth;
+import com.graphhopper.util.EdgeExplorer;
+import com.graphhopper.util.EdgeIterator;
+import com.graphhopper.util.Helper;
+
+import gnu.trove.list.array.TIntArrayList;
+import gnu.trove.set.hash.TIntHashSet;
+
+/**
+ * Road closures, as circular areas on the map. All edges touching a node
+ * inside a closure area are blocked: searches add a fixed penalty to their
+ * travel time, so blocked roads are avoided whenever there is an
+ * alternative, but a destination inside a closure (e.g. the roadblock
+ * itself) stays reachable. Since closures only increase travel times, lower
+ * bounds computed without closures (see {@link Landmarks}) remain valid.
+ */
+public class RoadClosures {
+	private final Graph						graph;
+	private final LocationIndex				index;
+	private final double					penalty;
+	private final Map<String, Closure>		closures	= new LinkedHashMap<String, Closure>();
+	private volatile TIntHashSet			blocked		= new TIntHashSet();
+
+	/**
+	 * Instantiates a new road closures set.
+	 *
+	 * @param graph
+	 *            the graph
+	 * @param index
+	 *            the location index
+	 * @param penalty
+	 *            the penalty in millis for traveling a blocked edge
+	 */
+	public RoadClosures(final Graph graph, final LocationIndex index,
+			final double penalty) {
+		this.graph = graph.getBaseGraph();
+		this.index = index;
+		this.penalty = penalty;
+	}
+
+	/**
+	 * Close all roads within the given radius.
+	 *
+	 * @param lat
+	 *            the lat
+	 * @param lon
+	 *            the lon
+	 * @param radius
+	 *            the radius in meters
+	 * @return the id of the closure
+	 */
+	public synchronized String add(final double lat, final double lon,
+			final double radius) {
+		final int center = index.findID(lat, lon);
+		if (center < 0) {
+			throw new IllegalArgumentException("Closure not on the map:" + lat
+					+ "," + lon);
+		}
+		final NodeAccess nodes = graph.getNodeAccess();
+		final EdgeExplorer explorer = graph.createEdgeExplorer();
+		final TIntHashSet visited = new TIntHashSet();
+		final TIntArrayList todo = new TIntArrayList();
+		final TIntHashSet edges = new TIntHashSet();
+		todo.add(center);
+		visited.add(center);
+		while (!todo.isEmpty()) {
+			final int node = todo.removeAt(todo.size() - 1);
+			final EdgeIterator iter = explorer.setBaseNode(node);
+			while (iter.next()) {
+				edges.add(iter.getEdge());
+				final int adj = iter.getAdjNode();
+				if (!visited.contains(adj)
+						&& Helper.DIST_EARTH.calcDist(lat, lon,
+								nodes.getLatitude(adj),
+								nodes.getLongitude(adj)) <= radius) {
+					visited.add(adj);
+					todo.add(adj);
+				}
+			}
+		}
+		final Closure closure = new Closure(new UUID().toString(), lat, lon,
+				radius, edges.toArray());
+		closures.put(closure.id, closure);
+		rebuild();
+		return closure.id;
+	}
+
+	/**
+	 * Remove a closure.
+	 *
+	 * @param id
+	 *            the id
+	 * @return true, if the closure existed
+	 */
+	public synchronized boolean remove(final String id) {
+		if (closures.remove(id) != null) {
+			rebuild();
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Remove all closures.
+	 */
+	public synchronized void clear() {
+		closures.clear();
+		rebuild();
+	}
+
+	/**
+	 * Checks if there are no closures.
+	 *
+	 * @return true, if empty
+	 */
+	public boolean isEmpty() {
+		return blocked.isEmpty();
+	}
+
+	/**
+	 * Gets the penalty for traveling an edge.
+	 *
+	 * @param edge
+	 *            the edge
+	 * @return the penalty in millis, 0 if the edge isn't blocked
+	 */
+	public double getPenalty(final int edge) {
+		return blocked.contains(edge) ? penalty : 0;
+	}
+
+	/**
+	 * Checks if a route, as array of [lon, lat, ele, millis] arrays, passes
+	 * through any closure: if any of its segments comes within the radius of
+	 * a closure, also when both ends of the segment are outside of it.
+	 *
+	 * @param route
+	 *            the route
+	 * @return true, if affected
+	 */
+	public synchronized boolean affects(final JsonNode route) {
+		if (closures.isEmpty() || route == null || route.size() == 0) {
+			return false;
+		}
+		double lastLon = route.get(0).get(0).asDouble();
+		double lastLat = route.get(0).get(1).asDouble();
+		for (int i = 0; i < route.size(); i++) {
+			final double lon = route.get(i).get(0).asDouble();
+			final double lat = route.get(i).get(1).asDouble();
+			for (Closure closure : closures.values()) {
+				if (distance(closure, lastLat, lastLon, lat, lon) <= closure.radius) {
+					return true;
+				}
+			}
+			lastLon = lon;
+			lastLat = lat;
+		}
+		return false;
+	}
+
+	/**
+	 * Gets the distance from the center of a closure to a route segment, on
+	 * a plane projected around the center; good enough at closure scale.
+	 */
+	private static double distance(final Closure closure, final double aLat,
+			final double aLon, final double bLat, final double bLon) {
+		final double scale = Math.cos(Math.toRadians(closure.lat));
+		final double ax = (aLon - closure.lon) * scale;
+		final double ay = aLat - closure.lat;
+		final double dx = (bLon - aLon) * scale;
+		final double dy = bLat - aLat;
+		final double length = dx * dx + dy * dy;
+		final double t = length > 0 ? Math.max(0,
+				Math.min(1, -(ax * dx + ay * dy) / length)) : 0;
+		final double x = ax + t * dx;
+		final double y = ay + t * dy;
+		return Math.toRadians(Math.sqrt(x * x + y * y)) * DistanceCalcEarth.R;
+	}
+
+	/**
+	 * Gets the closures as JSON.
+	 *
+	 * @return the closures
+	 */
+	public synchronized ArrayNode toJson() {
+		final ArrayNode result = JOM.createArrayNode();
+		for (Closure closure : closures.values()) {
+			final ObjectNode item = JOM.createObjectNode();
+			item.put("id", closure.id);
+			item.put("lat", closure.lat);
+			item.put("lon", closure.lon);
+			item.put("radius", closure.radius);
+			item.put("edges", closure.edges.length);
+			result.add(item);
+		}
+		return result;
+	}
+
+	private void rebuild() {
+		final TIntHashSet edges = new TIntHashSet();
+		for (Closure closure : closures.values()) {
+			edges.addAll(closure.edges);
+		}
+		blocked = edges;
+	}
+
+	private static class Closure {
+		final String	id;
+		final double	lat;
+		final double	lon;
+		final double	radius;
+		final int[]		edges;
+
+		Closure(final String id, final double lat, final double lon,
+				final double radius, final int[] edges) {
+			this.id = id;
+			this.lat = lat;
+			this.lon = lon;
+			this.radius = radius;
+			this.edges = edges;
+		}
+	}
+}
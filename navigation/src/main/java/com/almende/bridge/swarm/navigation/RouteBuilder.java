@@ -0,0 +1,117 @@
+/*
+ * Copyright: Almende B.V. (2014), Rotterdam, The Netherlands
+ * License: The Apache Software License, Version 2.0
+ */
+package com.almende.bridge.swarm.navigation;
+
+import com.almende.util.jackson.JOM;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.graphhopper.util.EdgeIteratorState;
+import com.graphhopper.util.Helper;
+import com.graphhopper.util.PointList;
+
+/**
+ * Builds a route, in the same format as the GraphHopper based routes
+ * ([lon, lat, ele, millis] points plus "distance" and "millis"), from a path
+ * of base graph edges found by our own searches. The travel time of each
+ * edge is spread over its points by length.
+ */
+class RouteBuilder {
+	private final ArrayNode	parts		= JOM.createArrayNode();
+	private double			distance	= 0;
+	private double			millis		= 0;
+	private double			lastLat;
+	private double			lastLon;
+
+	/**
+	 * Instantiates a new route builder.
+	 *
+	 * @param lat
+	 *            the lat of the start node
+	 * @param lon
+	 *            the lon of the start node
+	 */
+	RouteBuilder(final double lat, final double lon) {
+		addPoint(lat, lon, 0, 0);
+	}
+
+	/**
+	 * Add the next edge of the path.
+	 *
+	 * @param edge
+	 *            the edge, with the next node of the path as adjacent node
+	 * @param edgeMillis
+	 *            the travel time of the edge
+	 */
+	void addEdge(final EdgeIteratorState edge, final double edgeMillis) {
+		final PointList points = edge.fetchWayGeometry(2);
+		final boolean is3D = points.is3D();
+		final double[] lengths = new double[points.getSize()];
+		double length = 0;
+		double lat = lastLat;
+		double lon = lastLon;
+		for (int i = 0; i < lengths.length; i++) {
+			length += Helper.DIST_EARTH.calcDist(lat, lon, points.getLat(i),
+					points.getLon(i));
+			lengths[i] = length;
+			lat = points.getLat(i);
+			lon = points.getLon(i);
+		}
+		for (int i = 0; i < lengths.length; i++) {
+			final double part = length > 0 ? lengths[i] / length
+					: (i + 1.0) / lengths.length;
+			addPoint(points.getLat(i), points.getLon(i),
+					is3D ? points.getEle(i) : 0, millis + edgeMillis * part);
+		}
+		millis += edgeMillis;
+		distance += edge.getDistance();
+	}
+
+	/**
+	 * Add a straight leg to a point off the graph, such as the exact start or
+	 * end of the route next to its first or last node.
+	 *
+	 * @param lat
+	 *            the lat
+	 * @param lon
+	 *            the lon
+	 * @param speed
+	 *            the speed on the leg in km/h, 0 to add no travel time
+	 */
+	void addLeg(final double lat, final double lon, final double speed) {
+		final double length = Helper.DIST_EARTH.calcDist(lastLat, lastLon,
+				lat, lon);
+		if (length <= 0) {
+			return;
+		}
+		millis += speed > 0 ? length * 3600 / speed : 0;
+		distance += length;
+		addPoint(lat, lon, 0, millis);
+	}
+
+	/**
+	 * Gets the route.
+	 *
+	 * @return the route
+	 */
+	ObjectNode build() {
+		final ObjectNode result = JOM.createObjectNode();
+		result.set("route", parts);
+		result.put("distance", distance);
+		result.put("millis", (long) millis);
+		return result;
+	}
+
+	private void addPoint(final double lat, final double lon,
+			final double ele, final double time) {
+		final ArrayNode item = JOM.createArrayNode();
+		item.add(lon);
+		item.add(lat);
+		item.add(Double.isNaN(ele) ? 0 : ele);
+		item.add((long) time);
+		parts.add(item);
+		lastLat = lat;
+		lastLon = lon;
+	}
+}
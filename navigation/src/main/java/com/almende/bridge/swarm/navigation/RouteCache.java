@@ -0,0 +1,177 @@
+/*
+ * Copyright: Almende B.V. (2014), Rotterdam, The Netherlands
+ * License: The Apache Software License, Version 2.0
+ */
+package com.almende.bridge.swarm.navigation;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.almende.util.jackson.JOM;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * Bounded, least-recently-used cache of routes. Routes are keyed by the graph
+ * nodes their start and end points snap to, so slightly different positions
+ * near the same station or rendezvous point share one entry. Pinned routes,
+ * such as the precomputed routes between points of interest, are kept apart
+ * from the LRU entries and never evicted.
+ */
+public class RouteCache {
+	private final int						maxSize;
+	private final AtomicLong				hits		= new AtomicLong();
+	private final AtomicLong				misses		= new AtomicLong();
+	private final AtomicLong				evictions	= new AtomicLong();
+	private final Map<Long, ObjectNode>	routes;
+	private final Map<Long, ObjectNode>	pinned		= new HashMap<Long, ObjectNode>();
+
+	/**
+	 * Instantiates a new route cache.
+	 *
+	 * @param maxSize
+	 *            the maximum number of routes kept
+	 */
+	public RouteCache(final int maxSize) {
+		this.maxSize = maxSize;
+		this.routes = new LinkedHashMap<Long, ObjectNode>(16, 0.75f, true) {
+			private static final long	serialVersionUID	= 1L;
+
+			@Override
+			protected boolean removeEldestEntry(
+					final Map.Entry<Long, ObjectNode> eldest) {
+				if (size() > RouteCache.this.maxSize) {
+					evictions.incrementAndGet();
+					return true;
+				}
+				return false;
+			}
+		};
+	}
+
+	/**
+	 * Creates the cache key for a pair of graph nodes.
+	 *
+	 * @param startNode
+	 *            the start node
+	 * @param endNode
+	 *            the end node
+	 * @return the key
+	 */
+	public static long key(final int startNode, final int endNode) {
+		return ((long) startNode << 32) | (endNode & 0xFFFFFFFFL);
+	}
+
+	/**
+	 * Gets a cached route, counting the lookup as hit or miss.
+	 *
+	 * @param key
+	 *            the key
+	 * @return the route, or null if not cached
+	 */
+	public synchronized ObjectNode get(final long key) {
+		ObjectNode route = pinned.get(key);
+		if (route == null) {
+			route = routes.get(key);
+		}
+		if (route != null) {
+			hits.incrementAndGet();
+		} else {
+			misses.incrementAndGet();
+		}
+		return route;
+	}
+
+	/**
+	 * Gets a cached route without counting the lookup.
+	 *
+	 * @param key
+	 *            the key
+	 * @return the route, or null if not cached
+	 */
+	public synchronized ObjectNode peek(final long key) {
+		final ObjectNode route = pinned.get(key);
+		return route != null ? route : routes.get(key);
+	}
+
+	/**
+	 * Stores a route.
+	 *
+	 * @param key
+	 *            the key
+	 * @param route
+	 *            the route
+	 */
+	public synchronized void put(final long key, final ObjectNode route) {
+		if (maxSize > 0) {
+			routes.put(key, route);
+		}
+	}
+
+	/**
+	 * Stores a route that is never evicted.
+	 *
+	 * @param key
+	 *            the key
+	 * @param route
+	 *            the route
+	 */
+	public synchronized void pin(final long key, final ObjectNode route) {
+		pinned.put(key, route);
+		routes.remove(key);
+	}
+
+	/**
+	 * Drops all pinned routes.
+	 */
+	public synchronized void clearPinned() {
+		pinned.clear();
+	}
+
+	/**
+	 * Drops all cached routes, pinned ones included, keeping the counters.
+	 */
+	public synchronized void clear() {
+		routes.clear();
+		pinned.clear();
+	}
+
+	/**
+	 * Gets the size.
+	 *
+	 * @return the number of cached routes, without the pinned ones
+	 */
+	public synchronized int size() {
+		return routes.size();
+	}
+
+	/**
+	 * Gets the number of pinned routes.
+	 *
+	 * @return the number of pinned routes
+	 */
+	public synchronized int pinnedSize() {
+		return pinned.size();
+	}
+
+	/**
+	 * Gets the cache statistics.
+	 *
+	 * @return the stats
+	 */
+	public ObjectNode getStats() {
+		final ObjectNode result = JOM.createObjectNode();
+		final long hitCount = hits.get();
+		final long missCount = misses.get();
+		result.put("size", size());
+		result.put("maxSize", maxSize);
+		result.put("pinned", pinnedSize());
+		result.put("hits", hitCount);
+		result.put("misses", missCount);
+		result.put("evictions", evictions.get());
+		result.put("hitRatio", hitCount + missCount > 0 ? (double) hitCount
+				/ (hitCount + missCount) : 0);
+		return result;
+	}
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright: Almende B.V. (2014), Rotterdam, The Netherlands
+ * License: The Apache Software License, Version 2.0
+ */
+package com.almende.bridge.swarm.navigation;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+/**
+ * Compact string encoding of routes, in the style of the Google polyline
+ * format. Each point is stored as the difference with the previous point in
+ * longitude, latitude (both fixed-point with 5 decimals) and millis, each
+ * difference as a zig-zag variable length number in printable ASCII.
+ * Elevation is not transmitted and decodes as 0.
+ */
+public final class RouteCodec {
+	/** The encoding name, as requested through getRoute. */
+	public static final String	POLYLINE	= "polyline";
+	private static final double	PRECISION	= 1e5;
+
+	private RouteCodec() {}
+
+	/**
+	 * Encode a route, given as array of [lon, lat, ele, millis] arrays.
+	 *
+	 * @param route
+	 *            the route
+	 * @return the encoded route
+	 */
+	public static String encode(final JsonNode route) {
+		final StringBuilder sb = new StringBuilder(route.size() * 12);
+		long lastLon = 0;
+		long lastLat = 0;
+		long lastMillis = 0;
+		for (JsonNode item : route) {
+			final long lon = Math.round(item.get(0).asDouble() * PRECISION);
+			final long lat = Math.round(item.get(1).asDouble() * PRECISION);
+			final long millis = item.get(3).asLong();
+			encodeValue(sb, lon - lastLon);
+			encodeValue(sb, lat - lastLat);
+			encodeValue(sb, millis - lastMillis);
+			lastLon = lon;
+			lastLat = lat;
+			lastMillis = millis;
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Decode a route into a list of [lon, lat, ele, millis] arrays.
+	 *
+	 * @param encoded
+	 *            the encoded route
+	 * @return the route
+	 * @throws IllegalArgumentException
+	 *             if the encoding is truncated or malformed
+	 */
+	public static List<double[]> decode(final String encoded) {
+		final List<double[]> result = new ArrayList<double[]>(
+				encoded.length() / 6);
+		final int[] pos = new int[] { 0 };
+		long lon = 0;
+		long lat = 0;
+		long millis = 0;
+		while (pos[0] < encoded.length()) {
+			lon += decodeValue(encoded, pos);
+			lat += decodeValue(encoded, pos);
+			millis += decodeValue(encoded, pos);
+			result.add(new double[] { lon / PRECISION, lat / PRECISION, 0,
+					millis });
+		}
+		return result;
+	}
+
+	private static void encodeValue(final StringBuilder sb, final long value) {
+		long rest = value < 0 ? ~(value << 1) : value << 1;
+		while (rest >= 0x20) {
+			sb.append((char) ((0x20 | (rest & 0x1f)) + 63));
+			rest >>= 5;
+		}
+		sb.append((char) (rest + 63));
+	}
+
+	private static long decodeValue(final String encoded, final int[] pos) {
+		long result = 0;
+		int shift = 0;
+		long chunk;
+		do {
+			if (pos[0] >= encoded.length()) {
+				throw new IllegalArgumentException(
+						"Truncated route encoding at " + pos[0]);
+			}
+			chunk = encoded.charAt(pos[0]++) - 63;
+			if (chunk < 0 || chunk > 0x3f || shift > 60) {
+				throw new IllegalArgumentException(
+						"Malformed route encoding at " + (pos[0] - 1));
+			}
+			result |= (chunk & 0x1f) << shift;
+			shift += 5;
+		} while (chunk >= 0x20);
+		return (result & 1) != 0 ? ~(result >> 1) : result >> 1;
+	}
+}
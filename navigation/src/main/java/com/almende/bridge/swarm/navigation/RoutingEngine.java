@@ -0,0 +1,764 @@
+/*
+ * Copyright: Almende B.V. (2014), Rotterdam, The Netherlands
+ * License: The Apache Software License, Version 2.0
+ */
+package com.almende.bridge.swarm.navigation;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.almende.util.jackson.JOM;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.graphhopper.GHRequest;
+import com.graphhopper.GHResponse;
+import com.graphhopper.GraphHopper;
+import com.graphhopper.routing.util.FlagEncoder;
+import com.graphhopper.storage.index.LocationIndex;
+import com.graphhopper.util.CmdArgs;
+import com.graphhopper.util.GPXEntry;
+import com.graphhopper.util.InstructionList;
+import com.graphhopper.util.shapes.GHPoint;
+
+/**
+ * The routing engine behind the NavAgent: GraphHopper plus route cache,
+ * routing worker pool and the search based queries. It doesn't depend on
+ * Eve, so it can also be embedded in other JVMs, e.g. next to the simulated
+ * resources.
+ */
+public class RoutingEngine {
+	private static final int	DEFAULTCACHESIZE	= 1000;
+	private static final long	DEFAULTMAXMILLIS	= 2 * 60 * 60 * 1000;
+	private static final int	DEFAULTQUEUESIZE	= 100;
+	private static final long	DEFAULTTIMEOUT		= 30000;
+	private static final long	DEFAULTPENALTY		= 60 * 60 * 1000;
+	private static final int	DEFAULTLANDMARKS	= 4;
+	private static final int	DEFAULTTREES		= 16;
+	private static final int	DEFAULTHOTNESS		= 16;
+	private static final int	DEFAULTTREENODES	= 100000;
+	private static final long	DEFAULTPRECOMPUTETIMEOUT	= 5 * 60 * 1000;
+	private static final Logger	LOG					= Logger.getLogger(RoutingEngine.class
+															.getName());
+	private final GraphHopper	hopper;
+	private final RouteCache	routeCache;
+	private final RoutingExecutor	routing;
+	private final String		vehicle;
+	private final long			matrixMaxMillis;
+	private final RoadClosures	closures;
+	private final DestinationTrees	trees;
+	private final int			landmarkCount;
+	private final ExecutorService	precompute;
+	private final int			precomputeWorkers;
+	private final long			precomputeTimeout;
+	private final Object		precomputeLock		= new Object();
+	private final AtomicBoolean	repinPending		= new AtomicBoolean();
+	private volatile ArrayNode	precomputed			= null;
+	private volatile Landmarks	landmarks			= null;
+	private boolean				landmarksStarted	= false;
+	private final AtomicInteger	closureVersion		= new AtomicInteger();
+	private volatile ObjectNode	travelTimes			= null;
+
+	/**
+	 * Instantiates a new routing engine.
+	 *
+	 * @param hopper
+	 *            the loaded GraphHopper instance
+	 * @param config
+	 *            the configuration: routeCacheSize, vehicle,
+	 *            matrixMaxMillis, routingWorkers, routingQueueSize,
+	 *            routingTimeout, closurePenalty, landmarks, treeCacheSize,
+	 *            treeHotness, treeMaxNodes, precomputeWorkers and
+	 *            precomputeTimeout, all optional
+	 */
+	public RoutingEngine(final GraphHopper hopper, final ObjectNode config) {
+		this.hopper = hopper;
+		this.routeCache = new RouteCache(config.has("routeCacheSize") ? config
+				.get("routeCacheSize").asInt() : DEFAULTCACHESIZE);
+		this.vehicle = config.has("vehicle") ? config.get("vehicle").asText()
+				: "car";
+		this.matrixMaxMillis = config.has("matrixMaxMillis") ? config.get(
+				"matrixMaxMillis").asLong() : DEFAULTMAXMILLIS;
+		this.routing = new RoutingExecutor(
+				config.has("routingWorkers") ? config.get("routingWorkers")
+						.asInt() : Runtime.getRuntime().availableProcessors(),
+				config.has("routingQueueSize") ? config.get(
+						"routingQueueSize").asInt() : DEFAULTQUEUESIZE,
+				config.has("routingTimeout") ? config.get("routingTimeout")
+						.asLong() : DEFAULTTIMEOUT);
+		this.closures = new RoadClosures(hopper.getGraph(),
+				hopper.getLocationIndex(),
+				config.has("closurePenalty") ? config.get("closurePenalty")
+						.asLong() : DEFAULTPENALTY);
+		this.landmarkCount = config.has("landmarks") ? config.get("landmarks")
+				.asInt() : DEFAULTLANDMARKS;
+		// Precomputation gets its own threads, so it never occupies the
+		// routing workers serving the live queries.
+		this.precomputeWorkers = config.has("precomputeWorkers") ? config.get(
+				"precomputeWorkers").asInt() : Math.max(1, Runtime.getRuntime()
+				.availableProcessors() / 2);
+		this.precompute = Executors.newFixedThreadPool(precomputeWorkers,
+				new ThreadFactory() {
+					private final AtomicInteger	count	= new AtomicInteger();
+
+					@Override
+					public Thread newThread(final Runnable r) {
+						final Thread thread = new Thread(r, "precompute-"
+								+ count.incrementAndGet());
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+		this.precomputeTimeout = config.has("precomputeTimeout") ? config
+				.get("precomputeTimeout").asLong() : DEFAULTPRECOMPUTETIMEOUT;
+		this.trees = new DestinationTrees(hopper.getGraph(), getEncoder(),
+				closures, config.has("treeCacheSize") ? config.get(
+						"treeCacheSize").asInt() : DEFAULTTREES,
+				config.has("treeHotness") ? config.get("treeHotness").asInt()
+						: DEFAULTHOTNESS,
+				config.has("treeMaxNodes") ? config.get("treeMaxNodes")
+						.asInt() : DEFAULTTREENODES);
+	}
+
+	/**
+	 * Import or load a graph, through a snapshot if enabled in the arguments
+	 * (see {@link GraphSnapshot}).
+	 *
+	 * @param args
+	 *            the GraphHopper arguments
+	 * @return the GraphHopper instance
+	 */
+	public static GraphHopper loadGraph(final CmdArgs args) {
+		final CmdArgs snapshotArgs = GraphSnapshot.prepare(args);
+		final GraphHopper hopper = new GraphHopper().forServer().init(
+				snapshotArgs);
+		hopper.importOrLoad();
+		GraphSnapshot.commit(snapshotArgs);
+		return hopper;
+	}
+
+	/**
+	 * Gets the GraphHopper instance.
+	 *
+	 * @return the hopper
+	 */
+	public GraphHopper getHopper() {
+		return hopper;
+	}
+
+	/**
+	 * Gets the route. Start and end are snapped to the nearest graph nodes,
+	 * routes between the same pair of nodes are served from the route cache.
+	 * Routes to hot destinations are taken from their cached reverse tree
+	 * (see {@link DestinationTrees}).
+	 *
+	 * @param startLat
+	 *            the start lat
+	 * @param startLon
+	 *            the start lon
+	 * @param endLat
+	 *            the end lat
+	 * @param endLon
+	 *            the end lon
+	 * @param encoding
+	 *            optional route encoding: "polyline" returns the route as
+	 *            compact "encodedRoute" string (see {@link RouteCodec})
+	 *            instead of the "route" array.
+	 * @return the route. If the route passes a road closure, it is replaced by
+	 *         a route around the closure.
+	 */
+	public ObjectNode getRoute(final double startLat, final double startLon,
+			final double endLat, final double endLon, final String encoding) {
+		final LocationIndex index = hopper.getLocationIndex();
+		final int startNode = index.findID(startLat, startLon);
+		final int endNode = index.findID(endLat, endLon);
+		ObjectNode result = null;
+		if (startNode < 0 || endNode < 0) {
+			result = calcRoute(startLat, startLon, endLat, endLon);
+		} else {
+			final long key = RouteCache.key(startNode, endNode);
+			result = routeCache.get(key);
+			if (result == null) {
+				final int version = closureVersion.get();
+				final ShortestPathTree tree = trees.get(endNode);
+				if (tree != null) {
+					result = walkTree(tree, startNode, startLat, startLon,
+							endLat, endLon);
+				}
+				if (result == null) {
+					result = calcRoute(startLat, startLon, endLat, endLon);
+				}
+				if (closures.affects(result.get("route"))) {
+					final ObjectNode detour = calcClosureRoute(startNode,
+							endNode, startLat, startLon, endLat, endLon);
+					if (detour != null) {
+						result = detour;
+					}
+				}
+				// Don't cache routes calculated for closures that changed
+				// in the meantime.
+				if (version == closureVersion.get()) {
+					routeCache.put(key, result);
+				}
+			}
+		}
+		if (RouteCodec.POLYLINE.equals(encoding)) {
+			final ObjectNode encoded = JOM.createObjectNode();
+			encoded.put("encodedRoute", RouteCodec.encode(result.get("route")));
+			encoded.set("distance", result.get("distance"));
+			encoded.set("millis", result.get("millis"));
+			return encoded;
+		}
+		return result;
+	}
+
+	/**
+	 * Gets the travel time and distance of the route, without building the
+	 * route itself. Served from the route cache if that route is known, or
+	 * from the tree of a hot destination if that already reached the origin.
+	 * Otherwise GraphHopper is queried
+	 * without instructions and points, or, while there are road closures,
+	 * the closure aware search is run without building the route geometry.
+	 *
+	 * @param startLat
+	 *            the start lat
+	 * @param startLon
+	 *            the start lon
+	 * @param endLat
+	 *            the end lat
+	 * @param endLon
+	 *            the end lon
+	 * @return the "millis" and "distance" of the route
+	 */
+	public ObjectNode getEta(final double startLat, final double startLon,
+			final double endLat, final double endLon) {
+		final ObjectNode result = JOM.createObjectNode();
+		final LocationIndex index = hopper.getLocationIndex();
+		final int startNode = index.findID(startLat, startLon);
+		final int endNode = index.findID(endLat, endLon);
+		if (startNode >= 0 && endNode >= 0) {
+			final ObjectNode route = routeCache.peek(RouteCache.key(
+					startNode, endNode));
+			if (route != null) {
+				result.set("distance", route.get("distance"));
+				result.set("millis", route.get("millis"));
+				return result;
+			}
+			// Only answer from a tree that already reached the origin: ETA
+			// requests don't make destinations hot nor grow trees.
+			final ShortestPathTree tree = trees.peek(endNode);
+			if (tree != null && tree.isSettled(startNode)) {
+				result.put("distance", tree.getDistance(startNode));
+				result.put("millis", (long) tree.getMillis(startNode));
+				return result;
+			}
+			if (!closures.isEmpty()) {
+				// Without points we can't tell if the CH route passes a
+				// closure, search around the closures instead. The CH route
+				// may pass the closed roads, so it's no fallback.
+				final ObjectNode eta = calcClosureEta(startNode, endNode,
+						startLat, startLon, endLat, endLon);
+				if (eta == null) {
+					throw new IllegalStateException("No route from "
+							+ startLat + "," + startLon + " to " + endLat + ","
+							+ endLon);
+				}
+				return eta;
+			}
+		}
+		final GHRequest req = new GHRequest(new GHPoint(startLat, startLon),
+				new GHPoint(endLat, endLon));
+		req.getHints().put("instructions", false);
+		req.getHints().put("calcPoints", false);
+
+		final GHResponse res = routing.execute(new Callable<GHResponse>() {
+			@Override
+			public GHResponse call() {
+				return hopper.route(req);
+			}
+		});
+		if (res.hasErrors()) {
+			throw new IllegalStateException("Route has error(s):"
+					+ res.getErrors());
+		}
+		result.put("distance", res.getDistance());
+		result.put("millis", res.getMillis());
+		return result;
+	}
+
+	/**
+	 * Gets the travel times from many origins to a single destination. All
+	 * origins are served by one reverse Dijkstra search from the destination,
+	 * bounded by the configured matrixMaxMillis, reusing the cached tree of
+	 * hot destinations. Origins and destination are
+	 * snapped to their nearest graph nodes. Closed roads are avoided, origins
+	 * that can only reach the destination through a closure get the closure
+	 * penalty added to their travel time.
+	 *
+	 * @param origins
+	 *            the origins, as array of {"lat":..,"lon":..} objects
+	 * @param endLat
+	 *            the end lat
+	 * @param endLon
+	 *            the end lon
+	 * @return per origin, in the same order, an object with "millis" and
+	 *         "distance"; both are -1 if the origin can't reach the
+	 *         destination within the bound.
+	 */
+	public ArrayNode getRouteMatrix(final ArrayNode origins,
+			final double endLat, final double endLon) {
+		final LocationIndex index = hopper.getLocationIndex();
+		final int endNode = index.findID(endLat, endLon);
+		if (endNode < 0) {
+			throw new IllegalArgumentException("Destination not on the map:"
+					+ endLat + "," + endLon);
+		}
+		final int[] startNodes = new int[origins.size()];
+		for (int i = 0; i < startNodes.length; i++) {
+			final JsonNode origin = origins.get(i);
+			startNodes[i] = index.findID(origin.get("lat").asDouble(), origin
+					.get("lon").asDouble());
+		}
+		final ShortestPathTree cached = trees.get(endNode);
+		final ShortestPathTree tree = routing
+				.execute(new Callable<ShortestPathTree>() {
+					@Override
+					public ShortestPathTree call() {
+						if (cached != null) {
+							final int settled = cached.settleAll(startNodes,
+									matrixMaxMillis);
+							// A full tree may have stopped short of far
+							// origins, search those with a fresh tree.
+							if (settled == countValid(startNodes)
+									|| !cached.isFull()) {
+								return cached;
+							}
+						}
+						final ShortestPathTree tree = new ShortestPathTree(
+								hopper.getGraph(), getEncoder(), endNode, true,
+								closures);
+						tree.settleAll(startNodes, matrixMaxMillis);
+						return tree;
+					}
+				});
+
+		final ArrayNode result = JOM.createArrayNode();
+		for (int startNode : startNodes) {
+			final ObjectNode item = JOM.createObjectNode();
+			if (startNode >= 0 && tree.isSettled(startNode)) {
+				item.put("millis", (long) tree.getMillis(startNode));
+				item.put("distance", tree.getDistance(startNode));
+			} else {
+				item.put("millis", -1);
+				item.put("distance", -1);
+			}
+			result.add(item);
+		}
+		return result;
+	}
+
+	/**
+	 * Precompute the routes between all given points, e.g. the points of
+	 * interest of a scenario. Per point one reverse search is run, spread over
+	 * the precompute workers (not the routing workers, which keep serving the
+	 * live queries); the routes found are pinned in the route cache, so plan
+	 * legs between these points are served without routing. The previous
+	 * table and its pinned routes are replaced. When the road closures
+	 * change, the table is computed again in the background.
+	 *
+	 * @param points
+	 *            the points, as array of {"lat":..,"lon":..} objects
+	 * @return the travel time table: "millis" and "distance" matrices, indexed
+	 *         [origin][destination] in the order of the points, -1 if
+	 *         unreachable.
+	 * @throws IllegalStateException
+	 *             if the precomputation takes longer than precomputeTimeout
+	 */
+	public ObjectNode precomputeRoutes(final ArrayNode points) {
+		synchronized (precomputeLock) {
+			precomputed = points;
+			return calcTravelTimes(points);
+		}
+	}
+
+	private ObjectNode calcTravelTimes(final ArrayNode points) {
+		final long start = System.currentTimeMillis();
+		final LocationIndex index = hopper.getLocationIndex();
+		final int size = points.size();
+		final int[] nodes = new int[size];
+		final double[] lats = new double[size];
+		final double[] lons = new double[size];
+		for (int i = 0; i < size; i++) {
+			final JsonNode point = points.get(i);
+			lats[i] = point.get("lat").asDouble();
+			lons[i] = point.get("lon").asDouble();
+			nodes[i] = index.findID(lats[i], lons[i]);
+		}
+		final int version = closureVersion.get();
+		routeCache.clearPinned();
+		final long[][] millis = new long[size][size];
+		final double[][] distances = new double[size][size];
+		final AtomicInteger next = new AtomicInteger();
+		final List<Future<Void>> futures = new ArrayList<Future<Void>>();
+		for (int t = Math.min(size, precomputeWorkers); t > 0; t--) {
+			futures.add(precompute.submit(new Callable<Void>() {
+				@Override
+				public Void call() {
+					int destination;
+					while ((destination = next.getAndIncrement()) < size
+							&& !Thread.currentThread().isInterrupted()) {
+						precomputeTo(nodes, lats, lons, destination, millis,
+								distances, version);
+					}
+					return null;
+				}
+			}));
+		}
+		final long deadline = start + precomputeTimeout;
+		try {
+			for (Future<Void> future : futures) {
+				future.get(Math.max(0, deadline - System.currentTimeMillis()),
+						TimeUnit.MILLISECONDS);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted precomputing routes",
+					e);
+		} catch (ExecutionException e) {
+			throw new IllegalStateException("Couldn't precompute routes",
+					e.getCause());
+		} catch (TimeoutException e) {
+			throw new IllegalStateException("Precomputing routes took over "
+					+ precomputeTimeout + " ms", e);
+		} finally {
+			for (Future<Void> future : futures) {
+				future.cancel(true);
+			}
+		}
+
+		final ObjectNode result = JOM.createObjectNode();
+		final ArrayNode millisTable = result.putArray("millis");
+		final ArrayNode distanceTable = result.putArray("distance");
+		for (int i = 0; i < size; i++) {
+			final ArrayNode millisRow = millisTable.addArray();
+			final ArrayNode distanceRow = distanceTable.addArray();
+			for (int j = 0; j < size; j++) {
+				millisRow.add(millis[i][j]);
+				distanceRow.add(distances[i][j]);
+			}
+		}
+		result.put("pinned", routeCache.pinnedSize());
+		result.put("elapsed", System.currentTimeMillis() - start);
+		if (version == closureVersion.get()) {
+			travelTimes = result;
+		}
+		return result;
+	}
+
+	/**
+	 * Compute the travel time table again in the background, after the
+	 * closures changed. Closures added in quick succession (e.g. all
+	 * roadblocks of a scenario step) share a run, as long as it hasn't
+	 * started yet.
+	 */
+	private void repin() {
+		if (precomputed == null || !repinPending.compareAndSet(false, true)) {
+			return;
+		}
+		final Thread thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				synchronized (precomputeLock) {
+					repinPending.set(false);
+					final ArrayNode points = precomputed;
+					if (points == null) {
+						return;
+					}
+					try {
+						calcTravelTimes(points);
+					} catch (IllegalStateException e) {
+						LOG.log(Level.WARNING, "Couldn't repin routes", e);
+					}
+				}
+			}
+		}, "repin");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Gets the travel time table of the last precomputeRoutes call.
+	 *
+	 * @return the table, or null if none was computed
+	 */
+	public ObjectNode getTravelTimeTable() {
+		return travelTimes;
+	}
+
+	/**
+	 * Gets the route cache statistics, including those of the destination
+	 * tree cache.
+	 *
+	 * @return the route cache stats
+	 */
+	public ObjectNode getRouteCacheStats() {
+		final ObjectNode result = routeCache.getStats();
+		result.set("destinationTrees", trees.getStats());
+		return result;
+	}
+
+	/**
+	 * Gets the routing worker pool statistics: queue depth, rejections and
+	 * latencies.
+	 *
+	 * @return the routing stats
+	 */
+	public ObjectNode getRoutingStats() {
+		return routing.getStats();
+	}
+
+	/**
+	 * Clear the route cache.
+	 */
+	public void clearRouteCache() {
+		routeCache.clear();
+	}
+
+	/**
+	 * Close all roads within the given radius. Routes passing the closure are
+	 * recalculated around it, without re-preparing the CH graph.
+	 *
+	 * @param lat
+	 *            the lat
+	 * @param lon
+	 *            the lon
+	 * @param radius
+	 *            the radius in meters
+	 * @return the id of the closure
+	 */
+	public String addRoadClosure(final double lat, final double lon,
+			final double radius) {
+		final String id = closures.add(lat, lon, radius);
+		closuresChanged();
+		startLandmarks();
+		return id;
+	}
+
+	/**
+	 * Remove a road closure.
+	 *
+	 * @param id
+	 *            the id
+	 * @return true, if the closure existed
+	 */
+	public boolean removeRoadClosure(final String id) {
+		final boolean result = closures.remove(id);
+		if (result) {
+			closuresChanged();
+		}
+		return result;
+	}
+
+	/**
+	 * Remove all road closures.
+	 */
+	public void clearRoadClosures() {
+		closures.clear();
+		closuresChanged();
+	}
+
+	/**
+	 * Gets the road closures.
+	 *
+	 * @return the road closures
+	 */
+	public ArrayNode getRoadClosures() {
+		return closures.toJson();
+	}
+
+	/**
+	 * Reset all scenario dependent routing state: road closures, cached
+	 * routes and destination trees.
+	 */
+	public void reset() {
+		precomputed = null;
+		closures.clear();
+		closuresChanged();
+	}
+
+	/**
+	 * Shutdown the routing workers.
+	 */
+	public void shutdown() {
+		routing.shutdown();
+		precompute.shutdownNow();
+	}
+
+	private void closuresChanged() {
+		closureVersion.incrementAndGet();
+		travelTimes = null;
+		routeCache.clear();
+		trees.clear();
+		repin();
+	}
+
+	private void precomputeTo(final int[] nodes, final double[] lats,
+			final double[] lons, final int destination, final long[][] millis,
+			final double[][] distances, final int version) {
+		final int endNode = nodes[destination];
+		ShortestPathTree tree = null;
+		if (endNode >= 0) {
+			tree = new ShortestPathTree(hopper.getGraph(), getEncoder(),
+					endNode, true, closures);
+			tree.settleAll(nodes, matrixMaxMillis);
+		}
+		for (int origin = 0; origin < nodes.length; origin++) {
+			final int startNode = nodes[origin];
+			final ObjectNode route = tree != null && startNode >= 0
+					&& startNode != endNode ? trees.walk(tree, startNode,
+					lats[origin], lons[origin], lats[destination],
+					lons[destination]) : null;
+			if (route != null) {
+				millis[origin][destination] = route.get("millis").asLong();
+				distances[origin][destination] = route.get("distance")
+						.asDouble();
+				if (version == closureVersion.get()) {
+					routeCache.pin(RouteCache.key(startNode, endNode), route);
+				}
+			} else if (endNode >= 0 && startNode == endNode) {
+				millis[origin][destination] = 0;
+				distances[origin][destination] = 0;
+			} else {
+				millis[origin][destination] = -1;
+				distances[origin][destination] = -1;
+			}
+		}
+	}
+
+	private static int countValid(final int[] nodes) {
+		int count = 0;
+		for (int node : nodes) {
+			if (node >= 0) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	private ObjectNode walkTree(final ShortestPathTree tree,
+			final int startNode, final double startLat, final double startLon,
+			final double endLat, final double endLon) {
+		return routing.execute(new Callable<ObjectNode>() {
+			@Override
+			public ObjectNode call() {
+				if (!tree.settle(startNode, matrixMaxMillis)) {
+					return null;
+				}
+				return trees.walk(tree, startNode, startLat, startLon, endLat,
+						endLon);
+			}
+		});
+	}
+
+	/**
+	 * Prepare the landmarks in the background on the first closure; until
+	 * they are ready, closure routes use the straight line heuristic only.
+	 */
+	private synchronized void startLandmarks() {
+		if (landmarksStarted || landmarkCount <= 0) {
+			return;
+		}
+		landmarksStarted = true;
+		final Thread thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					landmarks = new Landmarks(hopper.getGraph(), getEncoder(),
+							landmarkCount);
+				} catch (RuntimeException e) {
+					LOG.log(Level.WARNING, "Couldn't prepare landmarks", e);
+				}
+			}
+		}, "landmarks");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	private ObjectNode calcClosureRoute(final int startNode,
+			final int endNode, final double startLat, final double startLon,
+			final double endLat, final double endLon) {
+		final ClosureRouter router = new ClosureRouter(hopper.getGraph(),
+				getEncoder(), closures, landmarks);
+		return routing.execute(new Callable<ObjectNode>() {
+			@Override
+			public ObjectNode call() {
+				return router.route(startNode, endNode, startLat, startLon,
+						endLat, endLon);
+			}
+		});
+	}
+
+	private ObjectNode calcClosureEta(final int startNode, final int endNode,
+			final double startLat, final double startLon, final double endLat,
+			final double endLon) {
+		final ClosureRouter router = new ClosureRouter(hopper.getGraph(),
+				getEncoder(), closures, landmarks);
+		return routing.execute(new Callable<ObjectNode>() {
+			@Override
+			public ObjectNode call() {
+				return router.eta(startNode, endNode, startLat, startLon,
+						endLat, endLon);
+			}
+		});
+	}
+
+	private FlagEncoder getEncoder() {
+		return hopper.getEncodingManager().getEncoder(vehicle);
+	}
+
+	private ObjectNode calcRoute(final double startLat,
+			final double startLon, final double endLat, final double endLon) {
+		ObjectNode result = JOM.createObjectNode();
+
+		final GHRequest req = new GHRequest(new GHPoint(startLat, startLon), new GHPoint(
+				endLat, endLon));
+
+		GHResponse res = routing.execute(new Callable<GHResponse>() {
+			@Override
+			public GHResponse call() {
+				return hopper.route(req);
+			}
+		});
+		if (res.hasErrors()){
+			throw new IllegalStateException("Route has error(s):"+res.getErrors());
+		}
+		InstructionList list = res.getInstructions();
+		final List<GPXEntry> gpx = list.createGPXList();
+		final ArrayNode parts = JOM.createArrayNode();
+		for (GPXEntry entry : gpx){
+			final ArrayNode item = JOM.createArrayNode();
+			item.add(entry.getLon());
+			item.add(entry.getLat());
+			item.add(Double.isNaN(entry.getEle())?0:entry.getEle());
+			item.add(entry.getMillis());
+			parts.add(item);
+		}
+		result.set("route",parts);
+		result.put("distance", res.getDistance());
+		result.put("millis", res.getMillis());
+
+		return result;
+	}
+}
@@ -0,0 +1,195 @@
+/*
+ * Copyright: Almende B.V. (2014), Rotterdam, The Netherlands
+ * License: The Apache Software License, Version 2.0
+ */
+package com.almende.bridge.swarm.navigation;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.almende.util.jackson.JOM;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * Dedicated worker pool for routing queries. A fixed number of workers
+ * serves a bounded queue; queries arriving at a full queue are rejected
+ * right away instead of piling up on the transport threads.
+ */
+public class RoutingExecutor {
+	private final ThreadPoolExecutor	pool;
+	private final int					queueSize;
+	private final long					timeout;
+
+	private final AtomicLong			submitted	= new AtomicLong();
+	private final AtomicLong			rejected	= new AtomicLong();
+	private final AtomicLong			timeouts	= new AtomicLong();
+	private final AtomicLong			completed	= new AtomicLong();
+	private final AtomicLong			failed		= new AtomicLong();
+	private final AtomicLong			waitSum		= new AtomicLong();
+	private final AtomicLong			runSum		= new AtomicLong();
+	private final AtomicLong			maxLatency	= new AtomicLong();
+
+	/**
+	 * Instantiates a new routing executor.
+	 *
+	 * @param workers
+	 *            the number of worker threads
+	 * @param queueSize
+	 *            the maximum number of waiting queries
+	 * @param timeout
+	 *            the maximum time (millis) a caller waits for its query
+	 */
+	public RoutingExecutor(final int workers, final int queueSize,
+			final long timeout) {
+		this.queueSize = queueSize;
+		this.timeout = timeout;
+		this.pool = new ThreadPoolExecutor(workers, workers, 60,
+				TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(queueSize),
+				new ThreadFactory() {
+					private final AtomicInteger	count	= new AtomicInteger();
+
+					@Override
+					public Thread newThread(final Runnable r) {
+						final Thread thread = new Thread(r, "routing-"
+								+ count.incrementAndGet());
+						thread.setDaemon(true);
+						return thread;
+					}
+				}, new ThreadPoolExecutor.AbortPolicy());
+	}
+
+	/**
+	 * Run a routing query on the worker pool and wait for its result.
+	 *
+	 * @param <T>
+	 *            the result type
+	 * @param query
+	 *            the query
+	 * @return the result
+	 * @throws IllegalStateException
+	 *             if the queue is full or the query timed out
+	 */
+	public <T> T execute(final Callable<T> query) {
+		final Future<T> future = submit(query);
+		try {
+			return future.get(timeout, TimeUnit.MILLISECONDS);
+		} catch (TimeoutException e) {
+			timeouts.incrementAndGet();
+			future.cancel(true);
+			throw new IllegalStateException("Routing query timed out after "
+					+ timeout + "ms");
+		} catch (InterruptedException e) {
+			future.cancel(true);
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted waiting for route", e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw new IllegalStateException(e.getCause());
+		}
+	}
+
+	/**
+	 * Submit a routing query to the worker pool.
+	 *
+	 * @param <T>
+	 *            the result type
+	 * @param query
+	 *            the query
+	 * @return the future result
+	 * @throws IllegalStateException
+	 *             if the queue is full
+	 */
+	public <T> Future<T> submit(final Callable<T> query) {
+		final long queued = System.nanoTime();
+		submitted.incrementAndGet();
+		try {
+			return pool.submit(new Callable<T>() {
+				@Override
+				public T call() throws Exception {
+					final long started = System.nanoTime();
+					waitSum.addAndGet(started - queued);
+					boolean success = false;
+					try {
+						final T result = query.call();
+						success = true;
+						return result;
+					} finally {
+						final long done = System.nanoTime();
+						runSum.addAndGet(done - started);
+						updateMax(done - queued);
+						if (success) {
+							completed.incrementAndGet();
+						} else {
+							failed.incrementAndGet();
+						}
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			rejected.incrementAndGet();
+			throw new IllegalStateException("Routing queue full ("
+					+ queueSize + " waiting), try again later.");
+		}
+	}
+
+	private void updateMax(final long latency) {
+		long current = maxLatency.get();
+		while (latency > current
+				&& !maxLatency.compareAndSet(current, latency)) {
+			current = maxLatency.get();
+		}
+	}
+
+	/**
+	 * Gets the number of worker threads.
+	 *
+	 * @return the workers
+	 */
+	public int getWorkers() {
+		return pool.getMaximumPoolSize();
+	}
+
+	/**
+	 * Gets the executor statistics: queue depth, active workers, counters and
+	 * latencies in milliseconds.
+	 *
+	 * @return the stats
+	 */
+	public ObjectNode getStats() {
+		final ObjectNode result = JOM.createObjectNode();
+		final long finished = completed.get() + failed.get();
+		result.put("workers", pool.getMaximumPoolSize());
+		result.put("active", pool.getActiveCount());
+		result.put("queueDepth", pool.getQueue().size());
+		result.put("queueSize", queueSize);
+		result.put("submitted", submitted.get());
+		result.put("completed", completed.get());
+		result.put("failed", failed.get());
+		result.put("rejected", rejected.get());
+		result.put("timeouts", timeouts.get());
+		result.put("avgQueueMillis", finished > 0 ? waitSum.get() / finished
+				/ 1e6 : 0);
+		result.put("avgRunMillis", finished > 0 ? runSum.get() / finished
+				/ 1e6 : 0);
+		result.put("maxLatencyMillis", maxLatency.get() / 1e6);
+		return result;
+	}
+
+	/**
+	 * Shutdown the worker pool.
+	 */
+	public void shutdown() {
+		pool.shutdown();
+	}
+}
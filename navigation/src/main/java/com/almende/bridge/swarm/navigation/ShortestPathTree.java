@@ -0,0 +1,372 @@
+/*
+ * Copyright: Almende B.V. (2014), Rotterdam, The Netherlands
+ * License: The Apache Software License, Version 2.0
+ */
+package com.almende.bridge.swarm.navigation;
+
+import java.util.Arrays;
+import java.util.PriorityQueue;
+
+import com.graphhopper.routing.util.DefaultEdgeFilter;
+import com.graphhopper.routing.util.FlagEncoder;
+import com.graphhopper.storage.Graph;
+import com.graphhopper.util.EdgeExplorer;
+import com.graphhopper.util.EdgeIterator;
+
+import gnu.trove.map.hash.TIntIntHashMap;
+
+/**
+ * Travel time tree rooted in a single graph node, grown incrementally with
+ * Dijkstra over the base graph (without CH shortcuts). A reverse tree holds
+ * the travel times from every settled node towards the root, a forward tree
+ * the travel times from the root to every settled node. Weights are in
+ * milliseconds, computed the same way GraphHopper computes route times.
+ * Optionally the tree stops growing once it reached a maximum number of
+ * nodes, which bounds both its memory and the time a single far node can
+ * hold it.
+ */
+public class ShortestPathTree {
+	private static final int		INITIALSIZE	= 1024;
+
+	private final FlagEncoder		encoder;
+	private final RoadClosures		closures;
+	private final EdgeExplorer		explorer;
+	private final int				root;
+	private final boolean			reverse;
+	private final int				maxSize;
+	private final TIntIntHashMap	slots		= new TIntIntHashMap(
+														INITIALSIZE, 0.5f,
+														-1, -1);
+	private final PriorityQueue<Label>	queue	= new PriorityQueue<Label>();
+
+	private int[]					nodes		= new int[INITIALSIZE];
+	private int[]					parents		= new int[INITIALSIZE];
+	private int[]					edges		= new int[INITIALSIZE];
+	private double[]				weights		= new double[INITIALSIZE];
+	private double[]				distances	= new double[INITIALSIZE];
+	private boolean[]				settled		= new boolean[INITIALSIZE];
+	private int						size		= 0;
+
+	/**
+	 * Instantiates a new shortest path tree.
+	 *
+	 * @param graph
+	 *            the graph, shortcuts are skipped through its base graph
+	 * @param encoder
+	 *            the flag encoder of the vehicle
+	 * @param root
+	 *            the root node
+	 * @param reverse
+	 *            true for travel times towards the root, false for travel
+	 *            times from the root
+	 */
+	public ShortestPathTree(final Graph graph, final FlagEncoder encoder,
+			final int root, final boolean reverse) {
+		this(graph, encoder, root, reverse, null);
+	}
+
+	/**
+	 * Instantiates a new shortest path tree, avoiding closed roads.
+	 *
+	 * @param graph
+	 *            the graph, shortcuts are skipped through its base graph
+	 * @param encoder
+	 *            the flag encoder of the vehicle
+	 * @param root
+	 *            the root node
+	 * @param reverse
+	 *            true for travel times towards the root, false for travel
+	 *            times from the root
+	 * @param closures
+	 *            the road closures, may be null
+	 */
+	public ShortestPathTree(final Graph graph, final FlagEncoder encoder,
+			final int root, final boolean reverse, final RoadClosures closures) {
+		this(graph, encoder, root, reverse, closures, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Instantiates a new shortest path tree, avoiding closed roads, that
+	 * stops growing at a maximum number of nodes.
+	 *
+	 * @param graph
+	 *            the graph, shortcuts are skipped through its base graph
+	 * @param encoder
+	 *            the flag encoder of the vehicle
+	 * @param root
+	 *            the root node
+	 * @param reverse
+	 *            true for travel times towards the root, false for travel
+	 *            times from the root
+	 * @param closures
+	 *            the road closures, may be null
+	 * @param maxSize
+	 *            the maximum number of nodes
+	 */
+	public ShortestPathTree(final Graph graph, final FlagEncoder encoder,
+			final int root, final boolean reverse, final RoadClosures closures,
+			final int maxSize) {
+		this.encoder = encoder;
+		this.closures = closures;
+		this.root = root;
+		this.reverse = reverse;
+		this.maxSize = maxSize;
+		this.explorer = graph.getBaseGraph().createEdgeExplorer(
+				new DefaultEdgeFilter(encoder, reverse, !reverse));
+		final int slot = addSlot(root);
+		weights[slot] = 0;
+		distances[slot] = 0;
+		queue.add(new Label(slot, 0));
+	}
+
+	/**
+	 * Gets the root.
+	 *
+	 * @return the root
+	 */
+	public int getRoot() {
+		return root;
+	}
+
+	/**
+	 * Checks if this is a reverse tree.
+	 *
+	 * @return true, if reverse
+	 */
+	public boolean isReverse() {
+		return reverse;
+	}
+
+	/**
+	 * Grow the tree until the given node is settled.
+	 *
+	 * @param node
+	 *            the node
+	 * @param maxMillis
+	 *            the travel time bound of the search
+	 * @return true, if the node is settled
+	 */
+	public synchronized boolean settle(final int node, final double maxMillis) {
+		while (!isSettled(node)) {
+			if (!next(maxMillis)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Grow the tree until all given nodes are settled.
+	 *
+	 * @param targets
+	 *            the nodes, negative ones (not on the map) are skipped
+	 * @param maxMillis
+	 *            the travel time bound of the search
+	 * @return the number of nodes settled
+	 */
+	public synchronized int settleAll(final int[] targets,
+			final double maxMillis) {
+		int count = 0;
+		for (int target : targets) {
+			if (target >= 0 && settle(target, maxMillis)) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Grow the tree until all nodes within the travel time bound are settled.
+	 *
+	 * @param maxMillis
+	 *            the travel time bound
+	 */
+	public synchronized void grow(final double maxMillis) {
+		while (next(maxMillis)) {}
+	}
+
+	/**
+	 * Checks if a node is settled.
+	 *
+	 * @param node
+	 *            the node
+	 * @return true, if settled
+	 */
+	public synchronized boolean isSettled(final int node) {
+		final int slot = slots.get(node);
+		return slot >= 0 && settled[slot];
+	}
+
+	/**
+	 * Gets the travel time between node and root.
+	 *
+	 * @param node
+	 *            the node
+	 * @return the millis, or -1 if the node isn't settled
+	 */
+	public synchronized double getMillis(final int node) {
+		final int slot = slots.get(node);
+		return slot >= 0 && settled[slot] ? weights[slot] : -1;
+	}
+
+	/**
+	 * Gets the road distance between node and root.
+	 *
+	 * @param node
+	 *            the node
+	 * @return the distance in meters, or -1 if the node isn't settled
+	 */
+	public synchronized double getDistance(final int node) {
+		final int slot = slots.get(node);
+		return slot >= 0 && settled[slot] ? distances[slot] : -1;
+	}
+
+	/**
+	 * Gets the parent of a settled node, which is the next node towards the
+	 * root.
+	 *
+	 * @param node
+	 *            the node
+	 * @return the parent, or -1 for the root or unsettled nodes
+	 */
+	public synchronized int getParent(final int node) {
+		final int slot = slots.get(node);
+		if (slot < 0 || !settled[slot] || parents[slot] < 0) {
+			return -1;
+		}
+		return nodes[parents[slot]];
+	}
+
+	/**
+	 * Gets the edge between a settled node and its parent.
+	 *
+	 * @param node
+	 *            the node
+	 * @return the edge, or -1 for the root or unsettled nodes
+	 */
+	public synchronized int getParentEdge(final int node) {
+		final int slot = slots.get(node);
+		if (slot < 0 || !settled[slot]) {
+			return -1;
+		}
+		return edges[slot];
+	}
+
+	/**
+	 * Gets the number of nodes reached so far.
+	 *
+	 * @return the size
+	 */
+	public synchronized int size() {
+		return size;
+	}
+
+	/**
+	 * Checks if the tree reached its maximum number of nodes; it won't grow
+	 * any further.
+	 *
+	 * @return true, if full
+	 */
+	public synchronized boolean isFull() {
+		return size >= maxSize;
+	}
+
+	/**
+	 * Calculates the travel time of an edge in the search direction.
+	 *
+	 * @param iter
+	 *            the edge, with the node being expanded as base node
+	 * @return the millis, or infinity if the edge can't be used. Closed roads
+	 *         add the closure penalty.
+	 */
+	protected double calcMillis(final EdgeIterator iter) {
+		final long flags = iter.getFlags();
+		final double speed = reverse ? encoder.getReverseSpeed(flags)
+				: encoder.getSpeed(flags);
+		if (speed <= 0) {
+			return Double.POSITIVE_INFINITY;
+		}
+		final double millis = iter.getDistance() * 3600 / speed;
+		return closures != null ? millis + closures.getPenalty(iter.getEdge())
+				: millis;
+	}
+
+	private boolean next(final double maxMillis) {
+		if (size >= maxSize) {
+			return false;
+		}
+		Label label = queue.poll();
+		while (label != null
+				&& (settled[label.slot] || label.weight > weights[label.slot])) {
+			label = queue.poll();
+		}
+		if (label == null) {
+			return false;
+		}
+		if (label.weight > maxMillis) {
+			queue.add(label);
+			return false;
+		}
+		final int slot = label.slot;
+		settled[slot] = true;
+
+		final EdgeIterator iter = explorer.setBaseNode(nodes[slot]);
+		while (iter.next()) {
+			final double millis = calcMillis(iter);
+			if (Double.isInfinite(millis)) {
+				continue;
+			}
+			final int adj = iter.getAdjNode();
+			int adjSlot = slots.get(adj);
+			if (adjSlot < 0) {
+				adjSlot = addSlot(adj);
+			} else if (settled[adjSlot]) {
+				continue;
+			}
+			final double weight = weights[slot] + millis;
+			if (weight < weights[adjSlot]) {
+				weights[adjSlot] = weight;
+				distances[adjSlot] = distances[slot] + iter.getDistance();
+				parents[adjSlot] = slot;
+				edges[adjSlot] = iter.getEdge();
+				queue.add(new Label(adjSlot, weight));
+			}
+		}
+		return true;
+	}
+
+	private int addSlot(final int node) {
+		if (size == nodes.length) {
+			final int capacity = size * 2;
+			nodes = Arrays.copyOf(nodes, capacity);
+			parents = Arrays.copyOf(parents, capacity);
+			edges = Arrays.copyOf(edges, capacity);
+			weights = Arrays.copyOf(weights, capacity);
+			distances = Arrays.copyOf(distances, capacity);
+			settled = Arrays.copyOf(settled, capacity);
+		}
+		final int slot = size++;
+		nodes[slot] = node;
+		parents[slot] = -1;
+		edges[slot] = -1;
+		weights[slot] = Double.POSITIVE_INFINITY;
+		settled[slot] = false;
+		slots.put(node, slot);
+		return slot;
+	}
+
+	private static class Label implements Comparable<Label> {
+		final int		slot;
+		final double	weight;
+
+		Label(final int slot, final double weight) {
+			this.slot = slot;
+			this.weight = weight;
+		}
+
+		@Override
+		public int compareTo(final Label o) {
+			return Double.compare(weight, o.weight);
+		}
+	}
+}
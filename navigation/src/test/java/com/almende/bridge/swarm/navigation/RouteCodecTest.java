@@ -0,0 +1,99 @@
+/*
+ * Copyright: Almende B.V. (2014), Rotterdam, The Netherlands
+ * License: The Apache Software License, Version 2.0
+ */
+package com.almende.bridge.swarm.navigation;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.List;
+
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+
+/**
+ * Tests for {@link RouteCodec}.
+ */
+public class RouteCodecTest {
+
+	private static ArrayNode route(final double[][] points) {
+		final ArrayNode result = new ObjectMapper().createArrayNode();
+		for (double[] point : points) {
+			final ArrayNode item = result.addArray();
+			item.add(point[0]);
+			item.add(point[1]);
+			item.add(point[2]);
+			item.add((long) point[3]);
+		}
+		return result;
+	}
+
+	/**
+	 * Positions survive with 5 decimals, millis exactly, elevation is
+	 * dropped; also for negative coordinates and steps.
+	 */
+	@Test
+	public void testRoundTrip() {
+		final double[][] points = { { 4.479624, 51.908913, 3, 0 },
+				{ 4.48001, 51.90702, 0, 1500 },
+				{ -0.12345, -33.86785, 0, 3600000 },
+				{ -0.12345, -33.86785, 0, 3600001 } };
+		final List<double[]> decoded = RouteCodec.decode(RouteCodec
+				.encode(route(points)));
+		assertEquals(points.length, decoded.size());
+		for (int i = 0; i < points.length; i++) {
+			assertEquals(points[i][0], decoded.get(i)[0], 0.5e-5);
+			assertEquals(points[i][1], decoded.get(i)[1], 0.5e-5);
+			assertEquals(0, decoded.get(i)[2], 0);
+			assertEquals(points[i][3], decoded.get(i)[3], 0);
+		}
+	}
+
+	/**
+	 * An empty route encodes as an empty string, and back.
+	 */
+	@Test
+	public void testEmpty() {
+		assertEquals("", RouteCodec.encode(route(new double[0][])));
+		assertTrue(RouteCodec.decode("").isEmpty());
+	}
+
+	/**
+	 * Truncated encodings are rejected as illegal arguments.
+	 */
+	@Test
+	public void testTruncated() {
+		final String encoded = RouteCodec.encode(route(new double[][] {
+				{ 4.479624, 51.908913, 0, 0 }, { 4.48001, 51.90702, 0, 1500 } }));
+		for (int length = 1; length < encoded.length(); length++) {
+			try {
+				final List<double[]> decoded = RouteCodec.decode(encoded
+						.substring(0, length));
+				// Cut between two points, the first one is complete.
+				assertEquals(1, decoded.size());
+			} catch (IllegalArgumentException e) {
+				// Expected
+			}
+		}
+	}
+
+	/**
+	 * Characters outside of the encoding, and values too long for a long,
+	 * are rejected as illegal arguments.
+	 */
+	@Test
+	public void testMalformed() {
+		for (String encoded : new String[] { " ??", "??\u00ff", "~~~~~~~~~~~~~~?" }) {
+			try {
+				RouteCodec.decode(encoded);
+				fail("Decoded malformed route:" + encoded);
+			} catch (IllegalArgumentException e) {
+				// Expected
+			}
+		}
+	}
+}
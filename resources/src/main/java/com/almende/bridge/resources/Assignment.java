@@ -0,0 +1,113 @@
+/*
+ * Copyright: Almende B.V. (2014), Rotterdam, The Netherlands
+ * License: The Apache Software License, Version 2.0
+ */
+package com.almende.bridge.resources;
+
+import java.util.Arrays;
+
+/**
+ * Minimum cost assignment of rows (tasks) to columns (resources), with the
+ * Hungarian method in O(n^2 m). Infinite costs mark pairs that may not be
+ * assigned; rows that can only be assigned at infinite cost stay unassigned.
+ */
+public final class Assignment {
+
+	private Assignment() {}
+
+	/**
+	 * Solve the assignment problem.
+	 *
+	 * @param cost
+	 *            the cost matrix, cost[row][column]; all rows of equal length
+	 * @return per row, the assigned column, or -1
+	 */
+	public static int[] solve(final double[][] cost) {
+		final int rows = cost.length;
+		final int columns = rows > 0 ? cost[0].length : 0;
+		final int[] result = new int[rows];
+		Arrays.fill(result, -1);
+		if (rows == 0 || columns == 0) {
+			return result;
+		}
+		// Infinite costs get a finite penalty above any complete assignment.
+		double max = 0;
+		for (double[] row : cost) {
+			for (double value : row) {
+				if (!Double.isInfinite(value)) {
+					max = Math.max(max, Math.abs(value));
+				}
+			}
+		}
+		final double penalty = (max + 1) * (Math.min(rows, columns) + 1);
+		// The method needs at most as many rows as columns.
+		final boolean transposed = rows > columns;
+		final int n = transposed ? columns : rows;
+		final int m = transposed ? rows : columns;
+		final double[][] a = new double[n + 1][m + 1];
+		for (int i = 0; i < n; i++) {
+			for (int j = 0; j < m; j++) {
+				final double value = transposed ? cost[j][i] : cost[i][j];
+				a[i + 1][j + 1] = Double.isInfinite(value) ? penalty : value;
+			}
+		}
+
+		final double[] u = new double[n + 1];
+		final double[] v = new double[m + 1];
+		final int[] p = new int[m + 1];
+		final int[] way = new int[m + 1];
+		final double[] minv = new double[m + 1];
+		final boolean[] used = new boolean[m + 1];
+		for (int i = 1; i <= n; i++) {
+			p[0] = i;
+			int j0 = 0;
+			Arrays.fill(minv, Double.POSITIVE_INFINITY);
+			Arrays.fill(used, false);
+			do {
+				used[j0] = true;
+				final int i0 = p[j0];
+				double delta = Double.POSITIVE_INFINITY;
+				int j1 = 0;
+				for (int j = 1; j <= m; j++) {
+					if (!used[j]) {
+						final double cur = a[i0][j] - u[i0] - v[j];
+						if (cur < minv[j]) {
+							minv[j] = cur;
+							way[j] = j0;
+						}
+						if (minv[j] < delta) {
+							delta = minv[j];
+							j1 = j;
+						}
+					}
+				}
+				for (int j = 0; j <= m; j++) {
+					if (used[j]) {
+						u[p[j]] += delta;
+						v[j] -= delta;
+					} else {
+						minv[j] -= delta;
+					}
+				}
+				j0 = j1;
+			} while (p[j0] != 0);
+			do {
+				final int j1 = way[j0];
+				p[j0] = p[j1];
+				j0 = j1;
+			} while (j0 != 0);
+		}
+
+		for (int j = 1; j <= m; j++) {
+			if (p[j] == 0) {
+				continue;
+			}
+			final int row = transposed ? j - 1 : p[j] - 1;
+			final int column = transposed ? p[j] - 1 : j - 1;
+			if (!Double.isInfinite(cost[row][column])) {
+				result[row] = column;
+			}
+		}
+		return result;
+	}
+}
@@ -0,0 +1,197 @@
+/*
+ * Copyright: Almende B.V. (2014), Rotterdam, The Netherlands
+ * License: The Apache Software License, Version 2.0
+ */
+package com.almende.bridge.resources;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+import org.joda.time.DateTime;
+
+/**
+ * The volunteers of a task, ranked by (eta, uri), so equal etas don't
+ * overwrite each other. A reverse index from uri to entry gives O(log n)
+ * insert, removal and next best lookup. Candidates that have been offered the
+ * task are marked and kept out of a second ranking of the ones not yet asked,
+ * so each next offer is O(log n) as well. Not thread safe, the {@link Task}
+ * synchronizes.
+ */
+public class CandidateQueue {
+	private final TreeSet<Candidate>	order	= new TreeSet<Candidate>();
+	private final TreeSet<Candidate>	waiting	= new TreeSet<Candidate>();
+	private final Map<URI, Candidate>	index	= new HashMap<URI, Candidate>();
+	private int							offered	= 0;
+
+	/**
+	 * Add a candidate, replacing its previous eta if it volunteered before.
+	 *
+	 * @param eta
+	 *            the eta
+	 * @param uri
+	 *            the uri
+	 */
+	public void add(final DateTime eta, final URI uri) {
+		final Candidate old = index.get(uri);
+		final Candidate candidate = new Candidate(eta, uri);
+		if (old != null) {
+			remove(uri);
+			candidate.offered = old.offered;
+			if (candidate.offered) {
+				offered++;
+			}
+		}
+		if (!candidate.offered) {
+			waiting.add(candidate);
+		}
+		order.add(candidate);
+		index.put(uri, candidate);
+	}
+
+	/**
+	 * Remove a candidate.
+	 *
+	 * @param uri
+	 *            the uri
+	 * @return true, if it was a candidate
+	 */
+	public boolean remove(final URI uri) {
+		final Candidate candidate = index.remove(uri);
+		if (candidate == null) {
+			return false;
+		}
+		order.remove(candidate);
+		if (candidate.offered) {
+			offered--;
+		} else {
+			waiting.remove(candidate);
+		}
+		return true;
+	}
+
+	/**
+	 * Gets the best candidate.
+	 *
+	 * @return the candidate, or null if there are none
+	 */
+	public Candidate first() {
+		return order.isEmpty() ? null : order.first();
+	}
+
+	/**
+	 * Offer the task to the best candidates that haven't been offered it yet.
+	 *
+	 * @param count
+	 *            the number of candidates
+	 * @return the uris of the candidates, best first
+	 */
+	public List<URI> offer(final int count) {
+		final List<URI> result = new ArrayList<URI>(Math.max(0, count));
+		if (count <= 0) {
+			return result;
+		}
+		while (result.size() < count && !waiting.isEmpty()) {
+			final Candidate candidate = waiting.pollFirst();
+			candidate.offered = true;
+			offered++;
+			result.add(candidate.uri);
+		}
+		return result;
+	}
+
+	/**
+	 * Mark a candidate as offered the task, e.g. by a batch assignment.
+	 *
+	 * @param uri
+	 *            the uri
+	 */
+	public void markOffered(final URI uri) {
+		final Candidate candidate = index.get(uri);
+		if (candidate != null && !candidate.offered) {
+			waiting.remove(candidate);
+			candidate.offered = true;
+			offered++;
+		}
+	}
+
+	/**
+	 * Gets the number of candidates with an outstanding offer.
+	 *
+	 * @return the offered
+	 */
+	public int getOffered() {
+		return offered;
+	}
+
+	/**
+	 * Gets the number of candidates.
+	 *
+	 * @return the size
+	 */
+	public int size() {
+		return order.size();
+	}
+
+	/**
+	 * Gets the candidates, best first.
+	 *
+	 * @return a copy of the candidates
+	 */
+	public List<Candidate> toList() {
+		return new ArrayList<Candidate>(order);
+	}
+
+	/**
+	 * A volunteer for a task.
+	 */
+	public static final class Candidate implements Comparable<Candidate> {
+		private final DateTime	eta;
+		private final URI		uri;
+		private boolean			offered	= false;
+
+		private Candidate(final DateTime eta, final URI uri) {
+			this.eta = eta;
+			this.uri = uri;
+		}
+
+		/**
+		 * Gets the eta.
+		 *
+		 * @return the eta
+		 */
+		public DateTime getEta() {
+			return eta;
+		}
+
+		/**
+		 * Gets the uri.
+		 *
+		 * @return the uri
+		 */
+		public URI getUri() {
+			return uri;
+		}
+
+		@Override
+		public int compareTo(final Candidate other) {
+			final int result = Long.compare(eta.getMillis(),
+					other.eta.getMillis());
+			return result != 0 ? result : uri.compareTo(other.uri);
+		}
+
+		@Override
+		public boolean equals(final Object other) {
+			return other instanceof Candidate
+					&& compareTo((Candidate) other) == 0;
+		}
+
+		@Override
+		public int hashCode() {
+			return uri.hashCode();
+		}
+	}
+}
@@ -9,9 +9,16 @@ import java.net.URI;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -36,6 +43,8 @@ import com.almende.util.TypeUtil;
 import com.almende.util.URIUtil;
 import com.almende.util.jackson.JOM;
 import com.almende.util.uuid.UUID;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ArrayNode;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 
 /**
@@ -45,18 +54,64 @@ import com.fasterxml.jackson.databind.node.ObjectNode;
 public class DemoGenerator extends NodeAgent {
 	private static final Logger			LOG					= Logger.getLogger(DemoGenerator.class
 																	.getName());
+	private static final double			CLOSURERADIUS		= 50;
+	private static final int			REGISTERBATCH		= 500;
+	private static final long			DISPATCHWINDOW		= 10000;
+	private static final int			EARLYCANDIDATES		= 3;
+	private static final long			RETAINMILLIS		= 600000;
+	private static final long			EVICTINTERVAL		= 60000;
 	private Map<String, List<double[]>>	placesOfInterest	= new HashMap<String, List<double[]>>();
 	private Map<String, ObjectNode>		properties			= new HashMap<String, ObjectNode>();
 	private EventBus					events				= null;
 
-	private Map<String, Task>			tasks				= new HashMap<String, Task>();
+	private final TaskRegistry			tasks				= new TaskRegistry();
 	private boolean						stopEvac			= false;
+	private final Scenario.Target		scenarioTarget		= new ScenarioTarget();
+	private ResourceHost				resourceHost		= null;
+	private final List<String>			batch				= new ArrayList<String>();
+	private final AtomicLong			earlyClosed			= new AtomicLong();
+	private final AtomicLong			deadlineClosed		= new AtomicLong();
+	private final Histogram				timeToAssign		= new Histogram();
 
 	@Override
 	public void onReady() {
+		if (getConfig().has("clockSpeed")) {
+			SimClock.setSpeed(getConfig().get("clockSpeed").asDouble());
+		}
 		doScenarioSwitch("reset");
 		events = new EventBus(getScheduler(), caller, getGraph(), "SFN");
 		addNode2SFN();
+		evictTasks();
+		final JsonNode simAgents = getConfig().get("simAgents");
+		if (simAgents != null
+				&& FleetSnapshot.isEnabled(simAgents.get("snapshot"))
+				&& !(simAgents.has("virtual") && simAgents.get("virtual")
+						.asBoolean())) {
+			schedule("restoreFleet", null, 0);
+		}
+	}
+
+	/**
+	 * Sets the speed of the simulation clock, e.g. 10 to run the scenario ten
+	 * times faster than real time.
+	 *
+	 * @param speed
+	 *            the simulated millis per wall clock milli
+	 */
+	public void setClockSpeed(@Name("speed") double speed) {
+		SimClock.setSpeed(speed);
+	}
+
+	/**
+	 * Gets the simulation clock: current time and speed.
+	 *
+	 * @return the clock
+	 */
+	public ObjectNode getClock() {
+		final ObjectNode result = JOM.createObjectNode();
+		result.put("time", SimClock.now().toString());
+		result.put("speed", SimClock.getSpeed());
+		return result;
 	}
 
 	/**
@@ -122,19 +177,38 @@ public class DemoGenerator extends NodeAgent {
 
 		config.put("lat", latitude);
 		config.put("lon", longitude);
-		config.put("before", DateTime.now().plusMinutes(minutes).getMillis());
+		config.put("before", SimClock.now().plusMinutes(minutes).getMillis());
 		config.put("planName", planName);
 		config.put("resType", type);
 		config.set("taskParams", taskParams);
 		config.put("id", new UUID().toString());
-		tasks.put(config.get("id").asText(), new Task(config));
+		final Task task = new Task(config);
+		task.setCreated(SimClock.millis());
+		tasks.put(task);
 
 		params.add("task", config);
 		params.add("reportTo", getUrls().get(0));
 
-		events.sendEvent(new JSONRequest("taskRequest", params));
+		if (isBatchDispatch()) {
+			synchronized (batch) {
+				batch.add(config.get("id").asText());
+				if (batch.size() == 1) {
+					schedule("handleBatch", null,
+							SimClock.wallDelay(getDispatchWindow()));
+				}
+			}
+		} else {
+			// The deadline, if the window doesn't close early.
+			task.setDeadline(schedule("handleTask", config,
+					SimClock.wallDelay(getDispatchWindow())));
+		}
 
-		schedule("handleTask", config, 10000);
+		final ResourceIndex index = getResourceIndex();
+		if (index != null) {
+			offerTask(index, task, params);
+		} else {
+			events.sendEvent(new JSONRequest("taskRequest", params));
+		}
 		LOG.warning("Added task:" + config);
 	}
 
@@ -147,13 +221,31 @@ public class DemoGenerator extends NodeAgent {
 	 *            the task config
 	 * @param eta
 	 *            the eta
+	 * @param resource
+	 *            the virtual resource id, if the sender is a resource host
 	 */
 	public void volunteer(@Sender URI sender,
-			@Name("task") ObjectNode taskConfig, @Name("eta") DateTime eta) {
+			@Name("task") ObjectNode taskConfig, @Name("eta") DateTime eta,
+			@Optional @Name("resource") String resource) {
 		final Task task = tasks.get(taskConfig.get("id").asText());
 		if (task != null) {
 			synchronized (task) {
-				task.setCandidate(eta, sender);
+				if (task.getState().isFinal()) {
+					return;
+				}
+				task.setCandidate(eta,
+						resource != null ? ResourceHost.address(sender,
+								resource) : sender);
+				// Batches keep their window, to collect the tasks.
+				if (!isBatchDispatch()
+						&& task.isComplete(getEarlyCandidates())
+						&& task.getState() == TaskRegistry.State.open) {
+					earlyClosed.incrementAndGet();
+					if (task.getDeadline() != null) {
+						getScheduler().cancel(task.getDeadline());
+					}
+					handleTask(taskConfig.get("id").asText());
+				}
 			}
 		}
 	}
@@ -167,30 +259,53 @@ public class DemoGenerator extends NodeAgent {
 	 *            the id
 	 * @param confirm
 	 *            the confirm
+	 * @param resource
+	 *            the virtual resource id, if the sender is a resource host
 	 */
 	public void acknowledge(@Sender URI sender, @Name("id") String id,
-			@Name("confirm") boolean confirm) {
+			@Name("confirm") boolean confirm,
+			@Optional @Name("resource") String resource) {
+		if (resource != null) {
+			sender = ResourceHost.address(sender, resource);
+		}
 		if (confirm) {
-			tasks.remove(id);
+			final Task task = tasks.get(id);
+			if (task != null
+					&& tasks.transition(id, TaskRegistry.State.offering,
+							TaskRegistry.State.assigned)) {
+				timeToAssign.add(SimClock.millis() - task.getCreated());
+			} else {
+				// Lost the race of a parallel offer, or the task expired.
+				LOG.info("Task already assigned or expired, releasing:"
+						+ sender);
+				try {
+					sendStop(sender);
+				} catch (IOException e) {
+					LOG.log(Level.WARNING, "Couldn't release resource", e);
+				}
+			}
 		} else {
 			final Task task = tasks.get(id);
 			if (task != null) {
 				synchronized (task) {
-					URI next = task.getNext(sender);
-					LOG.warning("Getting an alternative resource:" + next);
-					if (next != null) {
-						try {
-							final Params params = new Params();
-							params.add("plan", task.getConfig().get("planName")
-									.asText());
-							params.add("id", id);
-							params.set("params",
-									task.getConfig().get("taskParams"));
-							call(next, "setPlan", params);
-						} catch (IOException e) {
-							LOG.log(Level.WARNING, "Couldn't send plan", e);
+					if (tasks.getState(id) != TaskRegistry.State.offering) {
+						// Assigned through a parallel offer, or given up on.
+						LOG.info("Decline of task no longer on offer:" + id);
+						return;
+					}
+					final List<URI> next = task.offer(sender, getMultiOffer());
+					LOG.warning("Getting alternative resources:" + next);
+					if (!next.isEmpty()) {
+						for (URI alternative : next) {
+							try {
+								sendPlan(alternative, getPlanParams(id, task));
+							} catch (IOException e) {
+								LOG.log(Level.WARNING, "Couldn't send plan", e);
+							}
 						}
-					} else {
+					} else if (task.getCandidates().isEmpty()) {
+						tasks.transition(id, TaskRegistry.State.offering,
+								TaskRegistry.State.failed);
 						LOG.log(Level.WARNING,
 								"still no candidates, gotta retry!");
 					}
@@ -211,19 +326,23 @@ public class DemoGenerator extends NodeAgent {
 		final Task task = tasks.get(id);
 		if (task != null) {
 			synchronized (task) {
-				URI closest = task.getClosest();
-				if (closest != null) {
+				if (!tasks.transition(id, TaskRegistry.State.open,
+						TaskRegistry.State.offering)) {
+					// Closed early (this is the deadline), or expired.
+					return;
+				}
+				if (!task.isComplete(getEarlyCandidates())) {
+					deadlineClosed.incrementAndGet();
+				}
+				final List<URI> closest = task.offer(null, 1);
+				if (!closest.isEmpty()) {
 					try {
-						final Params params = new Params();
-						params.add("plan", task.getConfig().get("planName")
-								.asText());
-						params.add("id", id);
-						params.set("params", task.getConfig().get("taskParams"));
-						call(closest, "setPlan", params);
+						sendPlan(closest.get(0), getPlanParams(id, task));
 					} catch (IOException e) {
 						LOG.log(Level.WARNING, "Couldn't send plan", e);
 					}
 				} else {
+					tasks.setState(id, TaskRegistry.State.failed);
 					LOG.log(Level.WARNING,
 							"No candidates available, need to retry at application level, escalate!!");
 				}
@@ -233,6 +352,232 @@ public class DemoGenerator extends NodeAgent {
 		}
 	}
 
+	/**
+	 * Handle all tasks collected in the dispatch window at once: the
+	 * volunteers are assigned to the tasks with minimal total eta, so no
+	 * resource gets more than one task. Tasks that get no volunteer of their
+	 * own fall back to handleTask.
+	 */
+	public void handleBatch() {
+		final List<String> ids;
+		synchronized (batch) {
+			ids = new ArrayList<String>(batch);
+			batch.clear();
+		}
+		final List<String> open = new ArrayList<String>(ids.size());
+		final List<List<CandidateQueue.Candidate>> offers = new ArrayList<List<CandidateQueue.Candidate>>(
+				ids.size());
+		final List<URI> resources = new ArrayList<URI>();
+		final Map<URI, Integer> columns = new HashMap<URI, Integer>();
+		for (String id : ids) {
+			final Task task = tasks.get(id);
+			if (task == null
+					|| task.getState() != TaskRegistry.State.open) {
+				continue;
+			}
+			final List<CandidateQueue.Candidate> candidates = task
+					.getCandidates();
+			for (CandidateQueue.Candidate candidate : candidates) {
+				if (!columns.containsKey(candidate.getUri())) {
+					columns.put(candidate.getUri(), resources.size());
+					resources.add(candidate.getUri());
+				}
+			}
+			open.add(id);
+			offers.add(candidates);
+		}
+		final double[][] cost = new double[open.size()][resources.size()];
+		for (int i = 0; i < cost.length; i++) {
+			Arrays.fill(cost[i], Double.POSITIVE_INFINITY);
+			for (CandidateQueue.Candidate offer : offers.get(i)) {
+				cost[i][columns.get(offer.getUri())] = offer.getEta()
+						.getMillis();
+			}
+		}
+		final int[] assigned = Assignment.solve(cost);
+		LOG.info("Batch of " + open.size() + " tasks over "
+				+ resources.size() + " volunteers");
+		for (int i = 0; i < assigned.length; i++) {
+			final String id = open.get(i);
+			if (assigned[i] < 0) {
+				handleTask(id);
+				continue;
+			}
+			final Task task = tasks.get(id);
+			if (task == null) {
+				continue;
+			}
+			final URI resource = resources.get(assigned[i]);
+			synchronized (task) {
+				// As in handleTask, a volunteer or decline on this task
+				// waits until it is on offer.
+				if (!tasks.transition(id, TaskRegistry.State.open,
+						TaskRegistry.State.offering)) {
+					continue;
+				}
+				task.markOffered(resource);
+			}
+			try {
+				sendPlan(resource, getPlanParams(id, task));
+			} catch (IOException e) {
+				LOG.log(Level.WARNING, "Couldn't send plan", e);
+			}
+		}
+	}
+
+	private Params getPlanParams(final String id, final Task task) {
+		final Params params = new Params();
+		params.add("plan", task.getConfig().get("planName").asText());
+		params.add("id", id);
+		params.set("params", task.getConfig().get("taskParams"));
+		return params;
+	}
+
+	private boolean isBatchDispatch() {
+		final JsonNode dispatch = getConfig().get("dispatch");
+		return dispatch != null && dispatch.has("mode")
+				&& "batch".equals(dispatch.get("mode").asText());
+	}
+
+	/**
+	 * Gets the dispatch statistics: how many volunteer windows closed early
+	 * or at their deadline, and the distribution of the time from task
+	 * creation to a confirmed assignment.
+	 *
+	 * @return the stats
+	 */
+	public ObjectNode getDispatchStats() {
+		final ObjectNode result = JOM.createObjectNode();
+		result.put("earlyClosed", earlyClosed.get());
+		result.put("deadlineClosed", deadlineClosed.get());
+		result.set("timeToAssign", timeToAssign.getStats());
+		result.set("tasks", tasks.getCounts());
+		return result;
+	}
+
+	/**
+	 * Gets the number of tasks per lifecycle state.
+	 *
+	 * @return the counts
+	 */
+	public ObjectNode getTaskStats() {
+		return tasks.getCounts();
+	}
+
+	/**
+	 * Expire the tasks that passed their deadline unassigned, and forget the
+	 * tasks that passed it longer than the retention time ago.
+	 */
+	public void evictTasks() {
+		final int evicted = tasks.evict(SimClock.millis(), getRetainMillis());
+		if (evicted > 0) {
+			LOG.info("Evicted " + evicted + " tasks");
+		}
+		schedule("evictTasks", null, SimClock.wallDelay(EVICTINTERVAL));
+	}
+
+	private long getRetainMillis() {
+		final JsonNode dispatch = getConfig().get("dispatch");
+		return dispatch != null && dispatch.has("retainMillis") ? dispatch
+				.get("retainMillis").asLong() : RETAINMILLIS;
+	}
+
+	private int getMultiOffer() {
+		final JsonNode dispatch = getConfig().get("dispatch");
+		return dispatch != null && dispatch.has("multiOffer") ? dispatch.get(
+				"multiOffer").asInt() : 1;
+	}
+
+	private int getEarlyCandidates() {
+		final JsonNode dispatch = getConfig().get("dispatch");
+		return dispatch != null && dispatch.has("earlyCandidates") ? dispatch
+				.get("earlyCandidates").asInt() : EARLYCANDIDATES;
+	}
+
+	private long getDispatchWindow() {
+		final JsonNode dispatch = getConfig().get("dispatch");
+		return dispatch != null && dispatch.has("windowMillis") ? dispatch
+				.get("windowMillis").asLong() : DISPATCHWINDOW;
+	}
+
+	private ResourceIndex getResourceIndex() {
+		final JsonNode simAgents = getConfig().get("simAgents");
+		if (simAgents != null && ResourceIndex.isEnabled(simAgents.get("index"))) {
+			return ResourceIndex.getInstance(simAgents.get("index"));
+		}
+		return null;
+	}
+
+	/**
+	 * Offer a task to the nearest idle resources of its type only, instead
+	 * of broadcasting it. Virtual resources are offered the task through
+	 * their host, once per host.
+	 */
+	private void offerTask(final ResourceIndex index, final Task task,
+			final Params params) {
+		final ObjectNode config = task.getConfig();
+		final String type = config.has("resType")
+				&& !config.get("resType").isNull() ? config.get("resType")
+				.asText() : null;
+		final List<URI> candidates = index.nearest(type, config.get("lon")
+				.asDouble(), config.get("lat").asDouble(), index
+				.getCandidates());
+		// All of them replying closes the volunteer window early.
+		task.setExpected(candidates.size());
+		if (candidates.isEmpty()) {
+			LOG.warning("No idle candidates for task:" + config.get("id"));
+			return;
+		}
+		final Map<URI, List<String>> hosted = new HashMap<URI, List<String>>();
+		for (URI candidate : candidates) {
+			if (ResourceHost.isVirtual(candidate)) {
+				final URI host = ResourceHost.getHost(candidate);
+				List<String> list = hosted.get(host);
+				if (list == null) {
+					list = new ArrayList<String>();
+					hosted.put(host, list);
+				}
+				list.add(ResourceHost.getResource(candidate));
+				continue;
+			}
+			try {
+				call(candidate, "taskRequest", params);
+			} catch (IOException e) {
+				LOG.log(Level.WARNING, "Couldn't offer task", e);
+			}
+		}
+		for (Entry<URI, List<String>> entry : hosted.entrySet()) {
+			final Params hostParams = new Params();
+			hostParams.setAll(params);
+			hostParams.set("resources",
+					JOM.getInstance().valueToTree(entry.getValue()));
+			try {
+				call(entry.getKey(), "taskRequest", hostParams);
+			} catch (IOException e) {
+				LOG.log(Level.WARNING, "Couldn't offer task", e);
+			}
+		}
+	}
+
+	private void sendStop(final URI resource) throws IOException {
+		if (ResourceHost.isVirtual(resource)) {
+			call(ResourceHost.getHost(resource), "stop", new Params("resource",
+					ResourceHost.getResource(resource)));
+		} else {
+			call(resource, "stop", new Params());
+		}
+	}
+
+	private void sendPlan(final URI resource, final Params params)
+			throws IOException {
+		if (ResourceHost.isVirtual(resource)) {
+			params.add("resource", ResourceHost.getResource(resource));
+			call(ResourceHost.getHost(resource), "setPlan", params);
+		} else {
+			call(resource, "setPlan", params);
+		}
+	}
+
 	/**
 	 * Store places of interest.
 	 *
@@ -252,6 +597,75 @@ public class DemoGenerator extends NodeAgent {
 			placesOfInterest.put(type, arrayList);
 		}
 		arrayList.addAll(Arrays.asList(list));
+		if ("roadblock".equals(type)) {
+			closeRoads(list);
+		}
+	}
+
+	/**
+	 * Gets the routing config of the simulated resources.
+	 *
+	 * @return the routing config, or null
+	 */
+	private ObjectNode getRoutingConfig() {
+		final JsonNode simAgents = getConfig().get("simAgents");
+		if (simAgents != null && simAgents.has("routing")) {
+			return (ObjectNode) simAgents.get("routing");
+		}
+		return null;
+	}
+
+	/**
+	 * Close the roads at the given roadblocks, so resources route around them.
+	 *
+	 * @param locations
+	 *            the roadblock locations, as [lon, lat]
+	 */
+	private void closeRoads(final double[][] locations) {
+		final ObjectNode routing = getRoutingConfig();
+		final double radius = routing != null && routing.has("closureRadius") ? routing
+				.get("closureRadius").asDouble() : CLOSURERADIUS;
+		for (double[] loc : locations) {
+			if (EmbeddedRouting.isEmbedded(routing)) {
+				EmbeddedRouting.getEngine(routing).addRoadClosure(loc[1],
+						loc[0], radius);
+				continue;
+			}
+			final Params params = new Params();
+			params.add("lat", loc[1]);
+			params.add("lon", loc[0]);
+			params.add("radius", radius);
+			try {
+				call(getNavAgent(routing), "addRoadClosure", params);
+			} catch (IOException e) {
+				LOG.log(Level.WARNING, "Couldn't close roads at roadblock", e);
+			}
+		}
+	}
+
+	/**
+	 * Reset the routing state of the scenario: reopen all roads and drop the
+	 * cached routes and destination trees.
+	 */
+	private void resetRouting() {
+		final ObjectNode routing = getRoutingConfig();
+		if (EmbeddedRouting.isEmbedded(routing)) {
+			EmbeddedRouting.getEngine(routing).reset();
+			return;
+		}
+		try {
+			call(getNavAgent(routing), "resetRouting", new Params());
+		} catch (IOException e) {
+			LOG.log(Level.WARNING, "Couldn't reset routing", e);
+		}
+	}
+
+	private URI getNavAgent(final ObjectNode routing) throws IOException {
+		final URI navAgent = EmbeddedRouting.getNavAgent(routing);
+		if (navAgent == null) {
+			throw new IOException("No routing.url configured");
+		}
+		return navAgent;
 	}
 
 	/**
@@ -260,6 +674,7 @@ public class DemoGenerator extends NodeAgent {
 	private void clearPoI() {
 		placesOfInterest.clear();
 		properties.clear();
+		resetRouting();
 	}
 
 	/**
@@ -324,30 +739,236 @@ public class DemoGenerator extends NodeAgent {
 	 *            the icon
 	 * @param tag
 	 *            the tag
+	 * @return the boot statistics
 	 */
-	public void generateAgents(@Name("type") String type,
+	public ObjectNode generateAgents(@Name("type") String type,
 			@Name("at") String at, @Name("nofAgents") int nofAgents,
 			@Name("icon") String icon, @Name("tag") String tag) {
-		// Generate X agents, at random stations
-		for (int i = 0; i < nofAgents; i++) {
-			SimulatedResource agent = new SimulatedResource();
-			AgentConfig agentConfig = new AgentConfig();
-			agentConfig.setId(URIUtil.encode(type) + "-" + i + "-"
-					+ DateTime.now().getMillis());
-			agentConfig.setAll((ObjectNode) getConfig().get("simAgents"));
-			List<double[]> stations = placesOfInterest.get(at);
-			agentConfig
-					.set("initLocation",
-							JOM.getInstance()
-									.valueToTree(
-											stations.get((int) (Math.random() * stations
-													.size()))));
-			agentConfig.put("resType", type);
-			agentConfig.put("guid", new UUID().toString());
-			agentConfig.put("tag", tag);
-			agentConfig.put("icon", icon);
-			agent.setConfig(agentConfig);
+		final ObjectNode entry = JOM.createObjectNode();
+		entry.put("type", type);
+		entry.put("at", at);
+		entry.put("nofAgents", nofAgents);
+		entry.put("icon", icon);
+		entry.put("tag", tag);
+		final ArrayNode fleet = JOM.createArrayNode();
+		fleet.add(entry);
+		return generateFleet(fleet);
+	}
+
+	/**
+	 * Generate a fleet of agents in bulk. The agents (or virtual resources)
+	 * are created in parallel, and registered at the proxy in batches per
+	 * tag, after all of them are created. Configured through the "boot"
+	 * section of the simAgents config:
+	 *
+	 * <pre>
+	 * boot:
+	 *    threads: 8
+	 *    registerBatch: 500
+	 * </pre>
+	 *
+	 * With the fleet snapshot enabled, the agents are kept in the snapshot
+	 * only, instead of a state file each, and the snapshot is written right
+	 * away (see {@link #restoreFleet()}).
+	 *
+	 * @param fleet
+	 *            the fleet, a list of {type, at, nofAgents, icon, tag}
+	 * @return the boot statistics: number of agents, and the time spent
+	 *         creating, registering and in total
+	 */
+	public ObjectNode generateFleet(@Name("fleet") ArrayNode fleet) {
+		final ObjectNode simAgents = (ObjectNode) getConfig().get("simAgents");
+		final boolean isVirtual = simAgents.has("virtual")
+				&& simAgents.get("virtual").asBoolean();
+		// Records on a single host agent, instead of an agent each.
+		final ResourceHost host = isVirtual ? getResourceHost() : null;
+
+		final Map<String, List<Callable<URI>>> agents = new LinkedHashMap<String, List<Callable<URI>>>();
+		int count = 0;
+		for (JsonNode entry : fleet) {
+			final String type = entry.get("type").asText();
+			final String icon = entry.has("icon") && !entry.get("icon").isNull() ? entry
+					.get("icon").asText() : null;
+			final String tag = entry.has("tag") && !entry.get("tag").isNull() ? entry
+					.get("tag").asText() : "empty";
+			final List<double[]> stations = placesOfInterest.get(entry
+					.get("at").asText());
+			List<Callable<URI>> list = agents.get(tag);
+			if (list == null) {
+				list = new ArrayList<Callable<URI>>();
+				agents.put(tag, list);
+			}
+			// Generate X agents, at random stations
+			for (int i = 0; i < entry.get("nofAgents").asInt(); i++) {
+				final String id = URIUtil.encode(type) + "-" + (count++) + "-"
+						+ DateTime.now().getMillis();
+				final double[] location = stations.get((int) (Math.random() * stations
+						.size()));
+				final String guid = new UUID().toString();
+				list.add(new Callable<URI>() {
+					@Override
+					public URI call() {
+						if (host != null) {
+							return host.createResource(id, type, location,
+									icon, tag, guid);
+						}
+						final ObjectNode config = JOM.createObjectNode();
+						config.set("initLocation", JOM.getInstance()
+								.valueToTree(location));
+						config.put("resType", type);
+						config.put("guid", guid);
+						config.put("tag", tag);
+						config.put("icon", icon);
+						return createAgent(id, config, simAgents);
+					}
+				});
+			}
+		}
+		final ObjectNode result = bootFleet(agents, simAgents);
+		if (host == null && FleetSnapshot.isEnabled(simAgents.get("snapshot"))) {
+			try {
+				FleetSnapshot.getInstance(simAgents.get("snapshot")).write();
+			} catch (IOException e) {
+				LOG.log(Level.WARNING, "Couldn't write fleet snapshot", e);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Restore the fleet of the previous run from the fleet snapshot: an agent
+	 * is created for each record in the snapshot, straight from the config
+	 * stored in the record, and restores its runtime state from it. The
+	 * agents are created in parallel and registered in batches, as in
+	 * {@link #generateFleet(ArrayNode)}. Records that aren't claimed by an
+	 * agent are dropped afterwards. Runs at boot if the snapshot is enabled.
+	 *
+	 * @return the boot statistics
+	 */
+	public ObjectNode restoreFleet() {
+		final ObjectNode simAgents = (ObjectNode) getConfig().get("simAgents");
+		final FleetSnapshot snapshot = FleetSnapshot.getInstance(simAgents
+				.get("snapshot"));
+		final Map<String, List<Callable<URI>>> agents = new LinkedHashMap<String, List<Callable<URI>>>();
+		for (final Entry<String, ObjectNode> entry : snapshot.getUnclaimed()
+				.entrySet()) {
+			final String tag = entry.getValue().has("tag") ? entry.getValue()
+					.get("tag").asText() : "empty";
+			List<Callable<URI>> list = agents.get(tag);
+			if (list == null) {
+				list = new ArrayList<Callable<URI>>();
+				agents.put(tag, list);
+			}
+			list.add(new Callable<URI>() {
+				@Override
+				public URI call() {
+					return createAgent(entry.getKey(), entry.getValue(),
+							simAgents);
+				}
+			});
+		}
+		final ObjectNode result = bootFleet(agents, simAgents);
+		snapshot.prune();
+		return result;
+	}
+
+	private URI createAgent(final String id, final ObjectNode config,
+			final ObjectNode simAgents) {
+		final SimulatedResource agent = new SimulatedResource();
+		final AgentConfig agentConfig = new AgentConfig();
+		agentConfig.setId(id);
+		agentConfig.setAll(simAgents);
+		if (FleetSnapshot.isEnabled(simAgents.get("snapshot"))) {
+			// The snapshot persists the agent, no state file of its own.
+			agentConfig.remove("instantiationService");
+		}
+		agentConfig.setAll(config);
+		agent.registerInBatch();
+		agent.setConfig(agentConfig);
+		return URIUtil.create("local:" + id);
+	}
+
+	private ObjectNode bootFleet(
+			final Map<String, List<Callable<URI>>> agents,
+			final ObjectNode simAgents) {
+		final long start = System.currentTimeMillis();
+		final JsonNode boot = simAgents.has("boot") ? simAgents.get("boot")
+				: JOM.createObjectNode();
+		final int threads = boot.has("threads") ? boot.get("threads").asInt()
+				: Runtime.getRuntime().availableProcessors();
+		final int batchSize = boot.has("registerBatch") ? boot.get(
+				"registerBatch").asInt() : REGISTERBATCH;
+
+		final ExecutorService pool = Executors.newFixedThreadPool(threads);
+		final Map<String, List<Future<URI>>> created = new LinkedHashMap<String, List<Future<URI>>>();
+		int count = 0;
+		for (Entry<String, List<Callable<URI>>> entry : agents.entrySet()) {
+			final List<Future<URI>> list = new ArrayList<Future<URI>>(entry
+					.getValue().size());
+			for (Callable<URI> agent : entry.getValue()) {
+				list.add(pool.submit(agent));
+				count++;
+			}
+			created.put(entry.getKey(), list);
+		}
+
+		final Map<String, List<URI>> addresses = new LinkedHashMap<String, List<URI>>();
+		int failed = 0;
+		for (Entry<String, List<Future<URI>>> entry : created.entrySet()) {
+			final List<URI> list = new ArrayList<URI>(entry.getValue().size());
+			for (Future<URI> future : entry.getValue()) {
+				try {
+					list.add(future.get());
+				} catch (InterruptedException | ExecutionException e) {
+					LOG.log(Level.WARNING, "Couldn't create agent", e);
+					failed++;
+				}
+			}
+			addresses.put(entry.getKey(), list);
+		}
+		pool.shutdown();
+		final long createdAt = System.currentTimeMillis();
+
+		int batches = 0;
+		for (Entry<String, List<URI>> entry : addresses.entrySet()) {
+			final List<URI> list = entry.getValue();
+			for (int i = 0; i < list.size(); i += batchSize) {
+				final Params params = new Params();
+				params.add("tag", entry.getKey());
+				params.set("addresses", JOM.getInstance().valueToTree(
+						list.subList(i, Math.min(i + batchSize, list.size()))));
+				try {
+					callSync(URIUtil.create("local:proxy"), "registerAll",
+							params, Integer.class);
+					batches++;
+				} catch (IOException e) {
+					LOG.log(Level.WARNING, "Couldn't register agents", e);
+				}
+			}
 		}
+		final long end = System.currentTimeMillis();
+
+		final ObjectNode result = JOM.createObjectNode();
+		result.put("agents", count - failed);
+		result.put("failed", failed);
+		result.put("threads", threads);
+		result.put("batches", batches);
+		result.put("createMillis", createdAt - start);
+		result.put("registerMillis", end - createdAt);
+		result.put("bootMillis", end - start);
+		LOG.info("Fleet boot:" + result);
+		return result;
+	}
+
+	private synchronized ResourceHost getResourceHost() {
+		if (resourceHost == null) {
+			resourceHost = new ResourceHost();
+			final AgentConfig hostConfig = new AgentConfig();
+			hostConfig.setId("resourceHost");
+			hostConfig.setAll((ObjectNode) getConfig().get("simAgents"));
+			resourceHost.setConfig(hostConfig);
+		}
+		return resourceHost;
 	}
 
 	private boolean filter(boolean operational, String type, int i) {
@@ -406,294 +1027,10 @@ public class DemoGenerator extends NodeAgent {
 	public void doScenarioSwitch(@Name("step") String step) {
 
 		LOG.warning("DoScenarioSwitch called:" + step);
-		switch (step) {
-			case "reset":
-				stopEvac = true;
-				clearPoI();
-				resetAgents();
-
-				double initHospital[][] = { { 1.452668, 43.559601 },
-						{ 1.400976, 43.610032 }, { 1.431940, 43.600344 },
-						{ 1.452860, 43.552724 } };
-				storePlacesOfInterest("hospital", initHospital);
-				createPoIproperties("hospital-0", "Rangueil",
-						"hospital_building.png");
-				createPoIproperties("hospital-1", "Purpan",
-						"hospital_building.png");
-				createPoIproperties("hospital-2", "La Grave",
-						"hospital_building.png");
-				createPoIproperties("hospital-3", "Larrey",
-						"hospital_building.png");
-
-				double initDamagedHospital[][] = { { 1.420396, 43.560099 } };
-				storePlacesOfInterest("damagedHospital", initDamagedHospital);
-				createPoIproperties("damagedHospital-0", "Marchant",
-						"hospital_building.png");
-
-				double policeStation[][] = { { 1.431868, 43.597184 },
-						{ 1.412553, 43.579855 }, { 1.456670, 43.571616 },
-						{ 1.400537, 43.565397 }, { 1.462464, 43.610998 },
-						{ 1.483750, 43.578798 } };
-				storePlacesOfInterest("policeStation", policeStation);
-				createPoIproperties("policeStation-0", "policeStation-1",
-						"police_building.png");
-				createPoIproperties("policeStation-1", "policeStation-2",
-						"police_building.png");
-				createPoIproperties("policeStation-2", "policeStation-3",
-						"police_building.png");
-				createPoIproperties("policeStation-3", "policeStation-4",
-						"police_building.png");
-				createPoIproperties("policeStation-4", "policeStation-5",
-						"police_building.png");
-				createPoIproperties("policeStation-5", "policeStation-6",
-						"police_building.png");
-
-				double fireStation[][] = { { 1.455619, 43.595087 },
-						{ 1.355983, 43.593078 }, { 1.473571, 43.554649 },
-						{ 1.432859, 43.594798 }, { 1.464916, 43.600050 },
-						{ 1.410107, 43.533935 } };
-				storePlacesOfInterest("fireStation", fireStation);
-				createPoIproperties("fireStation-0", "fireStation-1",
-						"firedpt_building.png");
-				createPoIproperties("fireStation-1", "fireStation-2",
-						"firedpt_building.png");
-				createPoIproperties("fireStation-2", "fireStation-3",
-						"firedpt_building.png");
-				createPoIproperties("fireStation-3", "fireStation-4",
-						"firedpt_building.png");
-				createPoIproperties("fireStation-4", "fireStation-5",
-						"firedpt_building.png");
-				createPoIproperties("fireStation-5", "fireStation-6",
-						"firedpt_building.png");
-
-				// Setup resources (most are there already through the keep
-				// eve.yaml)
-				// Load point of interest with "original icons"
-				break;
-			case "incident":
-				// Add incident poi, rvpFire0 near incident, roadblock0 at
-				// freeway
-				double incident[][] = { { 1.427344, 43.567000 } };
-				storePlacesOfInterest("incident", incident);
-				createPoIproperties("incident-0", "AZF fire/explosion",
-						"incidents_hazards/fire.svg");
-
-				double rb1[][] = { { 1.424354, 43.569847 } };
-				storePlacesOfInterest("roadblock", rb1);
-				createPoIproperties("roadblock-0", "rb-0",
-						"cordons_zones_areas/scene_access_control_point_black_and_white.svg");
-
-				double rvf1[][] = { { 1.424404, 43.567260 } };
-				storePlacesOfInterest("rvpFire", rvf1);
-				createPoIproperties("rvpFire-0", "rvpf-0",
-						"assets/rendevous_point_fire.svg");
-
-				// 2x Firetruck goto rvpFire0, police goto roadblock0
-				Params params = new Params();
-				params.add("poiType", "rvpFire");
-				params.add("poiNumber", "0");
-				params.add("title", "Put out fire");
-				sendTaskPoI("GotoAndStay", "fire vehicle", "rvpFire", 0, 15,
-						params);
-				sendTaskPoI("GotoAndStay", "fire vehicle", "rvpFire", 0, 15,
-						params);
-
-				Params params2 = new Params();
-				params2.add("poiType", "roadblock");
-				params2.add("poiNumber", "0");
-				params2.add("title", "Set up road block");
-				sendTaskPoI("GotoAndStay", "police vehicle", "roadblock", 0,
-						15, params2);
-
-				break;
-			case "assessment":
-				// add roadblock 1, rvpFire1
-
-				double rb2[][] = { { 1.423846, 43.559564 } };
-				storePlacesOfInterest("roadblock", rb2);
-				createPoIproperties("roadblock-1", "rb-1",
-						"incidents_hazards/road_block.png");
-
-				double rvf2[][] = { { 1.426443, 43.563031 } };
-				storePlacesOfInterest("rvpFire", rvf2);
-				createPoIproperties("rvpFire-1", "rvpf-1",
-						"assets/rendevous_point_fire.svg");
-
-				// 2x Firetruck goto rvpFire1, 1x firetruck goto rvpFire0, 2x
-				// police goto roadblock1 1x police goto roadblock0.
-				Params params3 = new Params();
-				params3.add("poiType", "rvpFire");
-				params3.add("poiNumber", "1");
-				params3.add("title", "Put out fire");
-
-				sendTaskPoI("GotoAndStay", "fire vehicle", "rvpFire", 1, 15,
-						params3);
-				sendTaskPoI("Goto", "fire vehicle", "rvpFire", 1, 15, params3);
-
-				Params params4 = new Params();
-				params4.add("poiType", "rvpFire");
-				params4.add("poiNumber", "0");
-				params4.add("title", "Rescue task");
-				sendTaskPoI("GotoAndStay", "fire vehicle", "rvpFire", 0, 15,
-						params4);
-
-				Params params5 = new Params();
-				params5.add("poiType", "roadblock");
-				params5.add("poiNumber", "1");
-				params5.add("title", "Set up road block");
-				sendTaskPoI("GotoAndStay", "police vehicle", "roadblock", 1,
-						15, params5);
-				sendTaskPoI("Goto", "police vehicle", "roadblock", 1, 15,
-						params5);
-
-				Params params6 = new Params();
-				params6.add("poiType", "roadblock");
-				params6.add("poiNumber", "0");
-				params6.add("title", "Set up road block");
-				sendTaskPoI("RoadBlock", "police vehicle", "roadblock", 0, 15,
-						params6);
-
-				break;
-			case "scaleUp":
-				double roadblock[][] = { { 1.428539, 43.570415 },
-						{ 1.435995, 43.572156 }, { 1.422178, 43.563294 },
-						{ 1.424631, 43.559758 }, { 1.431684, 43.557258 },
-						{ 1.410907, 43.552105 }, { 1.420585, 43.549564 } };
-				storePlacesOfInterest("roadblock", roadblock);
-				createPoIproperties("roadblock-2", "rb-2",
-						"incidents_hazards/road_block.png");
-				createPoIproperties("roadblock-3", "rb-3",
-						"incidents_hazards/road_block.png");
-				createPoIproperties("roadblock-4", "rb-4",
-						"incidents_hazards/road_block.png");
-				createPoIproperties("roadblock-5", "rb-5",
-						"incidents_hazards/road_block.png");
-				createPoIproperties("roadblock-6", "rb-6",
-						"incidents_hazards/road_block.png");
-				createPoIproperties("roadblock-7", "rb-7",
-						"incidents_hazards/road_block.png");
-				createPoIproperties("roadblock-8", "rb-8",
-						"incidents_hazards/road_block.png");
-				createPoIproperties("roadblock-9", "rb-9",
-						"incidents_hazards/road_block.png");
-
-				double hospital[][] = { { 1.452668, 43.559601 },
-						{ 1.400976, 43.610032 }, { 1.431940, 43.600344 },
-						{ 1.452860, 43.552724 } };
-				storePlacesOfInterest("hospital", hospital);
-				createPoIproperties("hospital-0", "Rangueil",
-						"infrastructures/hospital_green.svg");
-				createPoIproperties("hospital-1", "Purpan",
-						"infrastructures/hospital_green.svg");
-				createPoIproperties("hospital-2", "La Grave",
-						"infrastructures/hospital_green.svg");
-				createPoIproperties("hospital-3", "Larrey",
-						"infrastructures/hospital_green.svg");
-
-				double damagedHospital[][] = { { 1.420396, 43.560099 } };
-				storePlacesOfInterest("damagedHospital", damagedHospital);
-				createPoIproperties("damagedHospital-0", "Marchant",
-						"infrastructures/hospital_red.svg");
-
-				double rpAmbulances[][] = { { 1.424318, 43.569079 },
-						{ 1.424490, 43.559548 } };
-				storePlacesOfInterest("rvpAmbu", rpAmbulances);
-				createPoIproperties("rvpAmbu-0", "rvpa-0",
-						"assets/rendevous_point_ambulance.svg");
-				createPoIproperties("rvpAmbu-1", "rvpa-1",
-						"assets/rendevous_point_ambulance.svg");
-
-				double commandPost[][] = { { 1.423707, 43.556492 },
-						{ 1.423411, 43.568942 } };
-				storePlacesOfInterest("commandPost", commandPost);
-				createPoIproperties(
-						"commandPost-0",
-						"cp-1",
-						"command_control_coordination_communication_sites/incident_command_post_police_fire_and_ambulance.svg");
-				createPoIproperties(
-						"commandPost-1",
-						"cp-2",
-						"command_control_coordination_communication_sites/gold_command_post_police_fire_and_ambulance.svg");
-
-				// Per roadblock, 2 policecars, start Ambulance bridge to
-				// hospitals (~10), 10 fire trucks moving in to the two rvpFire.
-				final int length = placesOfInterest.get("roadblock").size();
-				for (int i = 0; i < length; i++) {
-					final Params paramInner = new Params();
-					paramInner.add("poiType", "roadblock");
-					paramInner.add("poiNumber", i);
-
-					paramInner.add("title", "Set up road block");
-					sendTaskPoI("GotoAndStay", "police vehicle", "roadblock",
-							i, 15, paramInner);
-				}
-				for (int i = 0; i < 3; i++) {
-					final Params paramInner = new Params();
-					paramInner.add("poiType", "rvpFire");
-					paramInner.add("poiNumber", 0);
-					paramInner.add("title", "Rescue task");
-					sendTaskPoI("GotoAndStay", "fire vehicle", "rvpFire", 0,
-							15, paramInner);
-				}
-				for (int i = 0; i < 3; i++) {
-					final Params paramInner = new Params();
-					paramInner.add("poiType", "rvpFire");
-					paramInner.add("poiNumber", 0);
-					paramInner.add("title", "Put out fire");
-					sendTaskPoI("GotoAndStay", "fire vehicle", "rvpFire", 0,
-							15, paramInner);
-				}
-				for (int i = 0; i < 4; i++) {
-					final Params paramInner = new Params();
-					paramInner.add("poiType", "rvpFire");
-					paramInner.add("poiNumber", 1);
-					paramInner.add("title", "Put out fire");
-					sendTaskPoI("GotoAndStay", "fire vehicle", "rvpFire", 1,
-							15, paramInner);
-				}
-				stopEvac = false;
-				scheduleAmbulances();
-
-				break;
-			case "handling":
-				final int length2 = placesOfInterest.get("roadblock").size();
-				for (int i = 0; i < length2; i++) {
-					final Params paramInner = new Params();
-					paramInner.add("poiType", "roadblock");
-					paramInner.add("poiNumber", i);
-					paramInner.add("title", "Setup roadblock");
-					sendTaskPoI("GotoAndStay", "police vehicle", "roadblock",
-							i, 15, paramInner);
-				}
-				for (int i = 0; i < 4; i++) {
-					final Params paramInner = new Params();
-					paramInner.add("poiType", "rvpFire");
-					paramInner.add("poiNumber", 0);
-					paramInner.add("title", "Rescue task");
-					sendTaskPoI("GotoAndStay", "fire vehicle", "rvpFire", 0,
-							15, paramInner);
-				}
-				for (int i = 0; i < 3; i++) {
-					final Params paramInner = new Params();
-					paramInner.add("poiType", "rvpFire");
-					paramInner.add("poiNumber", 1);
-					paramInner.add("title", "Rescue task");
-					sendTaskPoI("GotoAndStay", "fire vehicle", "rvpFire", 1,
-							15, paramInner);
-				}
-				for (int i = 0; i < 3; i++) {
-					final Params paramInner = new Params();
-					paramInner.add("poiType", "rvpFire");
-					paramInner.add("poiNumber", 1);
-					paramInner.add("title", "Put out fire");
-					sendTaskPoI("GotoAndStay", "fire vehicle", "rvpFire", 1,
-							15, paramInner);
-				}
-				break;
-			default:
-				LOG.warning("Unknown step given:" + step);
+		if (!Scenario.run(step, scenarioTarget)) {
+			LOG.warning("Unknown step given:" + step);
 		}
-
+		schedule("precomputeRoutes", null, 0);
 	}
 
 	/**
@@ -735,6 +1072,36 @@ public class DemoGenerator extends NodeAgent {
 					LOG.warning("Unknown type: '" + type + "'");
 			}
 		}
+		schedule("precomputeRoutes", null, 0);
+	}
+
+	/**
+	 * Precompute the routes between all current places of interest, so plan
+	 * legs between them don't need routing.
+	 */
+	public void precomputeRoutes() {
+		final ArrayNode points = JOM.createArrayNode();
+		synchronized (this) {
+			for (List<double[]> locations : placesOfInterest.values()) {
+				for (double[] loc : locations) {
+					final ObjectNode point = points.addObject();
+					point.put("lat", loc[1]);
+					point.put("lon", loc[0]);
+				}
+			}
+		}
+		final ObjectNode routing = getRoutingConfig();
+		if (EmbeddedRouting.isEmbedded(routing)) {
+			EmbeddedRouting.getEngine(routing).precomputeRoutes(points);
+			return;
+		}
+		final Params params = new Params();
+		params.set("points", points);
+		try {
+			call(getNavAgent(routing), "precomputeRoutes", params);
+		} catch (IOException e) {
+			LOG.log(Level.WARNING, "Couldn't precompute routes", e);
+		}
 	}
 
 	/**
@@ -745,7 +1112,7 @@ public class DemoGenerator extends NodeAgent {
 		// randomHospital.
 		if (!stopEvac) {
 			doAmbulance();
-			schedule("scheduleAmbulances", null, 30000);
+			schedule("scheduleAmbulances", null, SimClock.wallDelay(30000));
 		}
 	}
 
@@ -771,7 +1138,16 @@ public class DemoGenerator extends NodeAgent {
 			LOG.log(Level.WARNING, "Couldn't obtain resourceList", e);
 		}
 
+		final List<URI> hosts = new ArrayList<URI>();
 		for (URI agent : allResources) {
+			if (ResourceHost.isVirtual(agent)) {
+				// Reset each host once, for all of its resources.
+				agent = ResourceHost.getHost(agent);
+				if (hosts.contains(agent)) {
+					continue;
+				}
+				hosts.add(agent);
+			}
 			try {
 				call(agent, "reset", new Params());
 			} catch (IOException e) {
@@ -780,4 +1156,45 @@ public class DemoGenerator extends NodeAgent {
 		}
 	}
 
+	private class ScenarioTarget implements Scenario.Target {
+
+		@Override
+		public void reset() {
+			stopEvac = true;
+			clearPoI();
+			resetAgents();
+		}
+
+		@Override
+		public void storePlacesOfInterest(final String type,
+				final double[][] list) {
+			DemoGenerator.this.storePlacesOfInterest(type, list);
+		}
+
+		@Override
+		public void createPoIproperties(final String key, final String label,
+				final String icon) {
+			DemoGenerator.this.createPoIproperties(key, label, icon);
+		}
+
+		@Override
+		public int countPoI(final String type) {
+			final List<double[]> list = placesOfInterest.get(type);
+			return list != null ? list.size() : 0;
+		}
+
+		@Override
+		public void sendTaskPoI(final String planName, final String type,
+				final String poiType, final int poiNumber, final int minutes,
+				final ObjectNode taskParams) {
+			DemoGenerator.this.sendTaskPoI(planName, type, poiType, poiNumber,
+					minutes, taskParams);
+		}
+
+		@Override
+		public void startEvac() {
+			stopEvac = false;
+			scheduleAmbulances();
+		}
+	}
 }
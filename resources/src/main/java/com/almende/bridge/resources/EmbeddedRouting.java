@@ -0,0 +1,93 @@
+/*
+ * Copyright: Almende B.V. (2014), Rotterdam, The Netherlands
+ * License: The Apache Software License, Version 2.0
+ */
+package com.almende.bridge.resources;
+
+import java.net.URI;
+import java.util.Iterator;
+import java.util.Map.Entry;
+import java.util.logging.Logger;
+
+import com.almende.bridge.swarm.navigation.RoutingEngine;
+import com.almende.util.URIUtil;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.graphhopper.util.CmdArgs;
+
+/**
+ * Process wide routing engine for resources that route in their own JVM
+ * instead of calling the navigation agent. Configured through the "routing"
+ * section of the simAgents config:
+ *
+ * <pre>
+ * routing:
+ *    mode: embedded
+ *    graphhopper:
+ *       osmreader.osm: maps/france-latest.osm.pbf
+ *       graph.location: maps/france-latest-gh
+ *       graph.flagEncoders: car
+ *       prepare.chWeighting: fastest
+ * </pre>
+ *
+ * The other fields of the routing section configure the engine itself (see
+ * {@link RoutingEngine#RoutingEngine}).
+ */
+public final class EmbeddedRouting {
+	private static final Logger		LOG		= Logger.getLogger(EmbeddedRouting.class
+													.getName());
+	private static RoutingEngine	engine	= null;
+
+	private EmbeddedRouting() {}
+
+	/**
+	 * Checks if the routing config asks for embedded routing.
+	 *
+	 * @param config
+	 *            the routing config, may be null
+	 * @return true, if embedded
+	 */
+	public static boolean isEmbedded(final JsonNode config) {
+		return config != null && config.has("mode")
+				&& "embedded".equals(config.get("mode").asText());
+	}
+
+	/**
+	 * Gets the navigation agent for remote routing, from the "url" field of
+	 * the routing config.
+	 *
+	 * @param config
+	 *            the routing config, may be null
+	 * @return the url of the navigation agent, or null if not configured
+	 */
+	public static URI getNavAgent(final JsonNode config) {
+		if (config != null && config.has("url")) {
+			return URIUtil.create(config.get("url").asText());
+		}
+		return null;
+	}
+
+	/**
+	 * Gets the engine, loading the graph on first use.
+	 *
+	 * @param config
+	 *            the routing config
+	 * @return the engine
+	 */
+	public static synchronized RoutingEngine getEngine(final ObjectNode config) {
+		if (engine == null) {
+			final CmdArgs args = new CmdArgs();
+			if (config.has("graphhopper")) {
+				final Iterator<Entry<String, JsonNode>> iter = config.get(
+						"graphhopper").fields();
+				while (iter.hasNext()) {
+					final Entry<String, JsonNode> field = iter.next();
+					args.put(field.getKey(), field.getValue().asText());
+				}
+			}
+			LOG.info("Loading embedded routing engine:" + args);
+			engine = new RoutingEngine(RoutingEngine.loadGraph(args), config);
+		}
+		return engine;
+	}
+}
@@ -0,0 +1,423 @@
+/*
+ * Copyright: Almende B.V. (2014), Rotterdam, The Netherlands
+ * License: The Apache Software License, Version 2.0
+ */
+package com.almende.bridge.resources;
+
+import java.util.Arrays;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.almende.util.jackson.JOM;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * Process wide fleet engine, keeping the position, route and deployment
+ * state of all simulated resources in primitive arrays (one slot per
+ * resource). Instead of every resource interpolating its own position on
+ * each poll, the engine advances all moving slots on a fixed tick, split over
+ * the cores with fork/join. All slot access synchronizes on the engine, as
+ * the arrays are replaced when they grow. The tick is double buffered: it
+ * copies the routes under the lock, lets the fork/join workers compute the
+ * new positions into its own buffers without the lock, and takes the lock
+ * again only to swap them in. Slots that got a new route or position in the
+ * meantime keep those. Configured through the "fleet"
+ * section of the simAgents config:
+ *
+ * <pre>
+ * fleet:
+ *    enabled: true
+ *    tickMillis: 1000
+ *    parallelism: 8
+ * </pre>
+ */
+public final class FleetEngine {
+	private static final Logger			LOG				= Logger.getLogger(FleetEngine.class
+																.getName());
+	private static final int			INITIALSIZE		= 1024;
+	private static final int			CHUNK			= 4096;
+	private static final long			DEFAULTTICK		= 1000;
+	private static FleetEngine			instance		= null;
+
+	private final ForkJoinPool			pool;
+	private final ScheduledExecutorService	ticker;
+
+	private double[]					lons			= new double[INITIALSIZE];
+	private double[]					lats			= new double[INITIALSIZE];
+	private long[]						routeStarts		= new long[INITIALSIZE];
+	private long[]						routeEnds		= new long[INITIALSIZE];
+	private PackedRoute[]				routes			= new PackedRoute[INITIALSIZE];
+	private byte[]						states			= new byte[INITIALSIZE];
+	private boolean[]					used			= new boolean[INITIALSIZE];
+	private int[]						free			= new int[INITIALSIZE];
+	private int							freeCount		= 0;
+	private int							size			= 0;
+	private int							moving			= 0;
+
+	// Tick buffers, only used by the (single) ticking thread.
+	private final Object				tickLock		= new Object();
+	private PackedRoute[]				tickRoutes		= new PackedRoute[0];
+	private long[]						tickStarts		= new long[0];
+	private long[]						tickEnds		= new long[0];
+	private double[]					nextLons		= new double[0];
+	private double[]					nextLats		= new double[0];
+	private boolean[]					arrived			= new boolean[0];
+
+	private volatile long				ticks			= 0;
+	private volatile long				lastTickNanos	= 0;
+
+	private FleetEngine(final int parallelism, final long tickMillis) {
+		pool = new ForkJoinPool(parallelism);
+		ticker = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(final Runnable r) {
+				final Thread thread = new Thread(r, "fleet-tick");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		ticker.scheduleAtFixedRate(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					tick(SimClock.millis());
+				} catch (RuntimeException e) {
+					LOG.log(Level.WARNING, "Fleet tick failed", e);
+				}
+			}
+		}, tickMillis, tickMillis, TimeUnit.MILLISECONDS);
+		Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+			@Override
+			public void run() {
+				shutdown();
+			}
+		}, "fleet-shutdown"));
+	}
+
+	/**
+	 * Checks if the fleet config enables the engine.
+	 *
+	 * @param config
+	 *            the fleet config, may be null
+	 * @return true, if enabled
+	 */
+	public static boolean isEnabled(final JsonNode config) {
+		return config != null && config.has("enabled")
+				&& config.get("enabled").asBoolean();
+	}
+
+	/**
+	 * Gets the engine, starting it on first use.
+	 *
+	 * @param config
+	 *            the fleet config
+	 * @return the engine
+	 */
+	public static synchronized FleetEngine getInstance(final JsonNode config) {
+		if (instance == null) {
+			instance = new FleetEngine(config.has("parallelism") ? config.get(
+					"parallelism").asInt() : Runtime.getRuntime()
+					.availableProcessors(), config.has("tickMillis") ? config
+					.get("tickMillis").asLong() : DEFAULTTICK);
+		}
+		return instance;
+	}
+
+	/**
+	 * Gets the engine if it is running.
+	 *
+	 * @return the engine, or null
+	 */
+	public static synchronized FleetEngine getRunning() {
+		return instance;
+	}
+
+	/**
+	 * Allocate a slot for a resource.
+	 *
+	 * @param lon
+	 *            the initial lon
+	 * @param lat
+	 *            the initial lat
+	 * @return the slot
+	 */
+	public synchronized int allocate(final double lon, final double lat) {
+		final int slot;
+		if (freeCount > 0) {
+			slot = free[--freeCount];
+		} else {
+			if (size == lons.length) {
+				grow(size * 2);
+			}
+			slot = size++;
+		}
+		used[slot] = true;
+		lons[slot] = lon;
+		lats[slot] = lat;
+		routes[slot] = null;
+		states[slot] = 0;
+		return slot;
+	}
+
+	/**
+	 * Release a slot.
+	 *
+	 * @param slot
+	 *            the slot
+	 */
+	public synchronized void release(final int slot) {
+		if (!used[slot]) {
+			return;
+		}
+		stop(slot);
+		used[slot] = false;
+		free[freeCount++] = slot;
+	}
+
+	/**
+	 * Start moving a slot along a route.
+	 *
+	 * @param slot
+	 *            the slot
+	 * @param route
+	 *            the route
+	 * @param start
+	 *            the start time of the route (epoch millis)
+	 * @param millis
+	 *            the travel time of the route
+	 */
+	public synchronized void setRoute(final int slot, final PackedRoute route,
+			final long start, final long millis) {
+		if (routes[slot] == null) {
+			moving++;
+		}
+		routes[slot] = route;
+		routeStarts[slot] = start;
+		routeEnds[slot] = start + millis;
+	}
+
+	/**
+	 * Stop a slot at its current position.
+	 *
+	 * @param slot
+	 *            the slot
+	 */
+	public synchronized void stop(final int slot) {
+		if (routes[slot] != null) {
+			routes[slot] = null;
+			moving--;
+		}
+	}
+
+	/**
+	 * Move a slot to a position, stopping it.
+	 *
+	 * @param slot
+	 *            the slot
+	 * @param lon
+	 *            the lon
+	 * @param lat
+	 *            the lat
+	 */
+	public synchronized void setPosition(final int slot, final double lon,
+			final double lat) {
+		stop(slot);
+		lons[slot] = lon;
+		lats[slot] = lat;
+	}
+
+	/**
+	 * Sets the deployment state of a slot.
+	 *
+	 * @param slot
+	 *            the slot
+	 * @param state
+	 *            the state ordinal
+	 */
+	public synchronized void setState(final int slot, final int state) {
+		states[slot] = (byte) state;
+	}
+
+	/**
+	 * Gets the deployment state of a slot.
+	 *
+	 * @param slot
+	 *            the slot
+	 * @return the state ordinal
+	 */
+	public synchronized int getState(final int slot) {
+		return states[slot];
+	}
+
+	/**
+	 * Gets the position of a slot, as of the last tick.
+	 *
+	 * @param slot
+	 *            the slot
+	 * @return the position as [lon, lat, 0, 0]
+	 */
+	public synchronized double[] getPosition(final int slot) {
+		return new double[] { lons[slot], lats[slot], 0, 0 };
+	}
+
+	/**
+	 * Checks if a slot is moving along a route.
+	 *
+	 * @param slot
+	 *            the slot
+	 * @return true, if moving
+	 */
+	public synchronized boolean isMoving(final int slot) {
+		return routes[slot] != null;
+	}
+
+	/**
+	 * Gets the engine statistics.
+	 *
+	 * @return the stats
+	 */
+	public synchronized ObjectNode getStats() {
+		final ObjectNode result = JOM.createObjectNode();
+		result.put("slots", size - freeCount);
+		result.put("capacity", lons.length);
+		result.put("moving", moving);
+		result.put("ticks", ticks);
+		result.put("lastTickMillis", lastTickNanos / 1e6);
+		result.put("parallelism", pool.getParallelism());
+		return result;
+	}
+
+	/**
+	 * Stop the ticker and the fork/join workers.
+	 */
+	public void shutdown() {
+		ticker.shutdownNow();
+		pool.shutdownNow();
+	}
+
+	/**
+	 * Advance all moving slots to the given time.
+	 *
+	 * @param now
+	 *            the time (epoch millis)
+	 */
+	void tick(final long now) {
+		synchronized (tickLock) {
+			final long start = System.nanoTime();
+			final int count;
+			synchronized (this) {
+				count = moving > 0 ? size : 0;
+				if (count > tickRoutes.length) {
+					tickRoutes = new PackedRoute[lons.length];
+					tickStarts = new long[lons.length];
+					tickEnds = new long[lons.length];
+					nextLons = new double[lons.length];
+					nextLats = new double[lons.length];
+					arrived = new boolean[lons.length];
+				}
+				System.arraycopy(routes, 0, tickRoutes, 0, count);
+				System.arraycopy(routeStarts, 0, tickStarts, 0, count);
+				System.arraycopy(routeEnds, 0, tickEnds, 0, count);
+			}
+			if (count > 0) {
+				pool.invoke(new Advance(0, count, now));
+				synchronized (this) {
+					swap(count);
+				}
+				Arrays.fill(tickRoutes, 0, count, null);
+			}
+			lastTickNanos = System.nanoTime() - start;
+			ticks++;
+		}
+	}
+
+	private void swap(final int count) {
+		for (int slot = 0; slot < count; slot++) {
+			final PackedRoute route = tickRoutes[slot];
+			if (route == null || route.size() == 0 || routes[slot] != route
+					|| routeStarts[slot] != tickStarts[slot]) {
+				continue;
+			}
+			lons[slot] = nextLons[slot];
+			lats[slot] = nextLats[slot];
+			if (arrived[slot]) {
+				routes[slot] = null;
+				moving--;
+			}
+		}
+	}
+
+	private void advance(final int from, final int to, final long now) {
+		for (int slot = from; slot < to; slot++) {
+			final PackedRoute route = tickRoutes[slot];
+			if (route == null || route.size() == 0) {
+				continue;
+			}
+			final int last = route.size() - 1;
+			arrived[slot] = now >= tickEnds[slot];
+			if (arrived[slot]) {
+				nextLons[slot] = route.getLon(last);
+				nextLats[slot] = route.getLat(last);
+				continue;
+			}
+			final long time = now - tickStarts[slot];
+			final int next = route.indexAfter(time);
+			if (next == 0) {
+				nextLons[slot] = route.getLon(0);
+				nextLats[slot] = route.getLat(0);
+			} else if (next > last) {
+				nextLons[slot] = route.getLon(last);
+				nextLats[slot] = route.getLat(last);
+			} else {
+				final long before = route.getMillis(next - 1);
+				final double part = (double) (time - before)
+						/ (route.getMillis(next) - before);
+				nextLons[slot] = route.getLon(next - 1)
+						+ (route.getLon(next) - route.getLon(next - 1)) * part;
+				nextLats[slot] = route.getLat(next - 1)
+						+ (route.getLat(next) - route.getLat(next - 1)) * part;
+			}
+		}
+	}
+
+	private void grow(final int capacity) {
+		lons = Arrays.copyOf(lons, capacity);
+		lats = Arrays.copyOf(lats, capacity);
+		routeStarts = Arrays.copyOf(routeStarts, capacity);
+		routeEnds = Arrays.copyOf(routeEnds, capacity);
+		routes = Arrays.copyOf(routes, capacity);
+		states = Arrays.copyOf(states, capacity);
+		used = Arrays.copyOf(used, capacity);
+		free = Arrays.copyOf(free, capacity);
+	}
+
+	private class Advance extends RecursiveAction {
+		private static final long	serialVersionUID	= 1L;
+		private final int			from;
+		private final int			to;
+		private final long			now;
+
+		Advance(final int from, final int to, final long now) {
+			this.from = from;
+			this.to = to;
+			this.now = now;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from <= CHUNK) {
+				advance(from, to, now);
+			} else {
+				final int mid = (from + to) >>> 1;
+				invokeAll(new Advance(from, mid, now), new Advance(mid, to, now));
+			}
+		}
+	}
+}
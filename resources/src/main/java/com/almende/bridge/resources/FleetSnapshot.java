@@ -0,0 +1,466 @@
+/*
+ * Copyright: Almende B.V. (2014), Rotterdam, The Netherlands
+ * License: The Apache Software License, Version 2.0
+ */
+package com.almende.bridge.resources;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.almende.util.jackson.JOM;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * Process wide binary snapshot of the fleet: the position, route, plan,
+ * deployment state and properties of all simulated resources in a single
+ * file, instead of a JSON state file per agent. The snapshot is written
+ * periodically (and at shutdown) to a temporary file, which then replaces
+ * the previous one. At boot the previous snapshot is memory mapped and
+ * indexed by agent id. Each record also holds the config the agent was
+ * created with, so the fleet is instantiated straight from the snapshot (see
+ * {@link DemoGenerator#restoreFleet()}) instead of from a state file per
+ * agent; each resource then restores its own record as it comes up. Records
+ * that no resource claimed are carried over by writes during the restore,
+ * and dropped once the fleet is restored.
+ * Configured through the "snapshot" section of the simAgents config:
+ *
+ * <pre>
+ * snapshot:
+ *    enabled: true
+ *    file: .fleet.snapshot
+ *    intervalMillis: 60000
+ * </pre>
+ *
+ * The file is a header (magic, version, record count), followed by the
+ * records, each as its length, the agent id, its config (as JSON bytes) and
+ * the resource's own data.
+ * Records use {@link #writeString(DataOutput, String)} and
+ * {@link #writeBytes(DataOutput, byte[])} for values that may be null or
+ * longer than writeUTF allows.
+ */
+public final class FleetSnapshot {
+	private static final Logger				LOG				= Logger.getLogger(FleetSnapshot.class
+																	.getName());
+	private static final int				MAGIC			= 0x464C5453;
+	private static final int				VERSION			= 3;
+	private static final String				DEFAULTFILE		= ".fleet.snapshot";
+	private static final long				DEFAULTINTERVAL	= 60000;
+	private static FleetSnapshot			instance		= null;
+
+	private final File						file;
+	private final Map<String, Record>		records			= new ConcurrentHashMap<String, Record>();
+	private final Map<String, byte[]>		configs			= new ConcurrentHashMap<String, byte[]>();
+	private final Map<String, ByteBuffer>	stored			= new ConcurrentHashMap<String, ByteBuffer>();
+
+	private volatile long					restored		= 0;
+	private volatile long					loadMillis		= 0;
+	private volatile long					lastWriteMillis	= 0;
+	private volatile long					lastWriteBytes	= 0;
+	private volatile int					lastWriteCount	= 0;
+	private volatile long					writes			= 0;
+
+	private FleetSnapshot(final File file, final long intervalMillis) {
+		this.file = file;
+		load();
+		final ScheduledExecutorService writer = Executors
+				.newSingleThreadScheduledExecutor(new ThreadFactory() {
+					@Override
+					public Thread newThread(final Runnable r) {
+						final Thread thread = new Thread(r, "fleet-snapshot");
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+		writer.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					write();
+				} catch (IOException | RuntimeException e) {
+					LOG.log(Level.WARNING, "Couldn't write fleet snapshot", e);
+				}
+			}
+		}, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+		Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					write();
+				} catch (IOException | RuntimeException e) {
+					LOG.log(Level.WARNING, "Couldn't write fleet snapshot", e);
+				}
+			}
+		}, "fleet-snapshot-final"));
+	}
+
+	/**
+	 * Checks if the snapshot config enables snapshots.
+	 *
+	 * @param config
+	 *            the snapshot config, may be null
+	 * @return true, if enabled
+	 */
+	public static boolean isEnabled(final JsonNode config) {
+		return config != null && config.has("enabled")
+				&& config.get("enabled").asBoolean();
+	}
+
+	/**
+	 * Gets the snapshot, loading the previous one on first use.
+	 *
+	 * @param config
+	 *            the snapshot config
+	 * @return the snapshot
+	 */
+	public static synchronized FleetSnapshot getInstance(final JsonNode config) {
+		if (instance == null) {
+			instance = new FleetSnapshot(new File(
+					config.has("file") ? config.get("file").asText()
+							: DEFAULTFILE),
+					config.has("intervalMillis") ? config.get("intervalMillis")
+							.asLong() : DEFAULTINTERVAL);
+		}
+		return instance;
+	}
+
+	/**
+	 * Gets the snapshot if it is running.
+	 *
+	 * @return the snapshot, or null
+	 */
+	public static synchronized FleetSnapshot getRunning() {
+		return instance;
+	}
+
+	/**
+	 * Add a resource to the snapshot, restoring its previous record if there
+	 * is one.
+	 *
+	 * @param id
+	 *            the agent id
+	 * @param config
+	 *            the config to create the agent with when the fleet is
+	 *            restored
+	 * @param record
+	 *            the record
+	 * @return true, if restored
+	 */
+	public boolean add(final String id, final ObjectNode config,
+			final Record record) {
+		try {
+			configs.put(id, JOM.getInstance().writeValueAsBytes(config));
+		} catch (IOException e) {
+			LOG.log(Level.WARNING, "Couldn't store the config of " + id, e);
+			configs.put(id, new byte[0]);
+		}
+		records.put(id, record);
+		final ByteBuffer buffer = stored.remove(id);
+		if (buffer == null) {
+			return false;
+		}
+		try {
+			final DataInputStream in = new DataInputStream(asStream(buffer));
+			// Skip the config, the agent was created with it.
+			in.skipBytes(in.readInt());
+			record.readFrom(in);
+			restored++;
+			return true;
+		} catch (IOException | RuntimeException e) {
+			LOG.log(Level.WARNING, "Couldn't restore " + id, e);
+			return false;
+		}
+	}
+
+	/**
+	 * Remove a deleted resource from the snapshot.
+	 *
+	 * @param id
+	 *            the agent id
+	 */
+	public void remove(final String id) {
+		records.remove(id);
+		configs.remove(id);
+		stored.remove(id);
+	}
+
+	/**
+	 * Gets the records of the previous snapshot that no resource claimed
+	 * yet, to create their agents.
+	 *
+	 * @return the config of each agent, by agent id
+	 */
+	public Map<String, ObjectNode> getUnclaimed() {
+		final Map<String, ObjectNode> result = new LinkedHashMap<String, ObjectNode>();
+		for (Map.Entry<String, ByteBuffer> entry : stored.entrySet()) {
+			try {
+				final byte[] config = readBytes(new DataInputStream(
+						asStream(entry.getValue().duplicate())));
+				result.put(entry.getKey(), config.length > 0 ? (ObjectNode) JOM
+						.getInstance().readTree(config) : JOM
+						.createObjectNode());
+			} catch (IOException | RuntimeException e) {
+				LOG.log(Level.WARNING, "Couldn't read the config of "
+						+ entry.getKey(), e);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Drop the records of the previous snapshot that no resource claimed.
+	 *
+	 * @return the number of records dropped
+	 */
+	public int prune() {
+		final int count = stored.size();
+		if (count > 0) {
+			LOG.warning("Dropping " + count
+					+ " unclaimed fleet snapshot records");
+		}
+		stored.clear();
+		return count;
+	}
+
+	/**
+	 * Write the snapshot of all resources.
+	 *
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	public synchronized void write() throws IOException {
+		final long start = System.currentTimeMillis();
+		final File tmp = new File(file.getPath() + ".tmp");
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream(1024);
+		final DataOutputStream record = new DataOutputStream(bytes);
+		int count = 0;
+		try (final RandomAccessFile raf = new RandomAccessFile(tmp, "rw")) {
+			raf.setLength(0);
+			final DataOutputStream out = new DataOutputStream(
+					new BufferedOutputStream(new FileOutputStream(raf.getFD()),
+							65536));
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(0);
+			for (Map.Entry<String, Record> entry : records.entrySet()) {
+				bytes.reset();
+				record.writeUTF(entry.getKey());
+				final byte[] config = configs.get(entry.getKey());
+				writeBytes(record, config != null ? config : new byte[0]);
+				entry.getValue().writeTo(record);
+				out.writeInt(bytes.size());
+				bytes.writeTo(out);
+				count++;
+			}
+			// Carry over the records not claimed yet, while the fleet is
+			// being restored.
+			for (Map.Entry<String, ByteBuffer> entry : stored.entrySet()) {
+				bytes.reset();
+				record.writeUTF(entry.getKey());
+				final ByteBuffer buffer = entry.getValue().duplicate();
+				final byte[] data = new byte[buffer.remaining()];
+				buffer.get(data);
+				record.write(data);
+				out.writeInt(bytes.size());
+				bytes.writeTo(out);
+				count++;
+			}
+			out.flush();
+			// Patch in the record count.
+			raf.seek(8);
+			raf.writeInt(count);
+			lastWriteBytes = raf.length();
+		}
+		if (!tmp.renameTo(file)) {
+			// Not atomic on all platforms, if the target exists.
+			if (!file.delete() || !tmp.renameTo(file)) {
+				throw new IOException("Couldn't replace " + file);
+			}
+		}
+		lastWriteCount = count;
+		lastWriteMillis = System.currentTimeMillis() - start;
+		writes++;
+	}
+
+	/**
+	 * Gets the snapshot statistics.
+	 *
+	 * @return the stats
+	 */
+	public ObjectNode getStats() {
+		final ObjectNode result = JOM.createObjectNode();
+		result.put("file", file.getPath());
+		result.put("resources", records.size());
+		result.put("restored", restored);
+		result.put("unclaimed", stored.size());
+		result.put("loadMillis", loadMillis);
+		result.put("writes", writes);
+		result.put("lastWriteCount", lastWriteCount);
+		result.put("lastWriteBytes", lastWriteBytes);
+		result.put("lastWriteMillis", lastWriteMillis);
+		return result;
+	}
+
+	private void load() {
+		if (!file.exists()) {
+			return;
+		}
+		final long start = System.currentTimeMillis();
+		try (final RandomAccessFile raf = new RandomAccessFile(file, "r");
+				final FileChannel channel = raf.getChannel()) {
+			final MappedByteBuffer buffer = channel.map(
+					FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			if (buffer.remaining() < 12 || buffer.getInt() != MAGIC
+					|| buffer.getInt() != VERSION) {
+				LOG.warning("Ignoring unknown fleet snapshot:" + file);
+				return;
+			}
+			final int count = buffer.getInt();
+			for (int i = 0; i < count; i++) {
+				final int length = buffer.getInt();
+				final ByteBuffer slice = buffer.slice();
+				slice.limit(length);
+				buffer.position(buffer.position() + length);
+				final String id = new DataInputStream(asStream(slice))
+						.readUTF();
+				// The config and the record itself start after the id.
+				stored.put(id, slice.slice());
+			}
+			loadMillis = System.currentTimeMillis() - start;
+			LOG.info("Loaded fleet snapshot of " + count + " resources in "
+					+ loadMillis + " ms");
+		} catch (IOException | RuntimeException e) {
+			LOG.log(Level.WARNING, "Couldn't load fleet snapshot", e);
+			stored.clear();
+		}
+	}
+
+	private static InputStream asStream(final ByteBuffer buffer) {
+		return new InputStream() {
+			@Override
+			public int read() {
+				return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+			}
+
+			@Override
+			public int read(final byte[] b, final int off, final int len) {
+				if (!buffer.hasRemaining()) {
+					return -1;
+				}
+				final int count = Math.min(len, buffer.remaining());
+				buffer.get(b, off, count);
+				return count;
+			}
+		};
+	}
+
+	/**
+	 * Write a string that may be null.
+	 *
+	 * @param out
+	 *            the output
+	 * @param value
+	 *            the value, may be null
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	public static void writeString(final DataOutput out, final String value)
+			throws IOException {
+		out.writeBoolean(value != null);
+		if (value != null) {
+			out.writeUTF(value);
+		}
+	}
+
+	/**
+	 * Read a string written by {@link #writeString(DataOutput, String)}.
+	 *
+	 * @param in
+	 *            the input
+	 * @return the value, may be null
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	public static String readString(final DataInput in) throws IOException {
+		return in.readBoolean() ? in.readUTF() : null;
+	}
+
+	/**
+	 * Write a length prefixed byte array, for data that may exceed the 64KB
+	 * of writeUTF.
+	 *
+	 * @param out
+	 *            the output
+	 * @param value
+	 *            the value
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	public static void writeBytes(final DataOutput out, final byte[] value)
+			throws IOException {
+		out.writeInt(value.length);
+		out.write(value);
+	}
+
+	/**
+	 * Read a byte array written by {@link #writeBytes(DataOutput, byte[])}.
+	 *
+	 * @param in
+	 *            the input
+	 * @return the value
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	public static byte[] readBytes(final DataInput in) throws IOException {
+		final byte[] value = new byte[in.readInt()];
+		in.readFully(value);
+		return value;
+	}
+
+	/**
+	 * The state of a resource in the snapshot.
+	 */
+	public interface Record {
+
+		/**
+		 * Write the state.
+		 *
+		 * @param out
+		 *            the output
+		 * @throws IOException
+		 *             Signals that an I/O exception has occurred.
+		 */
+		void writeTo(DataOutput out) throws IOException;
+
+		/**
+		 * Restore the state.
+		 *
+		 * @param in
+		 *            the input
+		 * @throws IOException
+		 *             Signals that an I/O exception has occurred.
+		 */
+		void readFrom(DataInput in) throws IOException;
+	}
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright: Almende B.V. (2014), Rotterdam, The Netherlands
+ * License: The Apache Software License, Version 2.0
+ */
+package com.almende.bridge.resources;
+
+import com.almende.util.jackson.JOM;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * Distribution of durations in millis, in power of two buckets: bucket i
+ * holds the values below 2^i. Percentiles are reported as the upper bound
+ * of their bucket, so they're accurate within a factor two.
+ */
+public final class Histogram {
+	private static final int	BUCKETS	= 32;
+
+	private final long[]		counts	= new long[BUCKETS];
+	private long				count	= 0;
+	private long				sum		= 0;
+	private long				max		= 0;
+
+	/**
+	 * Add a value.
+	 *
+	 * @param millis
+	 *            the value
+	 */
+	public synchronized void add(final long millis) {
+		final long value = Math.max(0, millis);
+		final int bucket = Math.min(BUCKETS - 1,
+				64 - Long.numberOfLeadingZeros(value));
+		counts[bucket]++;
+		count++;
+		sum += value;
+		max = Math.max(max, value);
+	}
+
+	/**
+	 * Gets the statistics: count, mean, max and percentiles.
+	 *
+	 * @return the stats
+	 */
+	public synchronized ObjectNode getStats() {
+		final ObjectNode result = JOM.createObjectNode();
+		result.put("count", count);
+		result.put("meanMillis", count > 0 ? (double) sum / count : 0);
+		result.put("maxMillis", max);
+		result.put("p50Millis", percentile(0.5));
+		result.put("p90Millis", percentile(0.9));
+		result.put("p99Millis", percentile(0.99));
+		return result;
+	}
+
+	private long percentile(final double fraction) {
+		final long rank = (long) Math.ceil(count * fraction);
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += counts[i];
+			if (seen >= rank && seen > 0) {
+				return Math.min(max, (1L << i) - 1);
+			}
+		}
+		return 0;
+	}
+}
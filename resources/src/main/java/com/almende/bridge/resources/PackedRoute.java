@@ -0,0 +1,194 @@
+/*
+ * Copyright: Almende B.V. (2014), Rotterdam, The Netherlands
+ * License: The Apache Software License, Version 2.0
+ */
+package com.almende.bridge.resources;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Route as packed primitive arrays: longitude, latitude and the time offset
+ * (millis since the start of the route) per point. Lookups by time remember
+ * the last position, so a resource polled with increasing times moves
+ * forward in amortized constant time; other lookups binary search.
+ */
+public class PackedRoute {
+	private final double[]	lons;
+	private final double[]	lats;
+	private final long[]	millis;
+	private int				cursor	= 0;
+
+	/**
+	 * Instantiates a new packed route.
+	 *
+	 * @param points
+	 *            the points, as [lon, lat, ele, millis] arrays
+	 */
+	public PackedRoute(final List<double[]> points) {
+		final int size = points.size();
+		lons = new double[size];
+		lats = new double[size];
+		millis = new long[size];
+		for (int i = 0; i < size; i++) {
+			final double[] point = points.get(i);
+			lons[i] = point[0];
+			lats[i] = point[1];
+			millis[i] = (long) point[3];
+		}
+	}
+
+	private PackedRoute(final double[] lons, final double[] lats,
+			final long[] millis) {
+		this.lons = lons;
+		this.lats = lats;
+		this.millis = millis;
+	}
+
+	/**
+	 * Write the route in binary form.
+	 *
+	 * @param out
+	 *            the output
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	void writeTo(final DataOutput out) throws IOException {
+		out.writeInt(lons.length);
+		for (int i = 0; i < lons.length; i++) {
+			out.writeDouble(lons[i]);
+			out.writeDouble(lats[i]);
+			out.writeLong(millis[i]);
+		}
+	}
+
+	/**
+	 * Read a route from its binary form.
+	 *
+	 * @param in
+	 *            the input
+	 * @return the route
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	static PackedRoute readFrom(final DataInput in) throws IOException {
+		final int size = in.readInt();
+		final double[] lons = new double[size];
+		final double[] lats = new double[size];
+		final long[] millis = new long[size];
+		for (int i = 0; i < size; i++) {
+			lons[i] = in.readDouble();
+			lats[i] = in.readDouble();
+			millis[i] = in.readLong();
+		}
+		return new PackedRoute(lons, lats, millis);
+	}
+
+	/**
+	 * Gets the number of points.
+	 *
+	 * @return the size
+	 */
+	public int size() {
+		return lons.length;
+	}
+
+	/**
+	 * Gets the longitude of a point.
+	 *
+	 * @param index
+	 *            the index
+	 * @return the lon
+	 */
+	public double getLon(final int index) {
+		return lons[index];
+	}
+
+	/**
+	 * Gets the latitude of a point.
+	 *
+	 * @param index
+	 *            the index
+	 * @return the lat
+	 */
+	public double getLat(final int index) {
+		return lats[index];
+	}
+
+	/**
+	 * Gets the time offset of a point.
+	 *
+	 * @param index
+	 *            the index
+	 * @return the millis since the start of the route
+	 */
+	public long getMillis(final int index) {
+		return millis[index];
+	}
+
+	/**
+	 * Gets the index of the first point after the given time.
+	 *
+	 * @param time
+	 *            the millis since the start of the route
+	 * @return the index, or size() if the route has ended
+	 */
+	public synchronized int indexAfter(final long time) {
+		final int size = millis.length;
+		int index = cursor;
+		if (index > 0 && millis[index - 1] > time) {
+			index = search(time);
+		} else {
+			// Usually the resource moved a few points since the last lookup.
+			int steps = 0;
+			while (index < size && millis[index] <= time) {
+				if (++steps > 8) {
+					index = search(time);
+					break;
+				}
+				index++;
+			}
+		}
+		cursor = index;
+		return index;
+	}
+
+	/**
+	 * Gets the position at the given time, interpolated between the
+	 * surrounding points.
+	 *
+	 * @param time
+	 *            the millis since the start of the route
+	 * @return the position as [lon, lat], or null if the route has ended
+	 */
+	public double[] getPosition(final long time) {
+		final int next = indexAfter(time);
+		if (next >= millis.length) {
+			return null;
+		}
+		if (next == 0) {
+			return new double[] { lons[0], lats[0] };
+		}
+		final int last = next - 1;
+		final double part = (double) (time - millis[last])
+				/ (millis[next] - millis[last]);
+		return new double[] { lons[last] + (lons[next] - lons[last]) * part,
+				lats[last] + (lats[next] - lats[last]) * part };
+	}
+
+	private int search(final long time) {
+		int low = 0;
+		int high = millis.length;
+		while (low < high) {
+			final int mid = (low + high) >>> 1;
+			if (millis[mid] <= time) {
+				low = mid + 1;
+			} else {
+				high = mid;
+			}
+		}
+		return low;
+	}
+}
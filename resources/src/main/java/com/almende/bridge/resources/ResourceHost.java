@@ -0,0 +1,741 @@
+/*
+ * Copyright: Almende B.V. (2014), Rotterdam, The Netherlands
+ * License: The Apache Software License, Version 2.0
+ */
+package com.almende.bridge.resources;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.geojson.Feature;
+import org.geojson.FeatureCollection;
+
+import com.almende.bridge.swarm.navigation.RouteCodec;
+import com.almende.bridge.swarm.navigation.RoutingEngine;
+import com.almende.eve.algorithms.EventBus;
+import com.almende.eve.algorithms.agents.NodeAgent;
+import com.almende.eve.protocol.jsonrpc.annotation.Access;
+import com.almende.eve.protocol.jsonrpc.annotation.AccessType;
+import com.almende.eve.protocol.jsonrpc.annotation.Name;
+import com.almende.eve.protocol.jsonrpc.annotation.Namespace;
+import com.almende.eve.protocol.jsonrpc.annotation.Optional;
+import com.almende.eve.protocol.jsonrpc.annotation.Sender;
+import com.almende.eve.protocol.jsonrpc.formats.Params;
+import com.almende.util.URIUtil;
+import com.almende.util.callback.AsyncCallback;
+import com.almende.util.jackson.JOM;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * Agent hosting many virtual resources: lightweight records instead of a
+ * SimulatedResource agent per vehicle. The host joins the SFN once for all
+ * its resources, and serves their methods with an extra "resource"
+ * parameter. A virtual resource is addressed as the host URI with the
+ * resource id as fragment, e.g. "local:resourceHost#fire vehicle-3"; see
+ * {@link #address}. All resources share the host config, and use the shared
+ * timing wheel for their timers.
+ * <p>
+ * Resources that stay idle (unassigned, without route or timers) are
+ * passivated to a compact serialized form, and reactivated when they're
+ * addressed, e.g. given a plan. Task requests are answered from a transient
+ * copy of the passive record, so they don't wake the idle fleet. Configured
+ * through the "passivation" section of the simAgents config:
+ *
+ * <pre>
+ * passivation:
+ *    idleMillis: 60000
+ *    checkMillis: 10000
+ * </pre>
+ */
+@Access(AccessType.PUBLIC)
+public class ResourceHost extends NodeAgent {
+	private static final Logger						LOG			= Logger.getLogger(ResourceHost.class
+																		.getName());
+
+	private final Map<String, VirtualResource>		resources	= new ConcurrentHashMap<String, VirtualResource>();
+	private final ConcurrentMap<String, byte[]>		passive		= new ConcurrentHashMap<String, byte[]>();
+	private final Map<String, String>				strings		= new HashMap<String, String>();
+	private EventBus								events		= null;
+	private URI										navAgent	= null;
+	private RoutingEngine							embeddedRouting	= null;
+	private TimingWheel								timers		= null;
+	private ResourceIndex							index		= null;
+	private long									idleMillis	= -1;
+
+	private final AtomicLong						passivations	= new AtomicLong();
+	private final AtomicLong						activations		= new AtomicLong();
+	private final AtomicLong						passivateNanos	= new AtomicLong();
+	private final AtomicLong						activateNanos	= new AtomicLong();
+	private volatile long							maxActivateNanos	= 0;
+
+	/**
+	 * Instantiates a new resource host.
+	 */
+	public ResourceHost() {
+		super();
+	}
+
+	/**
+	 * Gets the address of a virtual resource.
+	 *
+	 * @param host
+	 *            the host
+	 * @param resource
+	 *            the resource id
+	 * @return the address
+	 */
+	public static URI address(final URI host, final String resource) {
+		try {
+			return new URI(host.getScheme(), host.getSchemeSpecificPart(),
+					resource);
+		} catch (Exception e) {
+			throw new IllegalArgumentException(e);
+		}
+	}
+
+	/**
+	 * Checks if an address is a virtual resource.
+	 *
+	 * @param address
+	 *            the address
+	 * @return true, if virtual
+	 */
+	public static boolean isVirtual(final URI address) {
+		return address.getFragment() != null;
+	}
+
+	/**
+	 * Gets the host of a virtual resource address.
+	 *
+	 * @param address
+	 *            the address
+	 * @return the host
+	 */
+	public static URI getHost(final URI address) {
+		try {
+			return new URI(address.getScheme(),
+					address.getSchemeSpecificPart(), null);
+		} catch (Exception e) {
+			throw new IllegalArgumentException(e);
+		}
+	}
+
+	/**
+	 * Gets the resource id of a virtual resource address.
+	 *
+	 * @param address
+	 *            the address
+	 * @return the resource id
+	 */
+	public static String getResource(final URI address) {
+		return address.getFragment();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see com.almende.eve.agent.Agent#onReady()
+	 */
+	@Override
+	public void onReady() {
+		final ObjectNode config = getConfig();
+		if (config.has("routing")) {
+			final ObjectNode routing = (ObjectNode) config.get("routing");
+			if (EmbeddedRouting.isEmbedded(routing)) {
+				embeddedRouting = EmbeddedRouting.getEngine(routing);
+			} else {
+				navAgent = EmbeddedRouting.getNavAgent(routing);
+			}
+		}
+		// Virtual resources have no scheduler of their own.
+		timers = TimingWheel.getInstance(config.has("timers") ? config
+				.get("timers") : JOM.createObjectNode());
+		if (ResourceIndex.isEnabled(config.get("index"))) {
+			index = ResourceIndex.getInstance(config.get("index"));
+		}
+		events = new EventBus(getScheduler(), caller, getGraph(), "SFN");
+		addNode2SFN();
+		if (config.has("passivation")) {
+			final ObjectNode passivation = (ObjectNode) config
+					.get("passivation");
+			idleMillis = passivation.has("idleMillis") ? passivation.get(
+					"idleMillis").asLong() : 60000;
+			schedulePassivation(passivation.has("checkMillis") ? passivation
+					.get("checkMillis").asLong() : 10000);
+		}
+	}
+
+	private void schedulePassivation(final long checkMillis) {
+		timers.schedule(new Runnable() {
+			@Override
+			public void run() {
+				passivateIdle();
+				schedulePassivation(checkMillis);
+			}
+		}, checkMillis);
+	}
+
+	/**
+	 * Passivate all resources that have been idle for idleMillis.
+	 */
+	private void passivateIdle() {
+		final long since = System.currentTimeMillis() - idleMillis;
+		for (Entry<String, VirtualResource> entry : resources.entrySet()) {
+			final VirtualResource resource = entry.getValue();
+			// Holding the resource, activate() can't hand it out between the
+			// idle check and its removal.
+			synchronized (resources) {
+				synchronized (resource) {
+					if (!resource.isIdle(since)) {
+						continue;
+					}
+					final long start = System.nanoTime();
+					try {
+						passive.put(entry.getKey(), serialize(resource));
+					} catch (IOException e) {
+						LOG.log(Level.WARNING, "Couldn't passivate resource", e);
+						continue;
+					}
+					resources.remove(entry.getKey());
+					passivateNanos.addAndGet(System.nanoTime() - start);
+				}
+			}
+			passivations.incrementAndGet();
+		}
+	}
+
+	private static byte[] serialize(final VirtualResource resource)
+			throws IOException {
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream(96);
+		final DataOutputStream out = new DataOutputStream(bytes);
+		resource.writeTo(out);
+		out.flush();
+		return bytes.toByteArray();
+	}
+
+	private VirtualResource deserialize(final byte[] data) {
+		try {
+			return VirtualResource.readFrom(this, new DataInputStream(
+					new ByteArrayInputStream(data)));
+		} catch (IOException e) {
+			throw new IllegalStateException("Corrupt passivated resource", e);
+		}
+	}
+
+	private static String peekType(final byte[] data) {
+		try {
+			return new DataInputStream(new ByteArrayInputStream(data))
+					.readUTF();
+		} catch (IOException e) {
+			throw new IllegalStateException("Corrupt passivated resource", e);
+		}
+	}
+
+	/**
+	 * Gets an active resource, reactivating it if it was passivated.
+	 *
+	 * @param id
+	 *            the id
+	 * @return the resource, or null if unknown
+	 */
+	private VirtualResource activate(final String id) {
+		while (true) {
+			VirtualResource resource = resources.get(id);
+			if (resource == null) {
+				synchronized (resources) {
+					resource = resources.get(id);
+					if (resource == null) {
+						final byte[] data = passive.get(id);
+						if (data == null) {
+							return null;
+						}
+						final long start = System.nanoTime();
+						resource = deserialize(data);
+						resource.touch();
+						resources.put(id, resource);
+						passive.remove(id);
+						final long nanos = System.nanoTime() - start;
+						activateNanos.addAndGet(nanos);
+						if (nanos > maxActivateNanos) {
+							maxActivateNanos = nanos;
+						}
+						activations.incrementAndGet();
+						return resource;
+					}
+				}
+			}
+			synchronized (resource) {
+				// Either the resource is still active, and touched it won't
+				// be passivated, or passivateIdle removed it since the
+				// lookup: reactivate it in that case.
+				resource.touch();
+				if (resources.get(id) == resource) {
+					return resource;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Gets a resource without reactivating it: the active one, or a transient
+	 * copy of its passive record.
+	 *
+	 * @param id
+	 *            the id
+	 * @return the resource, or null if unknown
+	 */
+	private VirtualResource peek(final String id) {
+		final VirtualResource resource = resources.get(id);
+		if (resource != null) {
+			return resource;
+		}
+		final byte[] data = passive.get(id);
+		return data != null ? deserialize(data) : null;
+	}
+
+	/**
+	 * Gets the passivation statistics.
+	 *
+	 * @return the stats
+	 */
+	public ObjectNode getPassivationStats() {
+		final ObjectNode result = JOM.createObjectNode();
+		long bytes = 0;
+		for (byte[] data : passive.values()) {
+			bytes += data.length;
+		}
+		final long passivated = passivations.get();
+		final long activated = activations.get();
+		result.put("active", resources.size());
+		result.put("passive", passive.size());
+		result.put("passiveBytes", bytes);
+		result.put("passivations", passivated);
+		result.put("activations", activated);
+		result.put("meanPassivateMicros", passivated > 0 ? passivateNanos.get()
+				/ passivated / 1000.0 : 0);
+		result.put("meanActivateMicros", activated > 0 ? activateNanos.get()
+				/ activated / 1000.0 : 0);
+		result.put("maxActivateMicros", maxActivateNanos / 1000.0);
+		return result;
+	}
+
+	/**
+	 * Gets the event bus.
+	 *
+	 * @return the event bus
+	 */
+	@Namespace("event")
+	public EventBus getEventBus() {
+		return events;
+	}
+
+	/**
+	 * Add a virtual resource, and register it at the proxy.
+	 *
+	 * @param id
+	 *            the resource id
+	 * @param resType
+	 *            the resource type
+	 * @param initLocation
+	 *            the initial location, as [lon, lat]
+	 * @param icon
+	 *            the icon
+	 * @param tag
+	 *            the tag
+	 * @param guid
+	 *            the guid
+	 */
+	public void addResource(@Name("id") String id,
+			@Name("resType") String resType,
+			@Name("initLocation") double[] initLocation,
+			@Optional @Name("icon") String icon,
+			@Optional @Name("tag") String tag, @Name("guid") String guid) {
+		final Params params = new Params();
+		params.add("tag", intern(tag != null ? tag : "empty"));
+		params.add("address",
+				createResource(id, resType, initLocation, icon, tag, guid)
+						.toString());
+		send(URIUtil.create("local:proxy"), "registerVirtual", params);
+	}
+
+	// Without registration at the proxy, for bulk creation in batches.
+	URI createResource(final String id, final String resType,
+			final double[] initLocation, final String icon, final String tag,
+			final String guid) {
+		final VirtualResource resource = new VirtualResource(this, id, guid,
+				intern(resType), intern(tag != null ? tag : "empty"),
+				intern(icon), initLocation);
+		resources.put(id, resource);
+		resource.updateIndex();
+		return getAddress(id);
+	}
+
+	URI getAddress(final String id) {
+		return address(URIUtil.create("local:" + getId()), id);
+	}
+
+	ResourceIndex getIndex() {
+		return index;
+	}
+
+	String intern(final String value) {
+		if (value == null) {
+			return null;
+		}
+		synchronized (strings) {
+			final String known = strings.get(value);
+			if (known != null) {
+				return known;
+			}
+			strings.put(value, value);
+			return value;
+		}
+	}
+
+	/**
+	 * Gets the ids of the hosted resources.
+	 *
+	 * @param tag
+	 *            the tag, null for all
+	 * @return the ids
+	 */
+	public List<String> getResources(@Optional @Name("tag") String tag) {
+		final List<String> result = new ArrayList<String>();
+		for (VirtualResource resource : resources.values()) {
+			if (tag == null || tag.equals(resource.getTag())) {
+				result.add(resource.getId());
+			}
+		}
+		for (Entry<String, byte[]> entry : passive.entrySet()) {
+			if (tag == null || tag.equals(deserialize(entry.getValue()).getTag())) {
+				result.add(entry.getKey());
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Task request, offered to all hosted resources, or only to the given
+	 * candidates. The travel times of all eligible resources are computed in
+	 * a single route matrix call, instead of a routing call per resource.
+	 *
+	 * @param task
+	 *            the task
+	 * @param reportTo
+	 *            the report to
+	 * @param candidates
+	 *            the resource ids of the candidates, null for all
+	 */
+	public void taskRequest(final @Name("task") ObjectNode task,
+			final @Name("reportTo") URI reportTo,
+			final @Optional @Name("resources") List<String> candidates) {
+		final List<VirtualResource> eligible = new ArrayList<VirtualResource>();
+		if (candidates != null) {
+			for (String id : candidates) {
+				final VirtualResource resource = peek(id);
+				if (resource != null && resource.accepts(task)) {
+					eligible.add(resource);
+				}
+			}
+		} else {
+			final String resType = task.has("resType") ? task.get("resType")
+					.asText() : null;
+			for (VirtualResource resource : resources.values()) {
+				if (resource.accepts(task)) {
+					eligible.add(resource);
+				}
+			}
+			// Passivated resources are idle: a transient copy can volunteer,
+			// they're only reactivated once they get the plan.
+			for (byte[] data : passive.values()) {
+				if (resType == null || resType.equals(peekType(data))) {
+					final VirtualResource resource = deserialize(data);
+					if (resource.accepts(task)) {
+						eligible.add(resource);
+					}
+				}
+			}
+		}
+		if (eligible.isEmpty()) {
+			return;
+		}
+		final ArrayNode origins = JOM.createArrayNode();
+		for (VirtualResource resource : eligible) {
+			final double[] pos = resource.getPosition();
+			final ObjectNode origin = origins.addObject();
+			origin.put("lat", pos[1]);
+			origin.put("lon", pos[0]);
+		}
+		getRouteMatrix(origins, task.get("lat").asDouble(), task.get("lon")
+				.asDouble(), new AsyncCallback<ArrayNode>() {
+			@Override
+			public void onSuccess(final ArrayNode result) {
+				for (int i = 0; i < eligible.size() && i < result.size(); i++) {
+					final long millis = result.get(i).get("millis").asLong();
+					if (millis >= 0) {
+						eligible.get(i).volunteer(task, reportTo, millis);
+					}
+				}
+			}
+
+			@Override
+			public void onFailure(final Exception exception) {
+				LOG.log(Level.WARNING, "Couldn't get route matrix:", exception);
+			}
+		});
+	}
+
+	/**
+	 * Sets the plan of a resource.
+	 *
+	 * @param id
+	 *            the resource id
+	 * @param planName
+	 *            the plan name
+	 * @param params
+	 *            the params
+	 * @param taskId
+	 *            the task id
+	 * @param repeat
+	 *            the repeat
+	 * @param sender
+	 *            the sender
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	public void setPlan(@Name("resource") String id,
+			@Name("plan") String planName, @Name("params") ObjectNode params,
+			@Optional @Name("id") String taskId,
+			@Optional @Name("repeat") Boolean repeat, @Sender URI sender)
+			throws IOException {
+		get(id).setPlan(planName, params, taskId, repeat, sender);
+	}
+
+	/**
+	 * Stop a resource.
+	 *
+	 * @param id
+	 *            the resource id
+	 */
+	public void stop(@Name("resource") String id) {
+		get(id).stop();
+	}
+
+	/**
+	 * Reset all hosted resources.
+	 */
+	public void reset() {
+		for (VirtualResource resource : resources.values()) {
+			resource.reset();
+		}
+		for (Entry<String, byte[]> entry : passive.entrySet()) {
+			final VirtualResource resource = deserialize(entry.getValue());
+			resource.reset();
+			try {
+				passive.replace(entry.getKey(), entry.getValue(),
+						serialize(resource));
+			} catch (IOException e) {
+				LOG.log(Level.WARNING, "Couldn't reset passivated resource", e);
+			}
+		}
+	}
+
+	/**
+	 * Gets the current location of a resource.
+	 *
+	 * @param id
+	 *            the resource id
+	 * @return the current location
+	 */
+	public ObjectNode getCurrentLocation(@Name("resource") String id) {
+		return get(id).getCurrentLocation();
+	}
+
+	/**
+	 * Gets the current locations of all hosted resources.
+	 *
+	 * @param tag
+	 *            the tag, null for all
+	 * @return the locations
+	 */
+	public ArrayNode getAllLocations(@Optional @Name("tag") String tag) {
+		final ArrayNode result = JOM.createArrayNode();
+		for (VirtualResource resource : resources.values()) {
+			if (tag == null || tag.equals(resource.getTag())) {
+				result.add(resource.getCurrentLocation());
+			}
+		}
+		// Passivated resources are idle: a transient copy can tell where.
+		for (byte[] data : passive.values()) {
+			final VirtualResource resource = deserialize(data);
+			if (tag == null || tag.equals(resource.getTag())) {
+				result.add(resource.getCurrentLocation());
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Gets the geo json description of a resource.
+	 *
+	 * @param id
+	 *            the resource id
+	 * @param incTrack
+	 *            Should the track data be included?
+	 * @param incTarget
+	 *            the inc target
+	 * @return the geo json
+	 */
+	public FeatureCollection getGeoJson(@Name("resource") String id,
+			@Optional @Name("includeTrack") Boolean incTrack,
+			@Optional @Name("includeTarget") Boolean incTarget) {
+		return get(id).getGeoJson(incTrack != null && incTrack,
+				incTarget != null && incTarget);
+	}
+
+	/**
+	 * Gets the geo json of all hosted resources, in one collection.
+	 *
+	 * @param params
+	 *            the getGeoJson params
+	 * @param tag
+	 *            the tag, null for all
+	 * @return the geo json
+	 */
+	public FeatureCollection getAllGeoJson(
+			@Optional @Name("params") ObjectNode params,
+			@Optional @Name("tag") String tag) {
+		final boolean incTrack = params != null && params.has("includeTrack")
+				&& params.get("includeTrack").asBoolean();
+		final boolean incTarget = params != null
+				&& params.has("includeTarget")
+				&& params.get("includeTarget").asBoolean();
+		final FeatureCollection fc = new FeatureCollection();
+		for (VirtualResource resource : resources.values()) {
+			if (tag == null || tag.equals(resource.getTag())) {
+				fc.addAll(resource.getGeoJson(incTrack, incTarget)
+						.getFeatures());
+			}
+		}
+		for (byte[] data : passive.values()) {
+			final VirtualResource resource = deserialize(data);
+			if (tag == null || tag.equals(resource.getTag())) {
+				fc.addAll(resource.getGeoJson(incTrack, incTarget)
+						.getFeatures());
+			}
+		}
+		return fc;
+	}
+
+	/**
+	 * Request the status of a resource.
+	 *
+	 * @param id
+	 *            the resource id
+	 * @return the status
+	 */
+	public ObjectNode requestStatus(@Name("resource") String id) {
+		return get(id).requestStatus();
+	}
+
+	private VirtualResource get(final String id) {
+		final VirtualResource resource = activate(id);
+		if (resource == null) {
+			throw new IllegalArgumentException("Unknown resource:" + id);
+		}
+		return resource;
+	}
+
+	TimingWheel getTimers() {
+		return timers;
+	}
+
+	void send(final URI to, final String method, final ObjectNode params) {
+		try {
+			call(to, method, params);
+		} catch (IOException e) {
+			LOG.log(Level.WARNING, "Couldn't send " + method, e);
+		}
+	}
+
+	Feature getPoI(final String type, final int count) throws IOException {
+		final Params params = new Params();
+		params.add("type", type);
+		params.add("count", count);
+		return callSync(URIUtil.create("local:demo"), "getPoI", params,
+				Feature.class);
+	}
+
+	private URI getNavAgent() throws IOException {
+		if (navAgent == null) {
+			throw new IOException("No routing.url configured");
+		}
+		return navAgent;
+	}
+
+	void getRoute(final double startLat, final double startLon,
+			final double endLat, final double endLon,
+			final AsyncCallback<ObjectNode> callback) {
+		if (embeddedRouting != null) {
+			final ObjectNode result;
+			try {
+				result = embeddedRouting.getRoute(startLat, startLon, endLat,
+						endLon, null);
+			} catch (RuntimeException e) {
+				callback.onFailure(e);
+				return;
+			}
+			callback.onSuccess(result);
+		} else {
+			final Params params = new Params();
+			params.put("startLat", startLat);
+			params.put("startLon", startLon);
+			params.put("endLat", endLat);
+			params.put("endLon", endLon);
+			params.put("encoding", RouteCodec.POLYLINE);
+			try {
+				call(getNavAgent(), "getRoute", params, callback);
+			} catch (IOException e) {
+				callback.onFailure(e);
+			}
+		}
+	}
+
+	void getRouteMatrix(final ArrayNode origins, final double endLat,
+			final double endLon, final AsyncCallback<ArrayNode> callback) {
+		if (embeddedRouting != null) {
+			final ArrayNode result;
+			try {
+				result = embeddedRouting.getRouteMatrix(origins, endLat, endLon);
+			} catch (RuntimeException e) {
+				callback.onFailure(e);
+				return;
+			}
+			callback.onSuccess(result);
+		} else {
+			final Params params = new Params();
+			params.set("origins", origins);
+			params.put("endLat", endLat);
+			params.put("endLon", endLon);
+			try {
+				call(getNavAgent(), "getRouteMatrix", params, callback);
+			} catch (IOException e) {
+				callback.onFailure(e);
+			}
+		}
+	}
+}
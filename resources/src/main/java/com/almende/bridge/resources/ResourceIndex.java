@@ -0,0 +1,451 @@
+/*
+ * Copyright: Almende B.V. (2014), Rotterdam, The Netherlands
+ * License: The Apache Software License, Version 2.0
+ */
+package com.almende.bridge.resources;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import com.almende.util.jackson.JOM;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * Process wide spatial index of the idle (unassigned) resources, per
+ * resource type, on a uniform lon/lat grid. Resources update their own entry
+ * when their deployment state or resting position changes; moving resources
+ * are never idle, so the index doesn't have to follow them. The demo
+ * generator uses it to send task requests only to the nearest eligible
+ * candidates, instead of broadcasting them to all resources. Queries share
+ * a read lock, only updates take the write lock. Configured through the
+ * "index" section of the simAgents config:
+ *
+ * <pre>
+ * index:
+ *    enabled: true
+ *    cellDegrees: 0.05
+ *    candidates: 5
+ * </pre>
+ */
+public final class ResourceIndex {
+	private static final double					DEFAULTCELL		= 0.05;
+	private static final int					DEFAULTCANDIDATES	= 5;
+	private static final double					METERSPERDEGREE	= 111320;
+	private static ResourceIndex				instance		= null;
+
+	private final double						cellDegrees;
+	private final int							candidates;
+	private final Map<String, Grid>				grids			= new HashMap<String, Grid>();
+	private final Map<URI, Item>				items			= new HashMap<URI, Item>();
+	private final ReadWriteLock					lock			= new ReentrantReadWriteLock();
+
+	private final AtomicLong					queries			= new AtomicLong();
+	private final AtomicLong					queryNanos		= new AtomicLong();
+	private final AtomicLong					updates			= new AtomicLong();
+
+	/**
+	 * Instantiates a separate index, as in the tests; resources use the
+	 * process wide one from {@link #getInstance(JsonNode)}.
+	 *
+	 * @param cellDegrees
+	 *            the cell size in degrees
+	 * @param candidates
+	 *            the number of candidates a task should be offered to
+	 */
+	ResourceIndex(final double cellDegrees, final int candidates) {
+		this.cellDegrees = cellDegrees;
+		this.candidates = candidates;
+	}
+
+	/**
+	 * Checks if the index config enables the index.
+	 *
+	 * @param config
+	 *            the index config, may be null
+	 * @return true, if enabled
+	 */
+	public static boolean isEnabled(final JsonNode config) {
+		return config != null && config.has("enabled")
+				&& config.get("enabled").asBoolean();
+	}
+
+	/**
+	 * Gets the index, creating it on first use.
+	 *
+	 * @param config
+	 *            the index config
+	 * @return the index
+	 */
+	public static synchronized ResourceIndex getInstance(final JsonNode config) {
+		if (instance == null) {
+			instance = new ResourceIndex(config.has("cellDegrees") ? config
+					.get("cellDegrees").asDouble() : DEFAULTCELL,
+					config.has("candidates") ? config.get("candidates")
+							.asInt() : DEFAULTCANDIDATES);
+		}
+		return instance;
+	}
+
+	/**
+	 * Gets the index if it is running.
+	 *
+	 * @return the index, or null
+	 */
+	public static synchronized ResourceIndex getRunning() {
+		return instance;
+	}
+
+	/**
+	 * Gets the number of candidates a task should be offered to.
+	 *
+	 * @return the candidates
+	 */
+	public int getCandidates() {
+		return candidates;
+	}
+
+	/**
+	 * Update the entry of a resource: idle resources are (re)placed at their
+	 * position, others are removed.
+	 *
+	 * @param address
+	 *            the address of the resource
+	 * @param resType
+	 *            the resource type
+	 * @param lon
+	 *            the lon
+	 * @param lat
+	 *            the lat
+	 * @param idle
+	 *            is the resource idle?
+	 */
+	public void update(final URI address, final String resType,
+			final double lon, final double lat, final boolean idle) {
+		updates.incrementAndGet();
+		lock.writeLock().lock();
+		try {
+			Item item = items.get(address);
+			if (item != null) {
+				if (idle && item.resType.equals(resType)
+						&& item.cell == cell(lon, lat)) {
+					item.lon = lon;
+					item.lat = lat;
+					return;
+				}
+				grids.get(item.resType).remove(item);
+				items.remove(address);
+			}
+			if (!idle) {
+				return;
+			}
+			item = new Item(address, resType, lon, lat, cell(lon, lat));
+			Grid grid = grids.get(resType);
+			if (grid == null) {
+				grid = new Grid();
+				grids.put(resType, grid);
+			}
+			grid.add(item);
+			items.put(address, item);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Remove a resource.
+	 *
+	 * @param address
+	 *            the address of the resource
+	 */
+	public void remove(final URI address) {
+		lock.writeLock().lock();
+		try {
+			final Item item = items.remove(address);
+			if (item != null) {
+				grids.get(item.resType).remove(item);
+			}
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Gets the k nearest idle resources of a type.
+	 *
+	 * @param resType
+	 *            the resource type, null for any
+	 * @param lon
+	 *            the lon
+	 * @param lat
+	 *            the lat
+	 * @param k
+	 *            the number of resources
+	 * @return the addresses, nearest first; empty if k isn't positive
+	 */
+	public List<URI> nearest(final String resType, final double lon,
+			final double lat, final int k) {
+		if (k <= 0) {
+			return new ArrayList<URI>(0);
+		}
+		final long start = System.nanoTime();
+		final List<Hit> found = new ArrayList<Hit>();
+		lock.readLock().lock();
+		try {
+			for (Grid grid : getGrids(resType)) {
+				grid.nearest(lon, lat, k, found);
+			}
+		} finally {
+			lock.readLock().unlock();
+		}
+		Collections.sort(found);
+		final List<URI> result = new ArrayList<URI>(Math.min(k, found.size()));
+		for (int i = 0; i < found.size() && i < k; i++) {
+			result.add(found.get(i).address);
+		}
+		queries.incrementAndGet();
+		queryNanos.addAndGet(System.nanoTime() - start);
+		return result;
+	}
+
+	/**
+	 * Gets the idle resources of a type within a radius.
+	 *
+	 * @param resType
+	 *            the resource type, null for any
+	 * @param lon
+	 *            the lon
+	 * @param lat
+	 *            the lat
+	 * @param radius
+	 *            the radius in meters
+	 * @return the addresses, nearest first
+	 */
+	public List<URI> within(final String resType, final double lon,
+			final double lat, final double radius) {
+		final long start = System.nanoTime();
+		final List<Hit> found = new ArrayList<Hit>();
+		final int rings = (int) Math.ceil(radius / cellMeters(lat));
+		lock.readLock().lock();
+		try {
+			for (Grid grid : getGrids(resType)) {
+				for (int ring = 0; ring <= rings; ring++) {
+					grid.ring(cellX(lon), cellY(lat), ring, lon, lat, found);
+				}
+			}
+		} finally {
+			lock.readLock().unlock();
+		}
+		final List<URI> result = new ArrayList<URI>();
+		Collections.sort(found);
+		for (Hit hit : found) {
+			if (hit.distance <= radius) {
+				result.add(hit.address);
+			}
+		}
+		queries.incrementAndGet();
+		queryNanos.addAndGet(System.nanoTime() - start);
+		return result;
+	}
+
+	/**
+	 * Gets the index statistics.
+	 *
+	 * @return the stats
+	 */
+	public ObjectNode getStats() {
+		final ObjectNode result = JOM.createObjectNode();
+		final ObjectNode idle = JOM.createObjectNode();
+		lock.readLock().lock();
+		try {
+			for (Map.Entry<String, Grid> entry : grids.entrySet()) {
+				idle.put(entry.getKey(), entry.getValue().size);
+			}
+		} finally {
+			lock.readLock().unlock();
+		}
+		final long count = queries.get();
+		result.set("idle", idle);
+		result.put("cellDegrees", cellDegrees);
+		result.put("updates", updates.get());
+		result.put("queries", count);
+		result.put("meanQueryMicros", count > 0 ? queryNanos.get() / count
+				/ 1000.0 : 0);
+		return result;
+	}
+
+	private Collection<Grid> getGrids(final String resType) {
+		if (resType == null) {
+			return grids.values();
+		}
+		final Grid grid = grids.get(resType);
+		return grid != null ? Collections.singletonList(grid) : Collections
+				.<Grid> emptyList();
+	}
+
+	private int cellX(final double lon) {
+		return (int) Math.floor(lon / cellDegrees);
+	}
+
+	private int cellY(final double lat) {
+		return (int) Math.floor(lat / cellDegrees);
+	}
+
+	private long cell(final double lon, final double lat) {
+		return key(cellX(lon), cellY(lat));
+	}
+
+	private static long key(final int x, final int y) {
+		return ((long) x << 32) | (y & 0xFFFFFFFFL);
+	}
+
+	// The smallest side of a cell around the given latitude.
+	private double cellMeters(final double lat) {
+		return cellDegrees * METERSPERDEGREE
+				* Math.max(0.01,
+						Math.cos(Math.toRadians(Math.abs(lat) + cellDegrees)));
+	}
+
+	// Equirectangular approximation, good enough at city scale.
+	private static double distance(final Item item, final double lon,
+			final double lat) {
+		final double dx = (item.lon - lon) * METERSPERDEGREE
+				* Math.cos(Math.toRadians((item.lat + lat) / 2));
+		final double dy = (item.lat - lat) * METERSPERDEGREE;
+		return Math.sqrt(dx * dx + dy * dy);
+	}
+
+	private class Grid {
+		private final Map<Long, List<Item>>	cells	= new HashMap<Long, List<Item>>();
+		private int							size	= 0;
+		private int							minX	= Integer.MAX_VALUE;
+		private int							maxX	= Integer.MIN_VALUE;
+		private int							minY	= Integer.MAX_VALUE;
+		private int							maxY	= Integer.MIN_VALUE;
+
+		void add(final Item item) {
+			List<Item> list = cells.get(item.cell);
+			if (list == null) {
+				list = new ArrayList<Item>(4);
+				cells.put(item.cell, list);
+			}
+			list.add(item);
+			size++;
+			final int x = (int) (item.cell >> 32);
+			final int y = (int) item.cell;
+			minX = Math.min(minX, x);
+			maxX = Math.max(maxX, x);
+			minY = Math.min(minY, y);
+			maxY = Math.max(maxY, y);
+		}
+
+		void remove(final Item item) {
+			final List<Item> list = cells.get(item.cell);
+			if (list != null && list.remove(item)) {
+				size--;
+				if (list.isEmpty()) {
+					cells.remove(item.cell);
+				}
+			}
+		}
+
+		/**
+		 * Collect at least the k nearest items, searching rings of cells
+		 * around the position until the next ring can't contain anything
+		 * closer than the k-th item found so far.
+		 */
+		void nearest(final double lon, final double lat, final int k,
+				final List<Hit> found) {
+			if (size == 0) {
+				return;
+			}
+			final int x = cellX(lon);
+			final int y = cellY(lat);
+			// Beyond this ring, there are no more cells with items.
+			final int maxRing = Math.max(Math.max(Math.abs(x - minX),
+					Math.abs(maxX - x)), Math.max(Math.abs(y - minY),
+					Math.abs(maxY - y)));
+			final double cellMeters = cellMeters(lat);
+			final List<Hit> local = new ArrayList<Hit>();
+			for (int ring = 0; ring <= maxRing; ring++) {
+				ring(x, y, ring, lon, lat, local);
+				if (local.size() >= k) {
+					Collections.sort(local);
+					// Anything in the next ring is at least this far away.
+					if (local.get(k - 1).distance <= ring * cellMeters) {
+						break;
+					}
+				}
+			}
+			found.addAll(local);
+		}
+
+		void ring(final int x, final int y, final int ring, final double lon,
+				final double lat, final List<Hit> found) {
+			if (ring == 0) {
+				addCell(x, y, lon, lat, found);
+				return;
+			}
+			for (int i = -ring; i <= ring; i++) {
+				addCell(x + i, y - ring, lon, lat, found);
+				addCell(x + i, y + ring, lon, lat, found);
+			}
+			for (int i = -ring + 1; i < ring; i++) {
+				addCell(x - ring, y + i, lon, lat, found);
+				addCell(x + ring, y + i, lon, lat, found);
+			}
+		}
+
+		private void addCell(final int x, final int y, final double lon,
+				final double lat, final List<Hit> found) {
+			final List<Item> list = cells.get(key(x, y));
+			if (list != null) {
+				for (Item item : list) {
+					found.add(new Hit(item.address, distance(item, lon, lat)));
+				}
+			}
+		}
+	}
+
+	private static class Item {
+		final URI		address;
+		final String	resType;
+		final long		cell;
+		double			lon;
+		double			lat;
+
+		Item(final URI address, final String resType, final double lon,
+				final double lat, final long cell) {
+			this.address = address;
+			this.resType = resType;
+			this.lon = lon;
+			this.lat = lat;
+			this.cell = cell;
+		}
+	}
+
+	// An item found by a query, with its distance to the query position;
+	// kept apart from the item, as queries run concurrently.
+	private static class Hit implements Comparable<Hit> {
+		final URI		address;
+		final double	distance;
+
+		Hit(final URI address, final double distance) {
+			this.address = address;
+			this.distance = distance;
+		}
+
+		@Override
+		public int compareTo(final Hit o) {
+			return Double.compare(distance, o.distance);
+		}
+	}
+}
@@ -8,8 +8,11 @@ import java.io.IOException;
 import java.net.URI;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import javax.ws.rs.GET;
 import javax.ws.rs.Path;
@@ -43,6 +46,7 @@ public class ResourceProxy extends Agent {
 	static ResourceProxy			SINGLETON	= null;
 
 	static Map<String, List<URI>>	agents		= new HashMap<String, List<URI>>();
+	static Map<String, URI>			virtual		= new HashMap<String, URI>();
 
 	/**
 	 * Gets the all resources.
@@ -97,6 +101,117 @@ public class ResourceProxy extends Agent {
 		}
 	}
 
+	/**
+	 * Register a virtual resource of a {@link ResourceHost}.
+	 *
+	 * @param tag
+	 *            the tag
+	 * @param address
+	 *            the address of the resource
+	 */
+	public void registerVirtual(@Name("tag") String tag,
+			@Name("address") URI address) {
+		synchronized (agents) {
+			List<URI> list = agents.get(tag);
+			if (list == null) {
+				list = new ArrayList<URI>();
+				agents.put(tag, list);
+			}
+			list.add(address);
+			virtual.put(ResourceHost.getResource(address), address);
+		}
+	}
+
+	/**
+	 * Register a batch of resources under a single lock, instead of a
+	 * register call per agent. Addresses already registered under the tag are
+	 * skipped; addresses of virtual resources are recognized as such.
+	 *
+	 * @param tag
+	 *            the tag
+	 * @param addresses
+	 *            the addresses of the resources
+	 * @return the number of resources registered under this tag
+	 */
+	public int registerAll(@Name("tag") String tag,
+			@Name("addresses") List<URI> addresses) {
+		synchronized (agents) {
+			List<URI> list = agents.get(tag);
+			if (list == null) {
+				list = new ArrayList<URI>(addresses.size());
+				agents.put(tag, list);
+			}
+			final Set<URI> known = new HashSet<URI>(list);
+			for (URI address : addresses) {
+				if (!known.add(address)) {
+					continue;
+				}
+				list.add(address);
+				if (ResourceHost.isVirtual(address)) {
+					virtual.put(ResourceHost.getResource(address), address);
+				}
+			}
+			return list.size();
+		}
+	}
+
+	/**
+	 * Gets the fleet engine statistics.
+	 *
+	 * @return the stats, or null if the fleet engine isn't running
+	 */
+	public ObjectNode getFleetStats() {
+		final FleetEngine fleet = FleetEngine.getRunning();
+		return fleet != null ? fleet.getStats() : null;
+	}
+
+	/**
+	 * Gets the spatial index statistics: idle resources per type, and query
+	 * times.
+	 *
+	 * @return the stats, or null if the index isn't running
+	 */
+	public ObjectNode getIndexStats() {
+		final ResourceIndex index = ResourceIndex.getRunning();
+		return index != null ? index.getStats() : null;
+	}
+
+	/**
+	 * Gets the fleet snapshot statistics.
+	 *
+	 * @return the stats, or null if snapshots aren't enabled
+	 */
+	public ObjectNode getSnapshotStats() {
+		final FleetSnapshot snapshot = FleetSnapshot.getRunning();
+		return snapshot != null ? snapshot.getStats() : null;
+	}
+
+	/**
+	 * Write a fleet snapshot now, instead of waiting for the next interval.
+	 *
+	 * @return the stats, or null if snapshots aren't enabled
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	public ObjectNode writeSnapshot() throws IOException {
+		final FleetSnapshot snapshot = FleetSnapshot.getRunning();
+		if (snapshot == null) {
+			return null;
+		}
+		snapshot.write();
+		return snapshot.getStats();
+	}
+
+	/**
+	 * Gets the timing wheel statistics: pending timers, expiries and tick lag.
+	 *
+	 * @return the stats, or null if the timing wheel isn't running
+	 */
+	public ObjectNode getTimerStats() {
+		final TimingWheel timers = TimingWheel.getRunning();
+		return timers != null ? timers.getStats() : null;
+	}
+
 	/**
 	 * Gets the all geo json.
 	 *
@@ -155,8 +270,19 @@ public class ResourceProxy extends Agent {
 				: false);
 		params.add("includeTarget", target != null ? Boolean.valueOf(target)
 				: true);
-		FeatureCollection fc = callSync(URIUtil.create("local:" + id),
-				"getGeoJson", params, FeatureCollection.class);
+		final URI address;
+		synchronized (agents) {
+			address = virtual.get(id);
+		}
+		final FeatureCollection fc;
+		if (address != null) {
+			params.add("resource", ResourceHost.getResource(address));
+			fc = callSync(ResourceHost.getHost(address), "getGeoJson", params,
+					FeatureCollection.class);
+		} else {
+			fc = callSync(URIUtil.create("local:" + id), "getGeoJson",
+					params, FeatureCollection.class);
+		}
 		return Response.ok(fc).build();
 	}
 
@@ -196,6 +322,30 @@ public class ResourceProxy extends Agent {
 		return neighbors;
 	}
 
+	/**
+	 * Replace the virtual resources in a list of neighbors by their hosts, so
+	 * each host is asked once for all of its resources.
+	 *
+	 * @param neighbors
+	 *            the neighbors
+	 * @return the hosts
+	 */
+	private static List<URI> extractHosts(final List<URI> neighbors) {
+		final List<URI> hosts = new ArrayList<URI>();
+		final Iterator<URI> iter = neighbors.iterator();
+		while (iter.hasNext()) {
+			final URI uri = iter.next();
+			if (ResourceHost.isVirtual(uri)) {
+				iter.remove();
+				final URI host = ResourceHost.getHost(uri);
+				if (!hosts.contains(host)) {
+					hosts.add(host);
+				}
+			}
+		}
+		return hosts;
+	}
+
 	/**
 	 * Gets the all geo json.
 	 *
@@ -212,6 +362,29 @@ public class ResourceProxy extends Agent {
 			@Optional @Name("tag") String tag) throws IOException {
 		final ArrayList<FeatureCollection> result = new ArrayList<FeatureCollection>();
 		final List<URI> neighbors = getNeighbors(tag);
+		final List<URI> hosts = extractHosts(neighbors);
+		final AsyncCallback<FeatureCollection> callback = new AsyncCallback<FeatureCollection>() {
+
+			@Override
+			public void onSuccess(FeatureCollection res) {
+				synchronized (result) {
+					result.add(res);
+				}
+			}
+
+			@Override
+			public void onFailure(Exception exception) {
+				synchronized (result) {
+					result.add(new FeatureCollection());
+				}
+			}
+		};
+		for (URI host : hosts) {
+			final Params hostParams = new Params();
+			hostParams.set("params", params);
+			hostParams.put("tag", tag);
+			call(host, "getAllGeoJson", hostParams, callback);
+		}
 		for (URI uri : neighbors) {
 			call(uri, "getGeoJson", params,
 					new AsyncCallback<FeatureCollection>() {
@@ -241,7 +414,7 @@ public class ResourceProxy extends Agent {
 		synchronized (result) {
 			size = result.size();
 		}
-		while (size < neighbors.size()) {
+		while (size < neighbors.size() + hosts.size()) {
 			try {
 				Thread.sleep(50);
 			} catch (InterruptedException e) {}
@@ -270,7 +443,32 @@ public class ResourceProxy extends Agent {
 			throws IOException {
 		final ArrayNode result = JOM.createArrayNode();
 		final List<URI> neighbors = getNeighbors(tag);
+		final List<URI> hosts = extractHosts(neighbors);
+		// Hosts done, and the locations they added.
+		final int[] hostsDone = new int[2];
+
+		for (URI host : hosts) {
+			call(host, "getAllLocations", new Params("tag", tag),
+					new AsyncCallback<ArrayNode>() {
 
+						@Override
+						public void onSuccess(ArrayNode res) {
+							synchronized (result) {
+								result.addAll(res);
+								hostsDone[0]++;
+								hostsDone[1] += res.size();
+							}
+						}
+
+						@Override
+						public void onFailure(Exception exception) {
+							synchronized (result) {
+								hostsDone[0]++;
+							}
+						}
+
+					});
+		}
 		for (URI uri : neighbors) {
 			call(uri, "getCurrentLocation", null,
 					new AsyncCallback<ObjectNode>() {
@@ -292,15 +490,18 @@ public class ResourceProxy extends Agent {
 					});
 		}
 		int size = Integer.MAX_VALUE;
+		int done = 0;
 		synchronized (result) {
-			size = result.size();
+			size = result.size() - hostsDone[1];
+			done = hostsDone[0];
 		}
-		while (size < neighbors.size()) {
+		while (done < hosts.size() || size < neighbors.size()) {
 			try {
 				Thread.sleep(50);
 			} catch (InterruptedException e) {}
 			synchronized (result) {
-				size = result.size();
+				size = result.size() - hostsDone[1];
+				done = hostsDone[0];
 			}
 		}
 		return result;
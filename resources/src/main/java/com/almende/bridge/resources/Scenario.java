@@ -0,0 +1,386 @@
+/*
+ * Copyright: Almende B.V. (2014), Rotterdam, The Netherlands
+ * License: The Apache Software License, Version 2.0
+ */
+package com.almende.bridge.resources;
+
+import com.almende.eve.protocol.jsonrpc.formats.Params;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * The demo scenario script: per step the points of interest to add and the
+ * tasks to send out. The script is shared between the DemoGenerator, which
+ * plays it against live agents, and the offline simulation runner.
+ */
+public final class Scenario {
+
+	/**
+	 * The steps of the scenario, in order.
+	 */
+	public static final String[]	STEPS	= { "reset", "incident",
+			"assessment", "scaleUp", "handling" };
+
+	/**
+	 * What the scenario acts upon.
+	 */
+	public interface Target {
+
+		/**
+		 * Remove all points of interest and reset all resources.
+		 */
+		void reset();
+
+		/**
+		 * Store places of interest.
+		 *
+		 * @param type
+		 *            the type
+		 * @param list
+		 *            the locations, as [lon, lat]
+		 */
+		void storePlacesOfInterest(String type, double[][] list);
+
+		/**
+		 * Store point of interest properties.
+		 *
+		 * @param key
+		 *            the key, as type-number
+		 * @param label
+		 *            the label
+		 * @param icon
+		 *            the icon
+		 */
+		void createPoIproperties(String key, String label, String icon);
+
+		/**
+		 * Count the places of interest of a type.
+		 *
+		 * @param type
+		 *            the type
+		 * @return the count
+		 */
+		int countPoI(String type);
+
+		/**
+		 * Send a task at a point of interest.
+		 *
+		 * @param planName
+		 *            the plan name
+		 * @param type
+		 *            the resource type
+		 * @param poiType
+		 *            the poi type
+		 * @param poiNumber
+		 *            the poi number
+		 * @param minutes
+		 *            the minutes within which the task should be started
+		 * @param taskParams
+		 *            the task params
+		 */
+		void sendTaskPoI(String planName, String type, String poiType,
+				int poiNumber, int minutes, ObjectNode taskParams);
+
+		/**
+		 * Start the periodic ambulance evacuations.
+		 */
+		void startEvac();
+	}
+
+	private Scenario() {}
+
+	/**
+	 * Run a step of the scenario.
+	 *
+	 * @param step
+	 *            the step
+	 * @param target
+	 *            the target
+	 * @return true, if the step is known
+	 */
+	public static boolean run(final String step, final Target target) {
+		switch (step) {
+			case "reset":
+				target.reset();
+
+				double initHospital[][] = { { 1.452668, 43.559601 },
+						{ 1.400976, 43.610032 }, { 1.431940, 43.600344 },
+						{ 1.452860, 43.552724 } };
+				target.storePlacesOfInterest("hospital", initHospital);
+				target.createPoIproperties("hospital-0", "Rangueil",
+						"hospital_building.png");
+				target.createPoIproperties("hospital-1", "Purpan",
+						"hospital_building.png");
+				target.createPoIproperties("hospital-2", "La Grave",
+						"hospital_building.png");
+				target.createPoIproperties("hospital-3", "Larrey",
+						"hospital_building.png");
+
+				double initDamagedHospital[][] = { { 1.420396, 43.560099 } };
+				target.storePlacesOfInterest("damagedHospital",
+						initDamagedHospital);
+				target.createPoIproperties("damagedHospital-0", "Marchant",
+						"hospital_building.png");
+
+				double policeStation[][] = { { 1.431868, 43.597184 },
+						{ 1.412553, 43.579855 }, { 1.456670, 43.571616 },
+						{ 1.400537, 43.565397 }, { 1.462464, 43.610998 },
+						{ 1.483750, 43.578798 } };
+				target.storePlacesOfInterest("policeStation", policeStation);
+				target.createPoIproperties("policeStation-0", "policeStation-1",
+						"police_building.png");
+				target.createPoIproperties("policeStation-1", "policeStation-2",
+						"police_building.png");
+				target.createPoIproperties("policeStation-2", "policeStation-3",
+						"police_building.png");
+				target.createPoIproperties("policeStation-3", "policeStation-4",
+						"police_building.png");
+				target.createPoIproperties("policeStation-4", "policeStation-5",
+						"police_building.png");
+				target.createPoIproperties("policeStation-5", "policeStation-6",
+						"police_building.png");
+
+				double fireStation[][] = { { 1.455619, 43.595087 },
+						{ 1.355983, 43.593078 }, { 1.473571, 43.554649 },
+						{ 1.432859, 43.594798 }, { 1.464916, 43.600050 },
+						{ 1.410107, 43.533935 } };
+				target.storePlacesOfInterest("fireStation", fireStation);
+				target.createPoIproperties("fireStation-0", "fireStation-1",
+						"firedpt_building.png");
+				target.createPoIproperties("fireStation-1", "fireStation-2",
+						"firedpt_building.png");
+				target.createPoIproperties("fireStation-2", "fireStation-3",
+						"firedpt_building.png");
+				target.createPoIproperties("fireStation-3", "fireStation-4",
+						"firedpt_building.png");
+				target.createPoIproperties("fireStation-4", "fireStation-5",
+						"firedpt_building.png");
+				target.createPoIproperties("fireStation-5", "fireStation-6",
+						"firedpt_building.png");
+
+				// Setup resources (most are there already through the keep
+				// eve.yaml)
+				// Load point of interest with "original icons"
+				break;
+			case "incident":
+				// Add incident poi, rvpFire0 near incident, roadblock0 at
+				// freeway
+				double incident[][] = { { 1.427344, 43.567000 } };
+				target.storePlacesOfInterest("incident", incident);
+				target.createPoIproperties("incident-0", "AZF fire/explosion",
+						"incidents_hazards/fire.svg");
+
+				double rb1[][] = { { 1.424354, 43.569847 } };
+				target.storePlacesOfInterest("roadblock", rb1);
+				target.createPoIproperties("roadblock-0", "rb-0",
+						"cordons_zones_areas/scene_access_control_point_black_and_white.svg");
+
+				double rvf1[][] = { { 1.424404, 43.567260 } };
+				target.storePlacesOfInterest("rvpFire", rvf1);
+				target.createPoIproperties("rvpFire-0", "rvpf-0",
+						"assets/rendevous_point_fire.svg");
+
+				// 2x Firetruck goto rvpFire0, police goto roadblock0
+				Params params = new Params();
+				params.add("poiType", "rvpFire");
+				params.add("poiNumber", "0");
+				params.add("title", "Put out fire");
+				target.sendTaskPoI("GotoAndStay", "fire vehicle", "rvpFire", 0,
+						15, params);
+				target.sendTaskPoI("GotoAndStay", "fire vehicle", "rvpFire", 0,
+						15, params);
+
+				Params params2 = new Params();
+				params2.add("poiType", "roadblock");
+				params2.add("poiNumber", "0");
+				params2.add("title", "Set up road block");
+				target.sendTaskPoI("GotoAndStay", "police vehicle", "roadblock",
+						0, 15, params2);
+
+				break;
+			case "assessment":
+				// add roadblock 1, rvpFire1
+
+				double rb2[][] = { { 1.423846, 43.559564 } };
+				target.storePlacesOfInterest("roadblock", rb2);
+				target.createPoIproperties("roadblock-1", "rb-1",
+						"incidents_hazards/road_block.png");
+
+				double rvf2[][] = { { 1.426443, 43.563031 } };
+				target.storePlacesOfInterest("rvpFire", rvf2);
+				target.createPoIproperties("rvpFire-1", "rvpf-1",
+						"assets/rendevous_point_fire.svg");
+
+				// 2x Firetruck goto rvpFire1, 1x firetruck goto rvpFire0, 2x
+				// police goto roadblock1 1x police goto roadblock0.
+				Params params3 = new Params();
+				params3.add("poiType", "rvpFire");
+				params3.add("poiNumber", "1");
+				params3.add("title", "Put out fire");
+
+				target.sendTaskPoI("GotoAndStay", "fire vehicle", "rvpFire", 1,
+						15, params3);
+				target.sendTaskPoI("Goto", "fire vehicle", "rvpFire", 1, 15,
+						params3);
+
+				Params params4 = new Params();
+				params4.add("poiType", "rvpFire");
+				params4.add("poiNumber", "0");
+				params4.add("title", "Rescue task");
+				target.sendTaskPoI("GotoAndStay", "fire vehicle", "rvpFire", 0,
+						15, params4);
+
+				Params params5 = new Params();
+				params5.add("poiType", "roadblock");
+				params5.add("poiNumber", "1");
+				params5.add("title", "Set up road block");
+				target.sendTaskPoI("GotoAndStay", "police vehicle", "roadblock",
+						1, 15, params5);
+				target.sendTaskPoI("Goto", "police vehicle", "roadblock", 1, 15,
+						params5);
+
+				Params params6 = new Params();
+				params6.add("poiType", "roadblock");
+				params6.add("poiNumber", "0");
+				params6.add("title", "Set up road block");
+				target.sendTaskPoI("RoadBlock", "police vehicle", "roadblock",
+						0, 15, params6);
+
+				break;
+			case "scaleUp":
+				double roadblock[][] = { { 1.428539, 43.570415 },
+						{ 1.435995, 43.572156 }, { 1.422178, 43.563294 },
+						{ 1.424631, 43.559758 }, { 1.431684, 43.557258 },
+						{ 1.410907, 43.552105 }, { 1.420585, 43.549564 } };
+				target.storePlacesOfInterest("roadblock", roadblock);
+				target.createPoIproperties("roadblock-2", "rb-2",
+						"incidents_hazards/road_block.png");
+				target.createPoIproperties("roadblock-3", "rb-3",
+						"incidents_hazards/road_block.png");
+				target.createPoIproperties("roadblock-4", "rb-4",
+						"incidents_hazards/road_block.png");
+				target.createPoIproperties("roadblock-5", "rb-5",
+						"incidents_hazards/road_block.png");
+				target.createPoIproperties("roadblock-6", "rb-6",
+						"incidents_hazards/road_block.png");
+				target.createPoIproperties("roadblock-7", "rb-7",
+						"incidents_hazards/road_block.png");
+				target.createPoIproperties("roadblock-8", "rb-8",
+						"incidents_hazards/road_block.png");
+				target.createPoIproperties("roadblock-9", "rb-9",
+						"incidents_hazards/road_block.png");
+
+				double hospital[][] = { { 1.452668, 43.559601 },
+						{ 1.400976, 43.610032 }, { 1.431940, 43.600344 },
+						{ 1.452860, 43.552724 } };
+				target.storePlacesOfInterest("hospital", hospital);
+				target.createPoIproperties("hospital-0", "Rangueil",
+						"infrastructures/hospital_green.svg");
+				target.createPoIproperties("hospital-1", "Purpan",
+						"infrastructures/hospital_green.svg");
+				target.createPoIproperties("hospital-2", "La Grave",
+						"infrastructures/hospital_green.svg");
+				target.createPoIproperties("hospital-3", "Larrey",
+						"infrastructures/hospital_green.svg");
+
+				double damagedHospital[][] = { { 1.420396, 43.560099 } };
+				target.storePlacesOfInterest("damagedHospital",
+						damagedHospital);
+				target.createPoIproperties("damagedHospital-0", "Marchant",
+						"infrastructures/hospital_red.svg");
+
+				double rpAmbulances[][] = { { 1.424318, 43.569079 },
+						{ 1.424490, 43.559548 } };
+				target.storePlacesOfInterest("rvpAmbu", rpAmbulances);
+				target.createPoIproperties("rvpAmbu-0", "rvpa-0",
+						"assets/rendevous_point_ambulance.svg");
+				target.createPoIproperties("rvpAmbu-1", "rvpa-1",
+						"assets/rendevous_point_ambulance.svg");
+
+				double commandPost[][] = { { 1.423707, 43.556492 },
+						{ 1.423411, 43.568942 } };
+				target.storePlacesOfInterest("commandPost", commandPost);
+				target.createPoIproperties("commandPost-0", "cp-1",
+						"command_control_coordination_communication_sites/incident_command_post_police_fire_and_ambulance.svg");
+				target.createPoIproperties("commandPost-1", "cp-2",
+						"command_control_coordination_communication_sites/gold_command_post_police_fire_and_ambulance.svg");
+
+				// Per roadblock, 2 policecars, start Ambulance bridge to
+				// hospitals (~10), 10 fire trucks moving in to the two rvpFire.
+				final int length = target.countPoI("roadblock");
+				for (int i = 0; i < length; i++) {
+					final Params paramInner = new Params();
+					paramInner.add("poiType", "roadblock");
+					paramInner.add("poiNumber", i);
+
+					paramInner.add("title", "Set up road block");
+					target.sendTaskPoI("GotoAndStay", "police vehicle",
+							"roadblock", i, 15, paramInner);
+				}
+				for (int i = 0; i < 3; i++) {
+					final Params paramInner = new Params();
+					paramInner.add("poiType", "rvpFire");
+					paramInner.add("poiNumber", 0);
+					paramInner.add("title", "Rescue task");
+					target.sendTaskPoI("GotoAndStay", "fire vehicle", "rvpFire",
+							0, 15, paramInner);
+				}
+				for (int i = 0; i < 3; i++) {
+					final Params paramInner = new Params();
+					paramInner.add("poiType", "rvpFire");
+					paramInner.add("poiNumber", 0);
+					paramInner.add("title", "Put out fire");
+					target.sendTaskPoI("GotoAndStay", "fire vehicle", "rvpFire",
+							0, 15, paramInner);
+				}
+				for (int i = 0; i < 4; i++) {
+					final Params paramInner = new Params();
+					paramInner.add("poiType", "rvpFire");
+					paramInner.add("poiNumber", 1);
+					paramInner.add("title", "Put out fire");
+					target.sendTaskPoI("GotoAndStay", "fire vehicle", "rvpFire",
+							1, 15, paramInner);
+				}
+				target.startEvac();
+
+				break;
+			case "handling":
+				final int length2 = target.countPoI("roadblock");
+				for (int i = 0; i < length2; i++) {
+					final Params paramInner = new Params();
+					paramInner.add("poiType", "roadblock");
+					paramInner.add("poiNumber", i);
+					paramInner.add("title", "Setup roadblock");
+					target.sendTaskPoI("GotoAndStay", "police vehicle",
+							"roadblock", i, 15, paramInner);
+				}
+				for (int i = 0; i < 4; i++) {
+					final Params paramInner = new Params();
+					paramInner.add("poiType", "rvpFire");
+					paramInner.add("poiNumber", 0);
+					paramInner.add("title", "Rescue task");
+					target.sendTaskPoI("GotoAndStay", "fire vehicle", "rvpFire",
+							0, 15, paramInner);
+				}
+				for (int i = 0; i < 3; i++) {
+					final Params paramInner = new Params();
+					paramInner.add("poiType", "rvpFire");
+					paramInner.add("poiNumber", 1);
+					paramInner.add("title", "Rescue task");
+					target.sendTaskPoI("GotoAndStay", "fire vehicle", "rvpFire",
+							1, 15, paramInner);
+				}
+				for (int i = 0; i < 3; i++) {
+					final Params paramInner = new Params();
+					paramInner.add("poiType", "rvpFire");
+					paramInner.add("poiNumber", 1);
+					paramInner.add("title", "Put out fire");
+					target.sendTaskPoI("GotoAndStay", "fire vehicle", "rvpFire",
+							1, 15, paramInner);
+				}
+				break;
+			default:
+				return false;
+		}
+		return true;
+	}
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright: Almende B.V. (2014), Rotterdam, The Netherlands
+ * License: The Apache Software License, Version 2.0
+ */
+package com.almende.bridge.resources;
+
+import org.joda.time.DateTime;
+
+/**
+ * Process wide simulation clock. Simulation time runs at a configurable
+ * speed relative to the wall clock, so an exercise can be run faster than
+ * real time. All simulation code reads the time from here, and converts
+ * simulated delays to wall clock delays before handing them to the
+ * scheduler.
+ */
+public final class SimClock {
+	private static volatile Anchor	anchor	= new Anchor(
+													System.currentTimeMillis(),
+													System.currentTimeMillis(),
+													1);
+
+	private SimClock() {}
+
+	/**
+	 * Gets the current simulation time.
+	 *
+	 * @return the millis since the epoch, in simulation time
+	 */
+	public static long millis() {
+		final Anchor current = anchor;
+		return current.sim
+				+ (long) ((System.currentTimeMillis() - current.wall) * current.speed);
+	}
+
+	/**
+	 * Gets the current simulation time.
+	 *
+	 * @return the date time
+	 */
+	public static DateTime now() {
+		return new DateTime(millis());
+	}
+
+	/**
+	 * Gets the speed.
+	 *
+	 * @return the simulated millis per wall clock milli
+	 */
+	public static double getSpeed() {
+		return anchor.speed;
+	}
+
+	/**
+	 * Sets the speed, continuing from the current simulation time.
+	 *
+	 * @param speed
+	 *            the simulated millis per wall clock milli
+	 */
+	public static synchronized void setSpeed(final double speed) {
+		if (speed <= 0) {
+			throw new IllegalArgumentException("Clock speed must be positive:"
+					+ speed);
+		}
+		anchor = new Anchor(System.currentTimeMillis(), millis(), speed);
+	}
+
+	/**
+	 * Checks if a simulation time has passed.
+	 *
+	 * @param time
+	 *            the time
+	 * @return true, if before now
+	 */
+	public static boolean isBeforeNow(final DateTime time) {
+		return time.getMillis() < millis();
+	}
+
+	/**
+	 * Checks if a simulation time is still to come.
+	 *
+	 * @param time
+	 *            the time
+	 * @return true, if after now
+	 */
+	public static boolean isAfterNow(final DateTime time) {
+		return time.getMillis() > millis();
+	}
+
+	/**
+	 * Converts a simulated delay to a wall clock delay.
+	 *
+	 * @param millis
+	 *            the simulated delay
+	 * @return the wall clock delay
+	 */
+	public static int wallDelay(final long millis) {
+		return (int) Math.max(0, Math.min(Integer.MAX_VALUE, millis
+				/ anchor.speed));
+	}
+
+	/**
+	 * Gets the wall clock delay until a simulation time.
+	 *
+	 * @param time
+	 *            the time
+	 * @return the wall clock delay, 0 if the time has passed
+	 */
+	public static int wallDelay(final DateTime time) {
+		return wallDelay(time.getMillis() - millis());
+	}
+
+	private static class Anchor {
+		final long		wall;
+		final long		sim;
+		final double	speed;
+
+		Anchor(final long wall, final long sim, final double speed) {
+			this.wall = wall;
+			this.sim = sim;
+			this.speed = speed;
+		}
+	}
+}
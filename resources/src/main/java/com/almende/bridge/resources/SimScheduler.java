@@ -0,0 +1,145 @@
+/*
+ * Copyright: Almende B.V. (2014), Rotterdam, The Netherlands
+ * License: The Apache Software License, Version 2.0
+ */
+package com.almende.bridge.resources;
+
+import org.joda.time.DateTime;
+
+import com.almende.eve.scheduling.Scheduler;
+
+/**
+ * Eve scheduler in simulation time, as handed to the plans: delays are
+ * simulated millis and due times are simulation times. The timers underneath
+ * convert them to their own clock: the agent scheduler and the timing wheel
+ * to wall clock delays through the {@link SimClock}, the discrete-event
+ * simulation to events on its own time line.
+ */
+public class SimScheduler implements Scheduler {
+	private final Timers	timers;
+
+	/**
+	 * The timers underneath a SimScheduler.
+	 */
+	public interface Timers {
+
+		/**
+		 * Gets the current simulation time.
+		 *
+		 * @return the millis
+		 */
+		long now();
+
+		/**
+		 * Deliver a message after a delay.
+		 *
+		 * @param message
+		 *            the message
+		 * @param delay
+		 *            the delay in simulated millis, 0 or more
+		 * @return the id of the timer
+		 */
+		String start(Object message, long delay);
+
+		/**
+		 * Cancel a timer.
+		 *
+		 * @param id
+		 *            the id
+		 */
+		void cancel(String id);
+
+		/**
+		 * Cancel all timers.
+		 */
+		void clear();
+	}
+
+	/**
+	 * Instantiates a new scheduler.
+	 *
+	 * @param timers
+	 *            the timers
+	 */
+	public SimScheduler(final Timers timers) {
+		this.timers = timers;
+	}
+
+	/**
+	 * Create a scheduler on top of an agent's own scheduler, which runs on
+	 * the wall clock.
+	 *
+	 * @param scheduler
+	 *            the agent scheduler
+	 * @return the scheduler
+	 */
+	public static SimScheduler wrap(final Scheduler scheduler) {
+		return new SimScheduler(new Timers() {
+			@Override
+			public long now() {
+				return SimClock.millis();
+			}
+
+			@Override
+			public String start(final Object message, final long delay) {
+				return scheduler.schedule(message, SimClock.wallDelay(delay));
+			}
+
+			@Override
+			public void cancel(final String id) {
+				scheduler.cancel(id);
+			}
+
+			@Override
+			public void clear() {
+				scheduler.clear();
+			}
+		});
+	}
+
+	@Override
+	public String schedule(final Object msg, final DateTime due) {
+		return timers.start(msg, Math.max(0, due.getMillis() - timers.now()));
+	}
+
+	@Override
+	public String schedule(final Object msg, final int delay) {
+		return timers.start(msg, Math.max(0, delay));
+	}
+
+	@Override
+	public String schedule(final Object msg, final long delay) {
+		return timers.start(msg, Math.max(0, delay));
+	}
+
+	@Override
+	public void cancel(final String id) {
+		timers.cancel(id);
+	}
+
+	@Override
+	public void clear() {
+		timers.clear();
+	}
+
+	/**
+	 * Gets the current simulation time.
+	 *
+	 * @return the millis
+	 */
+	public long now() {
+		return timers.now();
+	}
+
+	/**
+	 * Delete the scheduler, cancelling all timers.
+	 */
+	public void delete() {
+		timers.clear();
+	}
+
+	@Override
+	public String toString() {
+		return "simScheduler:" + timers;
+	}
+}
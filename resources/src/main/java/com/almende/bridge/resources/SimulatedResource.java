@@ -4,11 +4,12 @@
  */
 package com.almende.bridge.resources;
 
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.IOException;
 import java.net.URI;
 import java.util.ArrayList;
 import java.util.Iterator;
-import java.util.List;
 import java.util.Map.Entry;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -28,6 +29,8 @@ import com.almende.bridge.oldDataStructs.Location;
 import com.almende.bridge.resources.plans.Evac;
 import com.almende.bridge.resources.plans.GotoAndStay;
 import com.almende.bridge.resources.plans.Plan;
+import com.almende.bridge.swarm.navigation.RouteCodec;
+import com.almende.bridge.swarm.navigation.RoutingEngine;
 import com.almende.eve.algorithms.EventBus;
 import com.almende.eve.algorithms.agents.NodeAgent;
 import com.almende.eve.protocol.jsonrpc.annotation.Access;
@@ -38,6 +41,7 @@ import com.almende.eve.protocol.jsonrpc.annotation.Optional;
 import com.almende.eve.protocol.jsonrpc.annotation.Sender;
 import com.almende.eve.protocol.jsonrpc.formats.JSONRequest;
 import com.almende.eve.protocol.jsonrpc.formats.Params;
+import com.almende.eve.scheduling.Scheduler;
 import com.almende.util.TypeUtil;
 import com.almende.util.URIUtil;
 import com.almende.util.callback.AsyncCallback;
@@ -65,6 +69,14 @@ public class SimulatedResource extends NodeAgent {
 	private DEPLOYMENTSTATE								deploymentState	= DEPLOYMENTSTATE.Unassigned;
 
 	private EventBus									events			= null;
+	private URI											navAgent		= NAVAGENT;
+	private RoutingEngine								embeddedRouting	= null;
+	private FleetEngine									fleet			= null;
+	private int											fleetSlot		= -1;
+	private ResourceIndex								index			= null;
+	private TimingWheel									timers			= null;
+	private Scheduler									planScheduler	= null;
+	private TimingWheel.Timeout							arrivalTimer	= null;
 
 	private String										tag				= "empty";
 	private String										guid			= new UUID()
@@ -72,6 +84,11 @@ public class SimulatedResource extends NodeAgent {
 
 	private Route										route			= null;
 	private Plan										plan			= null;
+	private String										planName		= null;
+	private boolean										planRepeat		= false;
+	private volatile int								geoJsonVersion	= 0;
+	private GeoJsonSnapshot								geoJsonSnapshot	= null;
+	private boolean										registerInBatch	= false;
 
 	// other: {"lat":52.069451, "lon":4.640714}
 	// work: {"lat":51.908913, "lon":4.479624}
@@ -91,7 +108,7 @@ public class SimulatedResource extends NodeAgent {
 																				"stop",
 																				null);
 
-	private static final PeriodFormatter				MINANDSECS		= new PeriodFormatterBuilder()
+	static final PeriodFormatter						MINANDSECS		= new PeriodFormatterBuilder()
 																				.printZeroAlways()
 																				.appendMinutes()
 																				.appendSeparator(
@@ -128,11 +145,24 @@ public class SimulatedResource extends NodeAgent {
 	public void reset() {
 		this.plan = null;
 		this.route = null;
-		this.deploymentState = DEPLOYMENTSTATE.Unassigned;
+		geoJsonVersion++;
+		cancelArrival();
 		if (getConfig().has("initLocation")) {
 			TypeUtil<double[]> typeutil = new TypeUtil<double[]>() {};
-			setGeoJsonLocation(typeutil.inject(getConfig().get("initLocation")));
+			moveTo(typeutil.inject(getConfig().get("initLocation")));
 		}
+		setDeploymentState(DEPLOYMENTSTATE.Unassigned);
+	}
+
+	/**
+	 * Let the generator register this new agent in a batch, instead of the
+	 * agent registering itself on its first boot. To be called before the
+	 * agent is configured; it only holds for that first boot. This isn't part
+	 * of the agent config, as that is persisted: after a restart the agent
+	 * registers itself again.
+	 */
+	void registerInBatch() {
+		registerInBatch = true;
 	}
 
 	/**
@@ -153,7 +183,7 @@ public class SimulatedResource extends NodeAgent {
 		ObjectNode config = getConfig();
 		if (config.has("initLocation")) {
 			TypeUtil<double[]> typeutil = new TypeUtil<double[]>() {};
-			setGeoJsonLocation(typeutil.inject(config.get("initLocation")));
+			moveTo(typeutil.inject(config.get("initLocation")));
 		}
 		if (config.has("resType")) {
 			setResType(config.get("resType").asText());
@@ -166,14 +196,147 @@ public class SimulatedResource extends NodeAgent {
 		}
 		if (config.has("icon")) {
 			properties.put("icon", config.get("icon").asText());
+			geoJsonVersion++;
+		}
+		if (config.has("routing")) {
+			final ObjectNode routing = (ObjectNode) config.get("routing");
+			if (EmbeddedRouting.isEmbedded(routing)) {
+				embeddedRouting = EmbeddedRouting.getEngine(routing);
+			} else if (routing.has("url")) {
+				navAgent = URIUtil.create(routing.get("url").asText());
+			}
+		}
+		if (TimingWheel.isEnabled(config.get("timers"))) {
+			timers = TimingWheel.getInstance(config.get("timers"));
+		}
+		if (FleetEngine.isEnabled(config.get("fleet"))) {
+			fleet = FleetEngine.getInstance(config.get("fleet"));
+			fleetSlot = fleet.allocate(geoJsonPos[0], geoJsonPos[1]);
+		}
+		if (ResourceIndex.isEnabled(config.get("index"))) {
+			index = ResourceIndex.getInstance(config.get("index"));
+			updateIndex();
+		}
+		if (FleetSnapshot.isEnabled(config.get("snapshot"))) {
+			FleetSnapshot.getInstance(config.get("snapshot")).add(getId(),
+					getSnapshotConfig(), new FleetSnapshot.Record() {
+						@Override
+						public void writeTo(final DataOutput out)
+								throws IOException {
+							writeSnapshot(out);
+						}
+
+						@Override
+						public void readFrom(final DataInput in)
+								throws IOException {
+							readSnapshot(in);
+						}
+					});
+		}
+		final boolean batched = registerInBatch;
+		registerInBatch = false;
+		if (!batched) {
+			// Bulk created agents are registered by the generator, in batches.
+			register();
 		}
-		register();
 		if ("master".equals(tag)) {
 			events = new EventBus(getScheduler(), caller, getGraph(), "SFN");
 			addNode2SFN();
 		}
 	}
 
+	// The config to recreate this agent from the fleet snapshot with.
+	private ObjectNode getSnapshotConfig() {
+		final ObjectNode config = getConfig();
+		final ObjectNode result = JOM.createObjectNode();
+		for (String field : new String[] { "initLocation", "resType", "guid",
+				"tag", "icon" }) {
+			if (config.has(field)) {
+				result.set(field, config.get(field));
+			}
+		}
+		return result;
+	}
+
+	private synchronized void writeSnapshot(final DataOutput out)
+			throws IOException {
+		FleetSnapshot.writeString(out, guid);
+		FleetSnapshot.writeString(out, tag);
+		out.writeByte(deploymentState.ordinal());
+		out.writeDouble(geoJsonPos[0]);
+		out.writeDouble(geoJsonPos[1]);
+		out.writeDouble(geoJsonGoal[0]);
+		out.writeDouble(geoJsonGoal[1]);
+		FleetSnapshot.writeBytes(out,
+				JOM.getInstance().writeValueAsBytes(properties));
+		final Route current = route;
+		out.writeBoolean(current != null && current.route != null);
+		if (current != null && current.route != null) {
+			out.writeLong(current.routeBase.getMillis());
+			out.writeLong(current.eta.getMillis());
+			current.route.writeTo(out);
+		}
+		final Plan currentPlan = plan;
+		out.writeBoolean(currentPlan != null);
+		if (currentPlan != null) {
+			FleetSnapshot.writeString(out, planName);
+			out.writeBoolean(planRepeat);
+			FleetSnapshot.writeString(out, currentPlan.getTitle());
+			FleetSnapshot.writeString(out, currentPlan.getStatus());
+			FleetSnapshot.writeBytes(out, JOM.getInstance().writeValueAsBytes(
+					currentPlan.getConfig()));
+		}
+	}
+
+	private synchronized void readSnapshot(final DataInput in)
+			throws IOException {
+		final String storedGuid = FleetSnapshot.readString(in);
+		if (storedGuid != null) {
+			guid = storedGuid;
+		}
+		final String storedTag = FleetSnapshot.readString(in);
+		if (storedTag != null) {
+			tag = storedTag;
+		}
+		final DEPLOYMENTSTATE state = DEPLOYMENTSTATE.values()[in.readByte()];
+		moveTo(new double[] { in.readDouble(), in.readDouble(), 0, 0 });
+		geoJsonGoal[0] = in.readDouble();
+		geoJsonGoal[1] = in.readDouble();
+		properties = (ObjectNode) JOM.getInstance().readTree(
+				FleetSnapshot.readBytes(in));
+		route = null;
+		if (in.readBoolean()) {
+			route = new Route();
+			route.routeBase = new DateTime(in.readLong());
+			route.eta = new Duration(in.readLong());
+			route.route = PackedRoute.readFrom(in);
+			if (fleet != null) {
+				fleet.setRoute(fleetSlot, route.route,
+						route.routeBase.getMillis(), route.eta.getMillis());
+			}
+		}
+		// The route is back before the plan, so the plan continues on it.
+		plan = null;
+		if (in.readBoolean()) {
+			final String name = FleetSnapshot.readString(in);
+			final boolean repeat = in.readBoolean();
+			final String title = FleetSnapshot.readString(in);
+			final String status = FleetSnapshot.readString(in);
+			plan = createPlan(name, (ObjectNode) JOM.getInstance().readTree(
+					FleetSnapshot.readBytes(in)), title, repeat);
+			plan.restoreState(status);
+		}
+		setDeploymentState(state);
+		geoJsonVersion++;
+		if (route != null) {
+			checkArrival();
+		} else if (plan != null && plan.isTraveling()) {
+			// The snapshot was taken before the route of this leg came in,
+			// request it again.
+			getPlanScheduler().schedule(NEXTLEGREQ, 0);
+		}
+	}
+
 	/**
 	 * Register agent at Proxy.
 	 */
@@ -230,7 +393,7 @@ public class SimulatedResource extends NodeAgent {
 			params.put("endLon", task.get("lon").asDouble());
 
 			try {
-				getRoute(params, new AsyncCallback<ObjectNode>() {
+				getEta(params, new AsyncCallback<ObjectNode>() {
 					/*
 					 * (non-Javadoc)
 					 * @see
@@ -240,19 +403,15 @@ public class SimulatedResource extends NodeAgent {
 					 */
 					@Override
 					public void onSuccess(ObjectNode result) {
-						Route myRoute = new Route();
-						myRoute.routeBase = DateTime.now();
-						myRoute.route = ROUTETYPE.inject(result.get("route"));
-						myRoute.index = 0;
-						myRoute.eta = new Duration(result.get("millis")
+						final Duration eta = new Duration(result.get("millis")
 								.asLong());
 
-						if (myRoute.routeBase.plus(myRoute.eta).isBefore(
-								task.get("before").asLong())) {
+						if (SimClock.now().plus(eta)
+								.isBefore(task.get("before").asLong())) {
 							// Potential!
 							Params params = new Params();
 							params.add("task", task);
-							params.add("eta", myRoute.eta.plus((long) Math
+							params.add("eta", eta.plus((long) Math
 									.floor(Math.random() * 5000)));
 							try {
 								call(reportTo, "volunteer", params);
@@ -303,6 +462,7 @@ public class SimulatedResource extends NodeAgent {
 	 */
 	public void setProperties(ObjectNode properties) {
 		this.properties = properties;
+		geoJsonVersion++;
 	}
 
 	/**
@@ -325,6 +485,8 @@ public class SimulatedResource extends NodeAgent {
 	 */
 	public void setResType(String type) {
 		properties.put("resourceType", type);
+		geoJsonVersion++;
+		updateIndex();
 	}
 
 	/**
@@ -334,39 +496,35 @@ public class SimulatedResource extends NodeAgent {
 	 */
 	public synchronized ObjectNode getCurrentLocation() {
 		final ObjectNode result = JOM.createObjectNode();
-		if (route != null) {
-			final long millis = new Duration(route.routeBase, DateTime.now()
+		if (fleet != null) {
+			// The fleet engine moves this resource, just read its slot.
+			geoJsonPos = fleet.getPosition(fleetSlot);
+			if (route != null && !fleet.isMoving(fleetSlot)) {
+				route = null;
+				geoJsonVersion++;
+			}
+			result.put("lon", geoJsonPos[0]);
+			result.put("lat", geoJsonPos[1]);
+			if (route != null) {
+				result.put("eta", getEtaString());
+			}
+		} else if (route != null) {
+			final long millis = new Duration(route.routeBase, SimClock.now()
 					.plus((long) (Math.random() * 1000))).getMillis();
 			double[] pos = null;
-			if (getEta().isBeforeNow()) {
-				pos = route.route.get(route.route.size() - 1);
+			if (SimClock.isBeforeNow(getEta())) {
+				final int last = route.route.size() - 1;
+				pos = new double[] { route.route.getLon(last),
+						route.route.getLat(last), 0, route.route.getMillis(last) };
 				route = null;
+				geoJsonVersion++;
 			} else {
-				double[] last = null;
-				for (int i = route.index; i < route.route.size(); i++) {
-					double[] item = route.route.get(i);
-					if (item[3] > millis) {
-						if (last != null) {
-							double length = item[3] - last[3];
-							double latDiff = item[1] - last[1];
-							double lonDiff = item[0] - last[0];
-							double part = millis - last[3];
-
-							final double[] loc = new double[4];
-							loc[0] = last[0] + lonDiff * (part / length)
-									+ (Math.random() * 0.0001 - 0.00005);
-							loc[1] = last[1] + latDiff * (part / length)
-									+ (Math.random() * 0.0001 - 0.00005);
-							loc[2] = 0;
-							loc[3] = millis;
-							pos = loc;
-						} else {
-							pos = item;
-						}
-						break;
-					}
-					last = item;
-					route.index = route.index > 0 ? route.index - 1 : 0;
+				final double[] loc = route.route.getPosition(millis);
+				if (loc != null) {
+					pos = new double[] {
+							loc[0] + (Math.random() * 0.0001 - 0.00005),
+							loc[1] + (Math.random() * 0.0001 - 0.00005), 0,
+							millis };
 				}
 			}
 
@@ -399,7 +557,7 @@ public class SimulatedResource extends NodeAgent {
 		if (route != null) {
 			return route.routeBase.plus(route.eta);
 		} else {
-			return DateTime.now();
+			return SimClock.now();
 		}
 	}
 
@@ -434,15 +592,15 @@ public class SimulatedResource extends NodeAgent {
 		}
 	}
 
-	private void addRouteProperties(Feature feature) {
-		if (route != null) {
-			feature.setProperty("eta", getEtaString());
-			if (getEta().isAfterNow()) {
-				Period period = new Duration(DateTime.now(), getEta())
-						.toPeriod();
+	private void addRouteProperties(Feature feature, GeoJsonSnapshot snapshot) {
+		if (route != null && snapshot.eta != null) {
+			feature.setProperty("eta", snapshot.eta);
+			final long remaining = snapshot.etaMillis - SimClock.millis();
+			if (remaining > 0) {
+				Period period = new Duration(remaining).toPeriod();
 				feature.setProperty("minutesRemaining",
 						period.toString(MINANDSECS));
-				feature.setProperty("etaShort", getEta().toString("kk:mm:ss"));
+				feature.setProperty("etaShort", snapshot.etaShort);
 			} else {
 				feature.setProperty("minutesRemaining", 0);
 				feature.setProperty("etaShort", "00:00:00");
@@ -450,6 +608,39 @@ public class SimulatedResource extends NodeAgent {
 		}
 	}
 
+	/**
+	 * Gets the static parts of the geo json features: the resource, task and
+	 * eta properties. These are rebuilt only when the plan, route or
+	 * properties changed since the last call.
+	 *
+	 * @return the snapshot
+	 */
+	private synchronized GeoJsonSnapshot getGeoJsonSnapshot() {
+		final int version = geoJsonVersion;
+		final String status = plan != null ? plan.getStatus() : null;
+		GeoJsonSnapshot snapshot = geoJsonSnapshot;
+		if (snapshot == null || snapshot.version != version
+				|| snapshot.plan != plan
+				|| (status != null && !status.equals(snapshot.status))) {
+			snapshot = new GeoJsonSnapshot(version, plan, status);
+			addProperties(snapshot.properties);
+			addTaskProperties(snapshot.properties);
+			if (route != null) {
+				final DateTime eta = getEta();
+				snapshot.etaMillis = eta.getMillis();
+				snapshot.eta = eta.toString();
+				snapshot.etaShort = eta.toString("kk:mm:ss");
+			}
+			geoJsonSnapshot = snapshot;
+		}
+		return snapshot;
+	}
+
+	private static void copyProperties(final Feature feature,
+			final GeoJsonSnapshot snapshot) {
+		feature.getProperties().putAll(snapshot.properties.getProperties());
+	}
+
 	/**
 	 * Gets the geo json description of this Resource.
 	 *
@@ -464,6 +655,7 @@ public class SimulatedResource extends NodeAgent {
 			@Optional @Name("includeTrack") Boolean incTrack,
 			@Optional @Name("includeTarget") Boolean incTarget) {
 		getCurrentLocation();
+		final GeoJsonSnapshot snapshot = getGeoJsonSnapshot();
 
 		final FeatureCollection fc = new FeatureCollection();
 		fc.setProperty("id", getId());
@@ -474,8 +666,7 @@ public class SimulatedResource extends NodeAgent {
 		originPoint.setCoordinates(new LngLatAlt(geoJsonPos[0], geoJsonPos[1]));
 		origin.setGeometry(originPoint);
 		origin.setProperty("type", "currentLocation");
-		addProperties(origin);
-		addTaskProperties(origin);
+		copyProperties(origin, snapshot);
 		// TODO: add resource icon
 
 		fc.add(origin);
@@ -487,17 +678,16 @@ public class SimulatedResource extends NodeAgent {
 				final LineString tracksteps = new LineString();
 				tracksteps.add(new LngLatAlt(geoJsonPos[0], geoJsonPos[1]));
 				final long millis = new Duration(route.routeBase,
-						DateTime.now()).getMillis();
+						SimClock.now()).getMillis();
 
-				for (double[] step : route.route) {
-					if (step[3] > millis) {
-						tracksteps.add(new LngLatAlt(step[0], step[1]));
-					}
+				final PackedRoute steps = route.route;
+				for (int i = steps.indexAfter(millis); i < steps.size(); i++) {
+					tracksteps.add(new LngLatAlt(steps.getLon(i), steps
+							.getLat(i)));
 				}
 				track.setGeometry(tracksteps);
 				track.setProperty("type", "route");
-				addProperties(track);
-				addTaskProperties(track);
+				copyProperties(track, snapshot);
 				fc.add(track);
 			}
 			if (incTarget != null && incTarget) {
@@ -508,14 +698,12 @@ public class SimulatedResource extends NodeAgent {
 						geoJsonGoal[1]));
 				goal.setGeometry(goalPoint);
 				goal.setProperty("type", "targetLocation");
-				addRouteProperties(goal);
-
-				addProperties(goal);
-				addTaskProperties(goal);
+				addRouteProperties(goal, snapshot);
+				copyProperties(goal, snapshot);
 
 				fc.add(goal);
 			}
-			addRouteProperties(origin);
+			addRouteProperties(origin, snapshot);
 		}
 		return fc;
 	}
@@ -541,7 +729,37 @@ public class SimulatedResource extends NodeAgent {
 	 */
 
 	public void setGeoJsonLocation(@Name("pos") double[] pos) {
+		moveTo(pos);
+		if (deploymentState == DEPLOYMENTSTATE.Unassigned) {
+			// An idle resource only moves when it's placed explicitly.
+			updateIndex();
+		}
+	}
+
+	private void moveTo(final double[] pos) {
 		geoJsonPos = pos;
+		if (fleet != null) {
+			fleet.setPosition(fleetSlot, pos[0], pos[1]);
+		}
+	}
+
+	private void setDeploymentState(final DEPLOYMENTSTATE state) {
+		deploymentState = state;
+		if (fleet != null) {
+			fleet.setState(fleetSlot, state.ordinal());
+		}
+		updateIndex();
+	}
+
+	private void updateIndex() {
+		if (index != null) {
+			// Idle resources don't move, so state changes (including stop,
+			// which settles the position first) are enough: no update per
+			// location change, as each takes the process wide index lock.
+			index.update(URIUtil.create("local:" + getId()), getResType(),
+					geoJsonPos[0], geoJsonPos[1],
+					deploymentState == DEPLOYMENTSTATE.Unassigned);
+		}
 	}
 
 	/**
@@ -607,10 +825,7 @@ public class SimulatedResource extends NodeAgent {
 						"getPoI", parms2, Feature.class);
 				config.set("pickupPoint", JOM.getInstance().valueToTree(pickup));
 			}
-			plan = new Evac(getScheduler(), config, title);
-
-			plan.onStateChange("toPickup", NEXTLEGREQ);
-			plan.onStateChange("toDropOff", NEXTLEGREQ);
+			plan = createPlan(planName, config, title, repeat);
 
 		} else if ("GotoAndStay".equals(planName) || "Goto".equals(planName)) {
 			final ObjectNode config = JOM.createObjectNode();
@@ -629,23 +844,38 @@ public class SimulatedResource extends NodeAgent {
 
 				config.set("goal", JOM.getInstance().valueToTree(feature));
 			}
-			plan = new GotoAndStay(getScheduler(), config, title,
-					!"Goto".equals(planName));
-
-			plan.onStateChange("travel", NEXTLEGREQ);
+			plan = createPlan(planName, config, title, repeat);
 
 		}
 		if (plan != null) {
-			if (repeat != null && repeat) {
-				plan.onStateChange("finished", REPEATREQ);
-			} else {
-				plan.onStateChange("finished", STOPREQ);
-			}
-			deploymentState = DEPLOYMENTSTATE.Active;
+			geoJsonVersion++;
+			setDeploymentState(DEPLOYMENTSTATE.Active);
 			plan.arrival();
 		}
 	}
 
+	private Plan createPlan(final String planName, final ObjectNode config,
+			final String title, final Boolean repeat) {
+		final Plan result;
+		if ("Evac".equals(planName)) {
+			result = new Evac(getPlanScheduler(), config, title);
+			result.onStateChange("toPickup", NEXTLEGREQ);
+			result.onStateChange("toDropOff", NEXTLEGREQ);
+		} else {
+			result = new GotoAndStay(getPlanScheduler(), config, title,
+					!"Goto".equals(planName));
+			result.onStateChange("travel", NEXTLEGREQ);
+		}
+		if (repeat != null && repeat) {
+			result.onStateChange("finished", REPEATREQ);
+		} else {
+			result.onStateChange("finished", STOPREQ);
+		}
+		this.planName = planName;
+		this.planRepeat = repeat != null && repeat;
+		return result;
+	}
+
 	/**
 	 * Repeat.
 	 */
@@ -660,9 +890,38 @@ public class SimulatedResource extends NodeAgent {
 	 * Stop.
 	 */
 	public void stop() {
-		deploymentState = DEPLOYMENTSTATE.Unassigned;
+		if (index != null) {
+			// Rest where the route got us, before the index places us.
+			getCurrentLocation();
+		}
+		setDeploymentState(DEPLOYMENTSTATE.Unassigned);
 		plan = null;
 		route = null;
+		geoJsonVersion++;
+		cancelArrival();
+		if (fleet != null) {
+			fleet.stop(fleetSlot);
+		}
+	}
+
+	/**
+	 * Delete the agent, dropping it from the fleet, the index and the
+	 * snapshot.
+	 */
+	@Override
+	public void destroy() {
+		stop();
+		if (FleetSnapshot.isEnabled(getConfig().get("snapshot"))) {
+			FleetSnapshot.getInstance(getConfig().get("snapshot")).remove(
+					getId());
+		}
+		if (index != null) {
+			index.remove(URIUtil.create("local:" + getId()));
+		}
+		if (fleet != null) {
+			fleet.release(fleetSlot);
+		}
+		super.destroy();
 	}
 
 	/**
@@ -689,16 +948,116 @@ public class SimulatedResource extends NodeAgent {
 	 * Check arrival.
 	 */
 	public void checkArrival() {
-		if (plan != null && getEta().isBeforeNow()) {
+		if (plan == null) {
+			return;
+		}
+		if (SimClock.isBeforeNow(getEta())) {
 			plan.arrival();
+		} else if (timers != null) {
+			cancelArrival();
+			arrivalTimer = timers.schedule(new Runnable() {
+				@Override
+				public void run() {
+					checkArrival();
+				}
+			}, SimClock.wallDelay(getEta()));
 		} else {
-			schedule("checkArrival", null, getEta());
+			schedule("checkArrival", null, SimClock.wallDelay(getEta()));
+		}
+	}
+
+	private void cancelArrival() {
+		final TimingWheel.Timeout timer = arrivalTimer;
+		if (timer != null) {
+			timer.cancel();
+			arrivalTimer = null;
+		}
+	}
+
+	/**
+	 * Gets the scheduler for the plan triggers, in simulation time: on top of
+	 * the agent scheduler, or of the shared timing wheel if enabled, which
+	 * calls the triggered methods directly instead of sending a request per
+	 * trigger.
+	 *
+	 * @return the scheduler
+	 */
+	private synchronized Scheduler getPlanScheduler() {
+		if (planScheduler == null) {
+			if (timers == null) {
+				planScheduler = SimScheduler.wrap(getScheduler());
+			} else {
+				planScheduler = timers.asScheduler(new TimingWheel.Handler() {
+					@Override
+					public void receive(final Object message) {
+						if (message instanceof JSONRequest) {
+							invokeTrigger((JSONRequest) message);
+						}
+					}
+				});
+			}
+		}
+		return planScheduler;
+	}
+
+	private void invokeTrigger(final JSONRequest request) {
+		final String method = request.getMethod();
+		try {
+			if ("planNextLeg".equals(method)) {
+				planNextLeg();
+			} else if ("stop".equals(method)) {
+				stop();
+			} else if ("repeat".equals(method)) {
+				repeat();
+			} else if ("plan.doStateChange".equals(method)) {
+				if (plan != null) {
+					plan.doStateChange(request.getParams().get("state")
+							.asText());
+				}
+			} else {
+				LOG.warning(getId() + ": Unknown trigger:" + method);
+			}
+		} catch (IOException e) {
+			LOG.log(Level.WARNING, "Trigger failed:" + method, e);
 		}
 	}
 
 	private void getRoute(final ObjectNode params,
 			final AsyncCallback<ObjectNode> callback) throws IOException {
-		call(NAVAGENT, "getRoute", params, callback);
+		if (embeddedRouting != null) {
+			final ObjectNode result;
+			try {
+				result = embeddedRouting.getRoute(params.get("startLat")
+						.asDouble(), params.get("startLon").asDouble(), params
+						.get("endLat").asDouble(), params.get("endLon")
+						.asDouble(), null);
+			} catch (RuntimeException e) {
+				callback.onFailure(e);
+				return;
+			}
+			callback.onSuccess(result);
+		} else {
+			call(navAgent, "getRoute", params, callback);
+		}
+	}
+
+	private void getEta(final ObjectNode params,
+			final AsyncCallback<ObjectNode> callback) throws IOException {
+		if (embeddedRouting != null) {
+			final ObjectNode result;
+			try {
+				result = embeddedRouting.getEta(params.get("startLat")
+						.asDouble(), params.get("startLon").asDouble(), params
+						.get("endLat").asDouble(), params.get("endLon")
+						.asDouble());
+			} catch (RuntimeException e) {
+				callback.onFailure(e);
+				return;
+			}
+			callback.onSuccess(result);
+		} else {
+			call(navAgent, "getEta", params, callback);
+		}
 	}
 
 	private void planRoute() throws IOException {
@@ -707,6 +1066,7 @@ public class SimulatedResource extends NodeAgent {
 		params.put("startLon", geoJsonPos[0]);
 		params.put("endLat", geoJsonGoal[1]);
 		params.put("endLon", geoJsonGoal[0]);
+		params.put("encoding", RouteCodec.POLYLINE);
 		getRoute(params, new AsyncCallback<ObjectNode>() {
 
 			/*
@@ -720,11 +1080,21 @@ public class SimulatedResource extends NodeAgent {
 				if (route == null) {
 					route = new Route();
 				}
-				route.routeBase = DateTime.now().plus(
+				route.routeBase = SimClock.now().plus(
 						(long) (Math.random() * 10000));
-				route.route = ROUTETYPE.inject(result.get("route"));
-				route.index = 0;
+				if (result.has("encodedRoute")) {
+					route.route = new PackedRoute(RouteCodec.decode(result.get(
+							"encodedRoute").asText()));
+				} else {
+					route.route = new PackedRoute(ROUTETYPE.inject(result
+							.get("route")));
+				}
 				route.eta = new Duration(result.get("millis").asLong());
+				geoJsonVersion++;
+				if (fleet != null) {
+					fleet.setRoute(fleetSlot, route.route,
+							route.routeBase.getMillis(), route.eta.getMillis());
+				}
 				checkArrival();
 			}
 
@@ -732,6 +1102,7 @@ public class SimulatedResource extends NodeAgent {
 			public void onFailure(Exception exception) {
 				LOG.log(Level.WARNING, "Couldn't get route:", exception);
 				route = null;
+				geoJsonVersion++;
 			}
 		});
 	}
@@ -769,7 +1140,7 @@ public class SimulatedResource extends NodeAgent {
 
 		getCurrentLocation();
 		Location location = new Location(new Double(geoJsonPos[1]).toString(),
-				new Double(geoJsonPos[0]).toString(), DateTime.now().toString());
+				new Double(geoJsonPos[0]).toString(), SimClock.now().toString());
 		if (location != null) {
 			status.set("current", JOM.getInstance().valueToTree(location));
 		}
@@ -793,9 +1164,24 @@ public class SimulatedResource extends NodeAgent {
 	}
 
 	class Route {
-		DateTime		routeBase	= DateTime.now();
-		List<double[]>	route		= null;
-		int				index		= 0;
-		Duration		eta			= null;
+		DateTime	routeBase	= SimClock.now();
+		PackedRoute	route		= null;
+		Duration	eta			= null;
+	}
+
+	private static class GeoJsonSnapshot {
+		final int		version;
+		final Plan		plan;
+		final String	status;
+		final Feature	properties	= new Feature();
+		long			etaMillis	= 0;
+		String			eta			= null;
+		String			etaShort	= null;
+
+		GeoJsonSnapshot(final int version, final Plan plan, final String status) {
+			this.version = version;
+			this.plan = plan;
+			this.status = status;
+		}
 	}
 }
@@ -5,8 +5,8 @@
 package com.almende.bridge.resources;
 
 import java.net.URI;
-import java.util.Map.Entry;
-import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.List;
+import java.util.NoSuchElementException;
 
 import org.joda.time.DateTime;
 
@@ -17,7 +17,11 @@ import com.fasterxml.jackson.databind.node.ObjectNode;
  */
 public class Task {
 	private ObjectNode								config		= null;
-	private ConcurrentSkipListMap<DateTime, URI>	candidates	= new ConcurrentSkipListMap<DateTime, URI>();
+	private final CandidateQueue					candidates	= new CandidateQueue();
+	private long									created		= 0;
+	private int										expected	= -1;
+	private TaskRegistry.State						state		= TaskRegistry.State.open;
+	private String									deadline	= null;
 
 	/**
 	 * Instantiates a new task.
@@ -61,8 +65,104 @@ public class Task {
 	 * @param uri
 	 *            the uri
 	 */
-	public void setCandidate(DateTime eta, URI uri) {
-		candidates.put(eta, uri);
+	public synchronized void setCandidate(DateTime eta, URI uri) {
+		candidates.add(eta, uri);
+	}
+
+	/**
+	 * Gets the creation time.
+	 *
+	 * @return the creation time (simulation millis)
+	 */
+	public long getCreated() {
+		return created;
+	}
+
+	/**
+	 * Sets the creation time.
+	 *
+	 * @param created
+	 *            the creation time (simulation millis)
+	 */
+	public void setCreated(long created) {
+		this.created = created;
+	}
+
+	/**
+	 * Sets the number of resources the task was offered to, if known.
+	 *
+	 * @param expected
+	 *            the expected number of respondents, -1 if unknown
+	 */
+	public void setExpected(int expected) {
+		this.expected = expected;
+	}
+
+	/**
+	 * Checks if the volunteer window can close before its deadline: enough
+	 * candidates have volunteered, or all resources it was offered to. Only
+	 * tasks offered to a known set of nearest resources close early; a
+	 * broadcast task waits for the deadline, as the first replies are just
+	 * the fastest, not the closest.
+	 *
+	 * @param enough
+	 *            the number of candidates that's enough, 0 to always wait for
+	 *            the deadline
+	 * @return true, if complete
+	 */
+	public synchronized boolean isComplete(int enough) {
+		if (enough <= 0 || expected < 0) {
+			return false;
+		}
+		final int size = candidates.size();
+		return size >= enough || size >= expected;
+	}
+
+	/**
+	 * Gets the id of the scheduled deadline of the volunteer window.
+	 *
+	 * @return the deadline id
+	 */
+	public String getDeadline() {
+		return deadline;
+	}
+
+	/**
+	 * Sets the id of the scheduled deadline of the volunteer window.
+	 *
+	 * @param deadline
+	 *            the deadline id
+	 */
+	public void setDeadline(String deadline) {
+		this.deadline = deadline;
+	}
+
+	/**
+	 * Gets the lifecycle state.
+	 *
+	 * @return the state
+	 */
+	public synchronized TaskRegistry.State getState() {
+		return state;
+	}
+
+	/**
+	 * Sets the lifecycle state, only through the {@link TaskRegistry}.
+	 *
+	 * @param state
+	 *            the new state
+	 */
+	synchronized void setState(TaskRegistry.State state) {
+		this.state = state;
+	}
+
+	/**
+	 * Gets the candidates, ordered by eta.
+	 *
+	 * @return a copy of the candidates
+	 */
+	public synchronized List<CandidateQueue.Candidate> getCandidates() {
+		return candidates.toList();
 	}
 
 	/**
@@ -70,8 +170,12 @@ public class Task {
 	 *
 	 * @return the closest eta
 	 */
-	public DateTime getClosestEta() {
-		return candidates.firstKey();
+	public synchronized DateTime getClosestEta() {
+		final CandidateQueue.Candidate first = candidates.first();
+		if (first == null) {
+			throw new NoSuchElementException();
+		}
+		return first.getEta();
 	}
 
 	/**
@@ -79,12 +183,9 @@ public class Task {
 	 *
 	 * @return the closest
 	 */
-	public URI getClosest() {
-		if (candidates.size() > 0) {
-			return candidates.firstEntry().getValue();
-		} else {
-			return null;
-		}
+	public synchronized URI getClosest() {
+		final CandidateQueue.Candidate first = candidates.first();
+		return first != null ? first.getUri() : null;
 	}
 
 	/**
@@ -94,22 +195,38 @@ public class Task {
 	 *            the last try
 	 * @return the next
 	 */
-	public URI getNext(URI lastTry) {
-		DateTime oldeta = null;
-		for (Entry<DateTime, URI> entry : candidates.entrySet()) {
-			if (entry.getValue().equals(lastTry)) {
-				oldeta = entry.getKey();
-				break;
-			}
-		}
-		if (oldeta != null) {
-			candidates.remove(oldeta);
-			final Entry<DateTime, URI> next = candidates.ceilingEntry(oldeta);
-			if (next != null) {
-				return next.getValue();
-			}
+	public synchronized URI getNext(URI lastTry) {
+		if (candidates.remove(lastTry)) {
+			return getClosest();
 		}
 		return null;
 	}
 
+	/**
+	 * Offer the task to the best candidates not asked yet, so that "parallel"
+	 * offers are outstanding. A declining candidate is removed first.
+	 *
+	 * @param declined
+	 *            the candidate that declined, or null
+	 * @param parallel
+	 *            the number of outstanding offers
+	 * @return the candidates to offer the task to, best first
+	 */
+	public synchronized List<URI> offer(URI declined, int parallel) {
+		if (declined != null) {
+			candidates.remove(declined);
+		}
+		return candidates.offer(parallel - candidates.getOffered());
+	}
+
+	/**
+	 * Mark a candidate as offered the task.
+	 *
+	 * @param uri
+	 *            the uri
+	 */
+	public synchronized void markOffered(URI uri) {
+		candidates.markOffered(uri);
+	}
+
 }
@@ -0,0 +1,226 @@
+/*
+ * Copyright: Almende B.V. (2014), Rotterdam, The Netherlands
+ * License: The Apache Software License, Version 2.0
+ */
+package com.almende.bridge.resources;
+
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.almende.util.jackson.JOM;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * The tasks of the DemoGenerator, by id and by lifecycle state. A task is
+ * open while collecting volunteers, offering once the window closed, and
+ * ends assigned, failed (nobody left to offer it to) or expired (its
+ * "before" deadline passed first). Tasks are evicted a while after their
+ * deadline, so late acknowledges can still be recognized. Safe for
+ * concurrent use; state changes synchronize on the task.
+ */
+public class TaskRegistry {
+
+	/**
+	 * The lifecycle state of a task.
+	 */
+	public enum State {
+		/** Collecting volunteers. */
+		open,
+		/** Offered to one or more candidates. */
+		offering,
+		/** Confirmed by a candidate. */
+		assigned,
+		/** No candidates left. */
+		failed,
+		/** Deadline passed before assignment. */
+		expired;
+
+		/**
+		 * Checks if this is an end state.
+		 *
+		 * @return true, if final
+		 */
+		public boolean isFinal() {
+			return this == assigned || this == failed || this == expired;
+		}
+	}
+
+	private final Map<String, Task>			tasks		= new ConcurrentHashMap<String, Task>();
+	private final Map<State, Set<String>>	byState		= new EnumMap<State, Set<String>>(
+																State.class);
+	private final AtomicLong				evicted		= new AtomicLong();
+
+	/**
+	 * Instantiates a new task registry.
+	 */
+	public TaskRegistry() {
+		for (State state : State.values()) {
+			byState.put(state, Collections
+					.newSetFromMap(new ConcurrentHashMap<String, Boolean>()));
+		}
+	}
+
+	/**
+	 * Add an open task.
+	 *
+	 * @param task
+	 *            the task
+	 */
+	public void put(final Task task) {
+		final String id = getId(task);
+		synchronized (task) {
+			task.setState(State.open);
+			tasks.put(id, task);
+			byState.get(State.open).add(id);
+		}
+	}
+
+	/**
+	 * Gets a task.
+	 *
+	 * @param id
+	 *            the id
+	 * @return the task, or null if unknown or evicted
+	 */
+	public Task get(final String id) {
+		return tasks.get(id);
+	}
+
+	/**
+	 * Gets the state of a task.
+	 *
+	 * @param id
+	 *            the id
+	 * @return the state, or null if unknown or evicted
+	 */
+	public State getState(final String id) {
+		final Task task = tasks.get(id);
+		return task != null ? task.getState() : null;
+	}
+
+	/**
+	 * Change the state of a task, unless it already ended.
+	 *
+	 * @param id
+	 *            the id
+	 * @param state
+	 *            the new state
+	 * @return true, if the task is in the new state now
+	 */
+	public boolean setState(final String id, final State state) {
+		final Task task = tasks.get(id);
+		if (task == null) {
+			return false;
+		}
+		synchronized (task) {
+			final State old = task.getState();
+			if (old == state) {
+				return true;
+			}
+			if (old.isFinal()) {
+				return false;
+			}
+			move(id, task, old, state);
+			return true;
+		}
+	}
+
+	/**
+	 * Change the state of a task, only if it's in the expected state.
+	 *
+	 * @param id
+	 *            the id
+	 * @param from
+	 *            the expected state
+	 * @param to
+	 *            the new state
+	 * @return true, if changed
+	 */
+	public boolean transition(final String id, final State from,
+			final State to) {
+		final Task task = tasks.get(id);
+		if (task == null) {
+			return false;
+		}
+		synchronized (task) {
+			if (task.getState() != from) {
+				return false;
+			}
+			move(id, task, from, to);
+			return true;
+		}
+	}
+
+	/**
+	 * Gets the ids of the tasks in a state.
+	 *
+	 * @param state
+	 *            the state
+	 * @return the ids, a live view
+	 */
+	public Set<String> getIds(final State state) {
+		return Collections.unmodifiableSet(byState.get(state));
+	}
+
+	/**
+	 * Expire the unassigned tasks whose deadline has passed, and evict all
+	 * tasks whose deadline passed more than the retention time ago.
+	 *
+	 * @param now
+	 *            the current time (simulation millis)
+	 * @param retainMillis
+	 *            how long to keep tasks after their deadline
+	 * @return the number of evicted tasks
+	 */
+	public int evict(final long now, final long retainMillis) {
+		int count = 0;
+		for (Map.Entry<String, Task> entry : tasks.entrySet()) {
+			final Task task = entry.getValue();
+			final long before = task.getConfig().get("before").asLong();
+			if (before > now) {
+				continue;
+			}
+			synchronized (task) {
+				final State state = task.getState();
+				if (before + retainMillis <= now) {
+					tasks.remove(entry.getKey());
+					byState.get(state).remove(entry.getKey());
+					count++;
+				} else if (!state.isFinal()) {
+					move(entry.getKey(), task, state, State.expired);
+				}
+			}
+		}
+		evicted.addAndGet(count);
+		return count;
+	}
+
+	/**
+	 * Gets the number of tasks per state, and the number evicted so far.
+	 *
+	 * @return the counts
+	 */
+	public ObjectNode getCounts() {
+		final ObjectNode result = JOM.createObjectNode();
+		for (State state : State.values()) {
+			result.put(state.name(), byState.get(state).size());
+		}
+		result.put("evicted", evicted.get());
+		return result;
+	}
+
+	private void move(final String id, final Task task, final State from,
+			final State to) {
+		byState.get(from).remove(id);
+		task.setState(to);
+		byState.get(to).add(id);
+	}
+
+	private static String getId(final Task task) {
+		return task.getConfig().get("id").asText();
+	}
+}
@@ -0,0 +1,346 @@
+/*
+ * Copyright: Almende B.V. (2014), Rotterdam, The Netherlands
+ * License: The Apache Software License, Version 2.0
+ */
+package com.almende.bridge.resources;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.almende.eve.scheduling.Scheduler;
+import com.almende.util.jackson.JOM;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * Process wide hashed timing wheel, shared by all simulated resources
+ * instead of a timer per agent. Timers are hashed into buckets by their
+ * expiry tick; timers further away than one revolution count down their
+ * remaining rounds. Each tick expires a whole bucket at once and hands the
+ * expired tasks to a small worker pool. Cancelling unlinks the timer from its
+ * bucket. Configured through the "timers" section of the simAgents config:
+ *
+ * <pre>
+ * timers:
+ *    enabled: true
+ *    tickMillis: 50
+ *    wheelSize: 512
+ *    workers: 4
+ * </pre>
+ */
+public final class TimingWheel {
+	private static final Logger		LOG				= Logger.getLogger(TimingWheel.class
+															.getName());
+	private static final long		DEFAULTTICK		= 50;
+	private static final int		DEFAULTSIZE		= 512;
+	private static TimingWheel		instance		= null;
+
+	private final long				tickMillis;
+	private final Timeout[]			buckets;
+	private final int				mask;
+	private final ExecutorService	workers;
+	private final long				startTime;
+	private long					tick			= 0;
+	private int						pending			= 0;
+
+	private final AtomicLong		scheduled		= new AtomicLong();
+	private final AtomicLong		expired			= new AtomicLong();
+	private final AtomicLong		cancelled		= new AtomicLong();
+	private volatile long			lastLag			= 0;
+	private volatile long			maxLag			= 0;
+	private volatile int			lastBatch		= 0;
+
+	private TimingWheel(final long tickMillis, final int wheelSize,
+			final int workerCount) {
+		this.tickMillis = tickMillis;
+		int size = 1;
+		while (size < wheelSize) {
+			size <<= 1;
+		}
+		this.buckets = new Timeout[size];
+		this.mask = size - 1;
+		this.workers = Executors.newFixedThreadPool(workerCount,
+				new ThreadFactory() {
+					@Override
+					public Thread newThread(final Runnable r) {
+						final Thread thread = new Thread(r, "timer-worker");
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+		this.startTime = System.currentTimeMillis();
+		final Thread ticker = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				runTicks();
+			}
+		}, "timer-tick");
+		ticker.setDaemon(true);
+		ticker.start();
+	}
+
+	/**
+	 * Checks if the timers config enables the wheel.
+	 *
+	 * @param config
+	 *            the timers config, may be null
+	 * @return true, if enabled
+	 */
+	public static boolean isEnabled(final JsonNode config) {
+		return config != null && config.has("enabled")
+				&& config.get("enabled").asBoolean();
+	}
+
+	/**
+	 * Gets the wheel, starting it on first use.
+	 *
+	 * @param config
+	 *            the timers config
+	 * @return the wheel
+	 */
+	public static synchronized TimingWheel getInstance(final JsonNode config) {
+		if (instance == null) {
+			instance = new TimingWheel(config.has("tickMillis") ? config.get(
+					"tickMillis").asLong() : DEFAULTTICK,
+					config.has("wheelSize") ? config.get("wheelSize").asInt()
+							: DEFAULTSIZE, config.has("workers") ? config.get(
+							"workers").asInt() : Runtime.getRuntime()
+							.availableProcessors());
+		}
+		return instance;
+	}
+
+	/**
+	 * Gets the wheel if it is running.
+	 *
+	 * @return the wheel, or null
+	 */
+	public static synchronized TimingWheel getRunning() {
+		return instance;
+	}
+
+	/**
+	 * Schedule a task.
+	 *
+	 * @param task
+	 *            the task
+	 * @param delay
+	 *            the wall clock delay in millis
+	 * @return the timeout, to cancel the task
+	 */
+	public Timeout schedule(final Runnable task, final long delay) {
+		final Timeout timeout = new Timeout(task);
+		synchronized (this) {
+			// Expire at the first tick at or after the deadline.
+			final long ticks = Math.max(tick + 1,
+					(System.currentTimeMillis() - startTime + Math.max(0, delay)
+							+ tickMillis - 1)
+							/ tickMillis);
+			timeout.rounds = (ticks - tick - 1) / buckets.length;
+			timeout.bucket = (int) (ticks & mask);
+			timeout.next = buckets[timeout.bucket];
+			if (timeout.next != null) {
+				timeout.next.prev = timeout;
+			}
+			buckets[timeout.bucket] = timeout;
+			pending++;
+		}
+		scheduled.incrementAndGet();
+		return timeout;
+	}
+
+	/**
+	 * Create an Eve scheduler on top of the wheel, e.g. for the plans of a
+	 * resource. It schedules in simulation time (see {@link SimScheduler}).
+	 * Scheduled messages are handed to the handler when they expire, instead
+	 * of being sent as request to the agent.
+	 *
+	 * @param handler
+	 *            the handler
+	 * @return the scheduler
+	 */
+	public Scheduler asScheduler(final Handler handler) {
+		final Map<String, Timeout> timeouts = new ConcurrentHashMap<String, Timeout>();
+		final AtomicLong ids = new AtomicLong();
+		return new SimScheduler(new SimScheduler.Timers() {
+			@Override
+			public long now() {
+				return SimClock.millis();
+			}
+
+			@Override
+			public String start(final Object message, final long delay) {
+				final String id = Long.toString(ids.incrementAndGet());
+				timeouts.put(id, schedule(new Runnable() {
+					@Override
+					public void run() {
+						timeouts.remove(id);
+						handler.receive(message);
+					}
+				}, SimClock.wallDelay(delay)));
+				return id;
+			}
+
+			@Override
+			public void cancel(final String id) {
+				final Timeout timeout = timeouts.remove(id);
+				if (timeout != null) {
+					timeout.cancel();
+				}
+			}
+
+			@Override
+			public void clear() {
+				for (Timeout timeout : timeouts.values()) {
+					timeout.cancel();
+				}
+				timeouts.clear();
+			}
+
+			@Override
+			public String toString() {
+				return "timingWheel:" + handler;
+			}
+		});
+	}
+
+	/**
+	 * Gets the scheduler statistics.
+	 *
+	 * @return the stats
+	 */
+	public synchronized ObjectNode getStats() {
+		final ObjectNode result = JOM.createObjectNode();
+		result.put("pending", pending);
+		result.put("scheduled", scheduled.get());
+		result.put("expired", expired.get());
+		result.put("cancelled", cancelled.get());
+		result.put("ticks", tick);
+		result.put("tickMillis", tickMillis);
+		result.put("wheelSize", buckets.length);
+		result.put("lastBatch", lastBatch);
+		result.put("lastLagMillis", lastLag);
+		result.put("maxLagMillis", maxLag);
+		return result;
+	}
+
+	private void runTicks() {
+		while (true) {
+			final long deadline = startTime + (tick + 1) * tickMillis;
+			final long sleep = deadline - System.currentTimeMillis();
+			if (sleep > 0) {
+				try {
+					Thread.sleep(sleep);
+				} catch (InterruptedException e) {
+					return;
+				}
+			}
+			final long lag = System.currentTimeMillis() - deadline;
+			lastLag = lag;
+			if (lag > maxLag) {
+				maxLag = lag;
+			}
+			final List<Timeout> batch = expire();
+			lastBatch = batch.size();
+			for (final Timeout timeout : batch) {
+				workers.execute(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							timeout.task.run();
+						} catch (RuntimeException e) {
+							LOG.log(Level.WARNING, "Timer task failed", e);
+						}
+					}
+				});
+			}
+		}
+	}
+
+	private synchronized List<Timeout> expire() {
+		tick++;
+		final int bucket = (int) (tick & mask);
+		final List<Timeout> batch = new ArrayList<Timeout>();
+		Timeout timeout = buckets[bucket];
+		while (timeout != null) {
+			final Timeout next = timeout.next;
+			if (timeout.rounds <= 0) {
+				unlink(timeout);
+				batch.add(timeout);
+			} else {
+				timeout.rounds--;
+			}
+			timeout = next;
+		}
+		expired.addAndGet(batch.size());
+		return batch;
+	}
+
+	private void unlink(final Timeout timeout) {
+		if (timeout.prev != null) {
+			timeout.prev.next = timeout.next;
+		} else {
+			buckets[timeout.bucket] = timeout.next;
+		}
+		if (timeout.next != null) {
+			timeout.next.prev = timeout.prev;
+		}
+		timeout.prev = null;
+		timeout.next = null;
+		timeout.bucket = -1;
+		pending--;
+	}
+
+	/**
+	 * Receives the messages of a scheduler on top of the wheel.
+	 */
+	public interface Handler {
+
+		/**
+		 * Receive an expired message.
+		 *
+		 * @param message
+		 *            the message
+		 */
+		void receive(Object message);
+	}
+
+	/**
+	 * A scheduled task.
+	 */
+	public final class Timeout {
+		private final Runnable	task;
+		private int				bucket	= -1;
+		private long			rounds	= 0;
+		private Timeout			prev	= null;
+		private Timeout			next	= null;
+
+		private Timeout(final Runnable task) {
+			this.task = task;
+		}
+
+		/**
+		 * Cancel the task, if it hasn't expired yet.
+		 *
+		 * @return true, if cancelled
+		 */
+		public boolean cancel() {
+			synchronized (TimingWheel.this) {
+				if (bucket < 0) {
+					return false;
+				}
+				unlink(this);
+			}
+			cancelled.incrementAndGet();
+			return true;
+		}
+	}
+}
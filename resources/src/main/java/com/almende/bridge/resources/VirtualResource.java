@@ -0,0 +1,592 @@
+/*
+ * Copyright: Almende B.V. (2014), Rotterdam, The Netherlands
+ * License: The Apache Software License, Version 2.0
+ */
+package com.almende.bridge.resources;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.geojson.Feature;
+import org.geojson.FeatureCollection;
+import org.geojson.LineString;
+import org.geojson.LngLatAlt;
+import org.geojson.Point;
+import org.joda.time.DateTime;
+import org.joda.time.Duration;
+
+import com.almende.bridge.oldDataStructs.Location;
+import com.almende.bridge.resources.plans.Evac;
+import com.almende.bridge.resources.plans.GotoAndStay;
+import com.almende.bridge.resources.plans.Plan;
+import com.almende.bridge.swarm.navigation.RouteCodec;
+import com.almende.eve.protocol.jsonrpc.formats.JSONRequest;
+import com.almende.eve.protocol.jsonrpc.formats.Params;
+import com.almende.eve.scheduling.Scheduler;
+import com.almende.util.TypeUtil;
+import com.almende.util.callback.AsyncCallback;
+import com.almende.util.jackson.JOM;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * A simulated resource as a plain record, owned by a {@link ResourceHost}.
+ * It behaves as a SimulatedResource, but has no transport, state store or
+ * scheduler of its own: messages go through the host, timers through the
+ * shared timing wheel.
+ */
+class VirtualResource implements TimingWheel.Handler {
+	private static final Logger							LOG			= Logger.getLogger(VirtualResource.class
+																			.getName());
+	private static final TypeUtil<ArrayList<double[]>>	ROUTETYPE	= new TypeUtil<ArrayList<double[]>>() {};
+	private static final JSONRequest					NEXTLEGREQ	= new JSONRequest(
+																			"planNextLeg",
+																			null);
+	private static final JSONRequest					REPEATREQ	= new JSONRequest(
+																			"repeat",
+																			null);
+	private static final JSONRequest					STOPREQ		= new JSONRequest(
+																			"stop",
+																			null);
+
+	private final ResourceHost							host;
+	private final String								id;
+	private final String								guid;
+	private final String								resType;
+	private final String								tag;
+	private final String								icon;
+	private final double[]								initLocation;
+
+	private double										lon;
+	private double										lat;
+	private double										goalLon;
+	private double										goalLat;
+	private boolean										active		= false;
+	private Plan										plan		= null;
+	private Scheduler									scheduler	= null;
+	private PackedRoute									route		= null;
+	private long										routeBase	= 0;
+	private long										routeMillis	= 0;
+	private TimingWheel.Timeout							arrivalTimer	= null;
+	private long										lastUsed		= System
+																			.currentTimeMillis();
+
+	/**
+	 * Instantiates a new virtual resource.
+	 *
+	 * @param host
+	 *            the host
+	 * @param id
+	 *            the id
+	 * @param guid
+	 *            the guid
+	 * @param resType
+	 *            the resource type
+	 * @param tag
+	 *            the tag
+	 * @param icon
+	 *            the icon
+	 * @param initLocation
+	 *            the initial location, as [lon, lat]
+	 */
+	VirtualResource(final ResourceHost host, final String id,
+			final String guid, final String resType, final String tag,
+			final String icon, final double[] initLocation) {
+		this.host = host;
+		this.id = id;
+		this.guid = guid;
+		this.resType = resType;
+		this.tag = tag;
+		this.icon = icon;
+		this.initLocation = initLocation;
+		this.lon = initLocation[0];
+		this.lat = initLocation[1];
+	}
+
+	String getId() {
+		return id;
+	}
+
+	String getTag() {
+		return tag;
+	}
+
+	/**
+	 * Mark the resource as used, keeping it from being passivated.
+	 */
+	synchronized void touch() {
+		lastUsed = System.currentTimeMillis();
+	}
+
+	/**
+	 * Checks if the resource has been idle since the given time: no plan, no
+	 * route and no timers.
+	 *
+	 * @param since
+	 *            the time (wall clock millis)
+	 * @return true, if idle
+	 */
+	synchronized boolean isIdle(final long since) {
+		return !active && plan == null && route == null
+				&& arrivalTimer == null && scheduler == null
+				&& lastUsed < since;
+	}
+
+	/**
+	 * Write the compact form of an idle resource.
+	 *
+	 * @param out
+	 *            the output
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	synchronized void writeTo(final DataOutput out) throws IOException {
+		out.writeUTF(resType);
+		out.writeUTF(id);
+		out.writeUTF(guid);
+		out.writeUTF(tag);
+		out.writeBoolean(icon != null);
+		if (icon != null) {
+			out.writeUTF(icon);
+		}
+		out.writeDouble(initLocation[0]);
+		out.writeDouble(initLocation[1]);
+		out.writeDouble(lon);
+		out.writeDouble(lat);
+	}
+
+	/**
+	 * Read a resource from its compact form.
+	 *
+	 * @param host
+	 *            the host
+	 * @param in
+	 *            the input
+	 * @return the resource
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	static VirtualResource readFrom(final ResourceHost host, final DataInput in)
+			throws IOException {
+		final String resType = host.intern(in.readUTF());
+		final String id = in.readUTF();
+		final String guid = in.readUTF();
+		final String tag = host.intern(in.readUTF());
+		final String icon = in.readBoolean() ? host.intern(in.readUTF())
+				: null;
+		final VirtualResource resource = new VirtualResource(host, id, guid,
+				resType, tag, icon, new double[] { in.readDouble(),
+						in.readDouble() });
+		resource.lon = in.readDouble();
+		resource.lat = in.readDouble();
+		return resource;
+	}
+
+	/**
+	 * Reset to the initial location, without plan.
+	 */
+	synchronized void reset() {
+		stop();
+		lon = initLocation[0];
+		lat = initLocation[1];
+		updateIndex();
+	}
+
+	/**
+	 * Checks if the resource can take a task, as SimulatedResource.taskRequest:
+	 * idle, of the requested type and able to run the plan.
+	 *
+	 * @param task
+	 *            the task
+	 * @return true, if it can
+	 */
+	synchronized boolean accepts(final ObjectNode task) {
+		if (task.has("resType") && !resType.equals(task.get("resType").asText())) {
+			return false;
+		}
+		if (active) {
+			return false;
+		}
+		final String planName = task.get("planName").asText();
+		return "Goto".equals(planName) || "GotoAndStay".equals(planName)
+				|| ("medic vehicle".equals(resType) && "Evac".equals(planName));
+	}
+
+	/**
+	 * Volunteer for a task, if the resource can make it in time.
+	 *
+	 * @param task
+	 *            the task
+	 * @param reportTo
+	 *            the report to
+	 * @param millis
+	 *            the travel time to the task
+	 */
+	void volunteer(final ObjectNode task, final URI reportTo, final long millis) {
+		final Duration eta = new Duration(millis);
+		if (SimClock.now().plus(eta).isBefore(task.get("before").asLong())) {
+			final Params params = new Params();
+			params.add("task", task);
+			params.add("eta", eta.plus((long) Math.floor(Math.random() * 5000)));
+			params.add("resource", id);
+			host.send(reportTo, "volunteer", params);
+		}
+	}
+
+	/**
+	 * Sets the plan, as SimulatedResource.setPlan.
+	 *
+	 * @param planName
+	 *            the plan name
+	 * @param params
+	 *            the params
+	 * @param taskId
+	 *            the task id, may be null
+	 * @param repeat
+	 *            the repeat
+	 * @param sender
+	 *            the sender
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	synchronized void setPlan(final String planName, final ObjectNode params,
+			final String taskId, final Boolean repeat, final URI sender)
+			throws IOException {
+		lastUsed = System.currentTimeMillis();
+		if (taskId != null) {
+			final boolean confirm = plan == null
+					|| "finished".equals(plan.getStatus());
+			final Params parms = new Params();
+			parms.add("id", taskId);
+			parms.add("confirm", confirm);
+			parms.add("resource", id);
+			host.send(sender, "acknowledge", parms);
+			if (!confirm) {
+				LOG.warning(id
+						+ ": Not confirming plan, as I'm already doing something else.");
+				return;
+			}
+		}
+		String title = "Goto location";
+		if (params.has("title")) {
+			title = params.get("title").asText();
+		}
+		final ObjectNode config = JOM.createObjectNode();
+		if ("Evac".equals(planName)) {
+			if (params.has("task")) {
+				config.set("task", params.get("task"));
+			} else {
+				config.set("hospital", JOM.getInstance().valueToTree(
+						host.getPoI("hospital", params.get("hospital").asInt())));
+				config.set("pickupPoint", JOM.getInstance().valueToTree(
+						host.getPoI("rvpAmbu", params.get("rvpAmbu").asInt())));
+			}
+			plan = new Evac(getScheduler(), config, title);
+			plan.onStateChange("toPickup", NEXTLEGREQ);
+			plan.onStateChange("toDropOff", NEXTLEGREQ);
+		} else if ("GotoAndStay".equals(planName) || "Goto".equals(planName)) {
+			if (params.has("task")) {
+				config.set("task", params.get("task"));
+			} else {
+				config.set("goal", JOM.getInstance().valueToTree(
+						host.getPoI(params.get("poiType").asText(), params
+								.get("poiNumber").asInt())));
+			}
+			plan = new GotoAndStay(getScheduler(), config, title,
+					!"Goto".equals(planName));
+			plan.onStateChange("travel", NEXTLEGREQ);
+		}
+		if (plan != null) {
+			plan.onStateChange("finished", repeat != null && repeat ? REPEATREQ
+					: STOPREQ);
+			active = true;
+			updateIndex();
+			plan.arrival();
+		}
+	}
+
+	private Scheduler getScheduler() {
+		if (scheduler == null) {
+			scheduler = host.getTimers().asScheduler(this);
+		}
+		return scheduler;
+	}
+
+	@Override
+	public void receive(final Object message) {
+		if (!(message instanceof JSONRequest)) {
+			return;
+		}
+		final JSONRequest request = (JSONRequest) message;
+		final String method = request.getMethod();
+		synchronized (this) {
+			if ("planNextLeg".equals(method)) {
+				planNextLeg();
+			} else if ("stop".equals(method)) {
+				stop();
+			} else if ("repeat".equals(method)) {
+				if (plan != null) {
+					plan.doStateChange("init");
+					plan.arrival();
+				}
+			} else if ("plan.doStateChange".equals(method)) {
+				if (plan != null) {
+					plan.doStateChange(request.getParams().get("state").asText());
+				}
+			}
+		}
+	}
+
+	/**
+	 * Stop, dropping the plan and route.
+	 */
+	synchronized void stop() {
+		lastUsed = System.currentTimeMillis();
+		active = false;
+		plan = null;
+		getPosition();
+		route = null;
+		if (arrivalTimer != null) {
+			arrivalTimer.cancel();
+			arrivalTimer = null;
+		}
+		if (scheduler != null) {
+			scheduler.clear();
+			scheduler = null;
+		}
+		updateIndex();
+	}
+
+	void updateIndex() {
+		final ResourceIndex index = host.getIndex();
+		if (index != null) {
+			index.update(host.getAddress(id), resType, lon, lat, !active);
+		}
+	}
+
+	private void planNextLeg() {
+		if (plan == null || plan.getTargetLocation() == null) {
+			return;
+		}
+		final Point loc = (Point) plan.getTargetLocation().getGeometry();
+		final double[] pos = getPosition();
+		goalLon = loc.getCoordinates().getLongitude();
+		goalLat = loc.getCoordinates().getLatitude();
+		final Plan legPlan = plan;
+		host.getRoute(pos[1], pos[0], goalLat, goalLon,
+				new AsyncCallback<ObjectNode>() {
+					@Override
+					public void onSuccess(ObjectNode result) {
+						synchronized (VirtualResource.this) {
+							if (plan != legPlan) {
+								return;
+							}
+							routeBase = SimClock.millis()
+									+ (long) (Math.random() * 10000);
+							if (result.has("encodedRoute")) {
+								route = new PackedRoute(RouteCodec
+										.decode(result.get("encodedRoute")
+												.asText()));
+							} else {
+								route = new PackedRoute(ROUTETYPE
+										.inject(result.get("route")));
+							}
+							routeMillis = result.get("millis").asLong();
+							checkArrival();
+						}
+					}
+
+					@Override
+					public void onFailure(Exception exception) {
+						LOG.log(Level.WARNING, "Couldn't get route:", exception);
+						synchronized (VirtualResource.this) {
+							route = null;
+						}
+					}
+				});
+	}
+
+	private void checkArrival() {
+		if (plan == null) {
+			return;
+		}
+		final long eta = routeBase + routeMillis;
+		if (route == null || eta < SimClock.millis()) {
+			plan.arrival();
+		} else {
+			arrivalTimer = host.getTimers().schedule(new Runnable() {
+				@Override
+				public void run() {
+					synchronized (VirtualResource.this) {
+						arrivalTimer = null;
+						checkArrival();
+					}
+				}
+			}, SimClock.wallDelay(eta - SimClock.millis()));
+		}
+	}
+
+	/**
+	 * Gets the current position, ending the route once it's passed.
+	 *
+	 * @return the position as [lon, lat]
+	 */
+	synchronized double[] getPosition() {
+		if (route != null) {
+			final long millis = SimClock.millis() - routeBase;
+			final double[] loc = millis >= routeMillis ? null : route
+					.getPosition(millis);
+			if (loc == null) {
+				final int last = route.size() - 1;
+				lon = route.getLon(last);
+				lat = route.getLat(last);
+				route = null;
+			} else {
+				lon = loc[0];
+				lat = loc[1];
+			}
+		}
+		return new double[] { lon, lat };
+	}
+
+	private String getEtaString() {
+		return new DateTime(routeBase + routeMillis).toString();
+	}
+
+	/**
+	 * Gets the current location, as SimulatedResource.getCurrentLocation.
+	 *
+	 * @return the location
+	 */
+	synchronized ObjectNode getCurrentLocation() {
+		final double[] pos = getPosition();
+		final ObjectNode result = JOM.createObjectNode();
+		result.put("lon", pos[0]);
+		result.put("lat", pos[1]);
+		if (route != null) {
+			result.put("eta", getEtaString());
+		}
+		if (icon != null) {
+			result.put("icon", icon);
+		}
+		result.put("name", id);
+		return result;
+	}
+
+	private void addProperties(final Feature feature) {
+		feature.setProperty("resourceType", resType);
+		if (icon != null) {
+			feature.setProperty("icon", icon);
+		}
+		if (plan != null) {
+			feature.setProperty("taskTitle", plan.getCurrentTitle());
+			feature.setProperty("taskStatus", plan.getStatus());
+			feature.setProperty("taskLocations", plan.getLocations());
+			if (plan.getTargetLocation() != null) {
+				feature.setProperty("targetId", plan.getTargetLocation()
+						.getId());
+			}
+		}
+	}
+
+	private void addRouteProperties(final Feature feature) {
+		final long eta = routeBase + routeMillis;
+		feature.setProperty("eta", getEtaString());
+		final long remaining = eta - SimClock.millis();
+		if (remaining > 0) {
+			feature.setProperty("minutesRemaining", new Duration(remaining)
+					.toPeriod().toString(SimulatedResource.MINANDSECS));
+			feature.setProperty("etaShort", new DateTime(eta)
+					.toString("kk:mm:ss"));
+		} else {
+			feature.setProperty("minutesRemaining", 0);
+			feature.setProperty("etaShort", "00:00:00");
+		}
+	}
+
+	/**
+	 * Gets the geo json, as SimulatedResource.getGeoJson.
+	 *
+	 * @param incTrack
+	 *            include the track
+	 * @param incTarget
+	 *            include the target
+	 * @return the geo json
+	 */
+	synchronized FeatureCollection getGeoJson(final boolean incTrack,
+			final boolean incTarget) {
+		final double[] pos = getPosition();
+		final FeatureCollection fc = new FeatureCollection();
+		fc.setProperty("id", id);
+
+		final Feature origin = new Feature();
+		origin.setId(id);
+		final Point originPoint = new Point();
+		originPoint.setCoordinates(new LngLatAlt(pos[0], pos[1]));
+		origin.setGeometry(originPoint);
+		origin.setProperty("type", "currentLocation");
+		addProperties(origin);
+		fc.add(origin);
+
+		if (route != null) {
+			addRouteProperties(origin);
+			if (incTrack) {
+				final Feature track = new Feature();
+				track.setId(id);
+				final LineString steps = new LineString();
+				steps.add(new LngLatAlt(pos[0], pos[1]));
+				for (int i = route.indexAfter(SimClock.millis() - routeBase); i < route
+						.size(); i++) {
+					steps.add(new LngLatAlt(route.getLon(i), route.getLat(i)));
+				}
+				track.setGeometry(steps);
+				track.setProperty("type", "route");
+				addProperties(track);
+				fc.add(track);
+			}
+			if (incTarget) {
+				final Feature goal = new Feature();
+				goal.setId(id);
+				final Point goalPoint = new Point();
+				goalPoint.setCoordinates(new LngLatAlt(goalLon, goalLat));
+				goal.setGeometry(goalPoint);
+				goal.setProperty("type", "targetLocation");
+				addRouteProperties(goal);
+				addProperties(goal);
+				fc.add(goal);
+			}
+		}
+		return fc;
+	}
+
+	/**
+	 * Request status, as SimulatedResource.requestStatus.
+	 *
+	 * @return the status
+	 */
+	synchronized ObjectNode requestStatus() {
+		final double[] pos = getPosition();
+		final ObjectNode status = JOM.createObjectNode();
+		status.put("name", id);
+		status.put("id", guid);
+		status.put("type", resType);
+		status.put("deploymentStatus", active ? "Active" : "Unassigned");
+		status.set("current", JOM.getInstance().valueToTree(
+				new Location(Double.toString(pos[1]), Double.toString(pos[0]),
+						SimClock.now().toString())));
+		if (route != null) {
+			status.set("goal", JOM.getInstance().valueToTree(
+					new Location(Double.toString(goalLat), Double
+							.toString(goalLon), getEtaString())));
+		}
+		if (plan != null) {
+			status.put("task",
+					plan.getTitle() + " (" + plan.getCurrentTitle() + ")");
+		}
+		return status;
+	}
+}
@@ -95,6 +95,12 @@ public class Evac extends Plan {
 		return null;
 	}
 
+	@Override
+	@JsonIgnore
+	public boolean isTraveling() {
+		return status.equals(STATE.toPickup) || status.equals(STATE.toDropOff);
+	}
+
 	@Override
 	public void arrival() {
 		if (status.equals(STATE.toPickup)) {
@@ -124,4 +130,11 @@ public class Evac extends Plan {
 		schedule();
 	}
 
+	@Override
+	public void restoreState(String state) {
+		status = STATE.valueOf(state);
+		// Restart the pickup or drop off delay, it was lost with the scheduler.
+		schedule();
+	}
+
 }
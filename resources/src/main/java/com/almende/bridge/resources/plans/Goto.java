@@ -105,6 +105,25 @@ public class Goto extends Plan {
 		super.doStateChange(stateName);
 	}
 
+	/*
+	 * (non-Javadoc)
+	 * @see
+	 * com.almende.bridge.resources.plans.Plan#restoreState(java.lang.String)
+	 */
+	@Override
+	public void restoreState(String stateName) {
+		status = STATE.valueOf(stateName);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see com.almende.bridge.resources.plans.Plan#isTraveling()
+	 */
+	@Override
+	public boolean isTraveling() {
+		return status == STATE.travel;
+	}
+
 	/*
 	 * (non-Javadoc)
 	 * @see com.almende.bridge.resources.plans.Plan#getStatus()
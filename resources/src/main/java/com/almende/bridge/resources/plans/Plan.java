@@ -36,7 +36,8 @@ public abstract class Plan {
 	 * Instantiates a new plan.
 	 *
 	 * @param scheduler
-	 *            the scheduler
+	 *            the scheduler, in simulation time (see
+	 *            {@link com.almende.bridge.resources.SimScheduler})
 	 * @param config
 	 *            the config
 	 */
@@ -121,6 +122,23 @@ public abstract class Plan {
 		triggers.get(state).add(request);
 	}
 
+	/**
+	 * Restore the state, e.g. from a fleet snapshot, without firing the
+	 * state change triggers.
+	 *
+	 * @param state
+	 *            the state
+	 */
+	public abstract void restoreState(String state);
+
+	/**
+	 * Checks if the plan is on its way to its target location, and so needs
+	 * a route.
+	 *
+	 * @return true, if traveling
+	 */
+	public abstract boolean isTraveling();
+
 	/**
 	 * Gets the status.
 	 *
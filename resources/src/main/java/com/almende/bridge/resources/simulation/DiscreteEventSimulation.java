@@ -0,0 +1,659 @@
+/*
+ * Copyright: Almende B.V. (2014), Rotterdam, The Netherlands
+ * License: The Apache Software License, Version 2.0
+ */
+package com.almende.bridge.resources.simulation;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.geojson.Feature;
+import org.geojson.LngLatAlt;
+import org.geojson.Point;
+import org.joda.time.DateTime;
+import com.almende.bridge.resources.Assignment;
+import com.almende.bridge.resources.CandidateQueue;
+import com.almende.bridge.resources.Scenario;
+import com.almende.bridge.resources.SimScheduler;
+import com.almende.bridge.resources.Task;
+import com.almende.bridge.swarm.navigation.RoutingEngine;
+import com.almende.eve.protocol.jsonrpc.formats.Params;
+import com.almende.eve.scheduling.Scheduler;
+import com.almende.util.jackson.JOM;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * One replication of the demo scenario as a discrete-event simulation: the
+ * steps of the {@link Scenario} are played at a fixed interval, tasks are
+ * offered to the capable vehicles, handed out after the volunteer window by
+ * the dispatch policy, and carried out by the same plans the
+ * SimulatedResources use. Time only moves from event to event, so a
+ * replication runs as fast as the routing allows, without agents, HTTP or
+ * wall clock. Road closures are not applied, as the routing engine is shared
+ * between replications. Configured through:
+ *
+ * <pre>
+ * seed: 1
+ * stepInterval: 300000
+ * horizon: 7200000
+ * policy: closest | random | batch
+ * vehicles:
+ *    - type: fire vehicle
+ *      at: fireStation
+ *      count: 6
+ * </pre>
+ */
+public class DiscreteEventSimulation implements Scenario.Target {
+	private static final Logger				LOG				= Logger.getLogger(DiscreteEventSimulation.class
+																	.getName());
+	private static final long				TASKWINDOW		= 10000;
+	private static final long				AMBULANCEDELAY	= 30000;
+	private static final long				DEFAULTSTEP		= 300000;
+	private static final long				DEFAULTHORIZON	= 7200000;
+
+	/**
+	 * How a task is handed out among its volunteers.
+	 */
+	public enum Policy {
+		/** The volunteer with the earliest eta, as the DemoGenerator does. */
+		closest,
+		/** A random volunteer, as baseline. */
+		random,
+		/**
+		 * All tasks of a volunteer window at once, with minimal total eta, as
+		 * the DemoGenerator's batch dispatch mode does.
+		 */
+		batch
+	};
+
+	private final RoutingEngine				routing;
+	private final Random					random;
+	private final Policy					policy;
+	private final long						stepInterval;
+	private final long						horizon;
+	private final JsonNode					vehicleConfig;
+
+	private final PriorityQueue<Event>		events			= new PriorityQueue<Event>();
+	private final Map<String, Event>		scheduled		= new HashMap<String, Event>();
+	private long							now				= 0;
+	private long							seq				= 0;
+	private long							routingFailures	= 0;
+
+	private Map<String, List<double[]>>		placesOfInterest	= new HashMap<String, List<double[]>>();
+	private Map<String, ObjectNode>			properties		= new HashMap<String, ObjectNode>();
+	private final List<SimVehicle>			vehicles		= new ArrayList<SimVehicle>();
+	private final Map<URI, SimVehicle>		vehicleByUri	= new HashMap<URI, SimVehicle>();
+	private final Map<String, Task>			tasks			= new HashMap<String, Task>();
+	private final Map<String, TaskRecord>	records			= new LinkedHashMap<String, TaskRecord>();
+	private final List<String>				batch			= new ArrayList<String>();
+	private boolean							stopEvac		= true;
+
+	/**
+	 * Instantiates a new simulation.
+	 *
+	 * @param routing
+	 *            the routing engine
+	 * @param config
+	 *            the simulation config
+	 */
+	public DiscreteEventSimulation(final RoutingEngine routing,
+			final ObjectNode config) {
+		this.routing = routing;
+		this.random = new Random(config.has("seed") ? config.get("seed")
+				.asLong() : 0);
+		this.policy = config.has("policy") ? Policy.valueOf(config.get(
+				"policy").asText()) : Policy.closest;
+		this.stepInterval = config.has("stepInterval") ? config.get(
+				"stepInterval").asLong() : DEFAULTSTEP;
+		this.horizon = config.has("horizon") ? config.get("horizon").asLong()
+				: DEFAULTHORIZON;
+		this.vehicleConfig = config.has("vehicles") ? config.get("vehicles")
+				: defaultVehicles();
+	}
+
+	private static JsonNode defaultVehicles() {
+		final ArrayNode result = JOM.createArrayNode();
+		result.add(vehicles("fire vehicle", "fireStation", 6));
+		result.add(vehicles("police vehicle", "policeStation", 6));
+		result.add(vehicles("medic vehicle", "hospital", 8));
+		return result;
+	}
+
+	private static ObjectNode vehicles(final String type, final String at,
+			final int count) {
+		final ObjectNode result = JOM.createObjectNode();
+		result.put("type", type);
+		result.put("at", at);
+		result.put("count", count);
+		return result;
+	}
+
+	/**
+	 * Run the scenario until the horizon, or until no events are left.
+	 *
+	 * @return the statistics of the replication
+	 */
+	public ObjectNode run() {
+		final long start = System.currentTimeMillis();
+		for (int i = 0; i < Scenario.STEPS.length; i++) {
+			final String step = Scenario.STEPS[i];
+			schedule(i * stepInterval, new Runnable() {
+				@Override
+				public void run() {
+					Scenario.run(step, DiscreteEventSimulation.this);
+					if ("reset".equals(step)) {
+						placeVehicles();
+					}
+				}
+			});
+		}
+		long count = 0;
+		while (!events.isEmpty() && events.peek().time <= horizon) {
+			final Event event = events.poll();
+			scheduled.remove(event.id);
+			if (event.cancelled) {
+				continue;
+			}
+			now = event.time;
+			event.action.run();
+			count++;
+		}
+		final ObjectNode result = getStats();
+		result.put("events", count);
+		result.put("elapsed", System.currentTimeMillis() - start);
+		return result;
+	}
+
+	/**
+	 * Gets the current simulation time.
+	 *
+	 * @return the millis since the start of the replication
+	 */
+	public long getNow() {
+		return now;
+	}
+
+	/**
+	 * Schedule an action.
+	 *
+	 * @param delay
+	 *            the delay in simulation millis
+	 * @param action
+	 *            the action
+	 * @return the event id
+	 */
+	String schedule(final long delay, final Runnable action) {
+		return enqueue(delay, action).id;
+	}
+
+	private Event enqueue(final long delay, final Runnable action) {
+		final Event event = new Event(now + Math.max(0, delay), seq++, action);
+		events.add(event);
+		return event;
+	}
+
+	/**
+	 * Create an Eve scheduler for the plans of a vehicle, which puts the
+	 * messages on the event queue instead of sending them to the agent. Plans
+	 * schedule in simulation time, which is the time line of this
+	 * replication, independent of the SimClock.
+	 *
+	 * @param vehicle
+	 *            the vehicle
+	 * @return the scheduler
+	 */
+	Scheduler createScheduler(final SimVehicle vehicle) {
+		final Set<String> ids = new HashSet<String>();
+		return new SimScheduler(new SimScheduler.Timers() {
+			@Override
+			public long now() {
+				return now;
+			}
+
+			@Override
+			public String start(final Object message, final long delay) {
+				final String[] id = new String[1];
+				final Event event = enqueue(delay, new Runnable() {
+					@Override
+					public void run() {
+						ids.remove(id[0]);
+						vehicle.receive(message);
+					}
+				});
+				id[0] = event.id;
+				scheduled.put(event.id, event);
+				ids.add(event.id);
+				return event.id;
+			}
+
+			@Override
+			public void cancel(final String id) {
+				ids.remove(id);
+				final Event event = scheduled.remove(id);
+				if (event != null) {
+					event.cancelled = true;
+				}
+			}
+
+			@Override
+			public void clear() {
+				for (String id : new ArrayList<String>(ids)) {
+					cancel(id);
+				}
+			}
+
+			@Override
+			public String toString() {
+				return "vehicle:" + vehicle.getId();
+			}
+		});
+	}
+
+	/**
+	 * Draw a uniform random delay.
+	 *
+	 * @param max
+	 *            the maximum
+	 * @return the delay
+	 */
+	long jitter(final long max) {
+		return (long) (random.nextDouble() * max);
+	}
+
+	/**
+	 * Gets the travel time between two locations.
+	 *
+	 * @param fromLon
+	 *            the from lon
+	 * @param fromLat
+	 *            the from lat
+	 * @param toLon
+	 *            the to lon
+	 * @param toLat
+	 *            the to lat
+	 * @return the millis, or -1 if no route was found
+	 */
+	long getTravelTime(final double fromLon, final double fromLat,
+			final double toLon, final double toLat) {
+		try {
+			return routing.getEta(fromLat, fromLon, toLat, toLon).get("millis")
+					.asLong();
+		} catch (RuntimeException e) {
+			routingFailures++;
+			LOG.log(Level.FINE, "Couldn't route", e);
+			return -1;
+		}
+	}
+
+	/**
+	 * Record the arrival of a vehicle at the goal of a leg.
+	 *
+	 * @param vehicle
+	 *            the vehicle
+	 */
+	void arrived(final SimVehicle vehicle) {
+		final TaskRecord record = records.get(vehicle.getTaskId());
+		if (record != null && record.arrived < 0) {
+			record.arrived = now;
+		}
+	}
+
+	/**
+	 * A vehicle can't reach its goal; it gives up on the task.
+	 *
+	 * @param vehicle
+	 *            the vehicle
+	 */
+	void unreachable(final SimVehicle vehicle) {
+		final TaskRecord record = records.get(vehicle.getTaskId());
+		if (record != null) {
+			record.unreachable = true;
+		}
+		vehicle.stop();
+	}
+
+	private void placeVehicles() {
+		if (vehicles.isEmpty()) {
+			for (JsonNode group : vehicleConfig) {
+				final String type = group.get("type").asText();
+				final List<double[]> stations = placesOfInterest.get(group.get(
+						"at").asText());
+				for (int i = 0; i < group.get("count").asInt(); i++) {
+					final SimVehicle vehicle = new SimVehicle(this, type + "-"
+							+ i, type, stations.get(random.nextInt(stations
+							.size())));
+					vehicles.add(vehicle);
+					vehicleByUri.put(vehicle.getUri(), vehicle);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Gets a point of interest as feature, as the DemoGenerator does.
+	 *
+	 * @param type
+	 *            the type
+	 * @param i
+	 *            the number
+	 * @return the feature
+	 */
+	Feature getPoI(final String type, final int i) {
+		final Feature feature = new Feature();
+		feature.setProperty("type", type);
+		final ObjectNode node = properties.get(type + "-" + i);
+		if (node != null) {
+			feature.setId(node.get("label").asText());
+			feature.setProperty("icon", node.get("icon").asText());
+		}
+		final Point point = new Point();
+		final double[] loc = placesOfInterest.get(type).get(i);
+		point.setCoordinates(new LngLatAlt(loc[0], loc[1]));
+		feature.setGeometry(point);
+		return feature;
+	}
+
+	@Override
+	public void reset() {
+		stopEvac = true;
+		placesOfInterest.clear();
+		properties.clear();
+		for (SimVehicle vehicle : vehicles) {
+			vehicle.stop();
+		}
+	}
+
+	@Override
+	public void storePlacesOfInterest(final String type, final double[][] list) {
+		List<double[]> arrayList = placesOfInterest.get(type);
+		if (arrayList == null) {
+			arrayList = new ArrayList<double[]>();
+			placesOfInterest.put(type, arrayList);
+		}
+		arrayList.addAll(Arrays.asList(list));
+	}
+
+	@Override
+	public void createPoIproperties(final String key, final String label,
+			final String icon) {
+		final ObjectNode node = JOM.createObjectNode();
+		node.put("label", label);
+		node.put("icon", icon);
+		if (properties.containsKey(key)) {
+			properties.get(key).setAll(node);
+		} else {
+			properties.put(key, node);
+		}
+	}
+
+	@Override
+	public int countPoI(final String type) {
+		final List<double[]> list = placesOfInterest.get(type);
+		return list != null ? list.size() : 0;
+	}
+
+	@Override
+	public void sendTaskPoI(final String planName, final String type,
+			final String poiType, final int poiNumber, final int minutes,
+			final ObjectNode taskParams) {
+		final double[] loc = placesOfInterest.get(poiType).get(poiNumber);
+		final ObjectNode config = JOM.createObjectNode();
+		config.put("lat", loc[1]);
+		config.put("lon", loc[0]);
+		config.put("before", now + minutes * 60000L);
+		config.put("planName", planName);
+		config.put("resType", type);
+		config.set("taskParams", taskParams);
+		final String id = "task-" + records.size();
+		config.put("id", id);
+
+		final Task task = new Task(config);
+		final TaskRecord record = new TaskRecord(config, now);
+		tasks.put(id, task);
+		records.put(id, record);
+
+		for (SimVehicle vehicle : vehicles) {
+			if (!vehicle.isCapable(config)) {
+				continue;
+			}
+			final long millis = getTravelTime(vehicle.getLon(),
+					vehicle.getLat(), loc[0], loc[1]);
+			if (millis >= 0 && now + millis < config.get("before").asLong()) {
+				task.setCandidate(new DateTime(millis + jitter(5000)),
+						vehicle.getUri());
+				record.candidates.add(vehicle.getUri());
+				record.offered++;
+			}
+		}
+		if (policy == Policy.batch) {
+			batch.add(id);
+			if (batch.size() > 1) {
+				return;
+			}
+			schedule(TASKWINDOW, new Runnable() {
+				@Override
+				public void run() {
+					handleBatch();
+				}
+			});
+			return;
+		}
+		schedule(TASKWINDOW, new Runnable() {
+			@Override
+			public void run() {
+				handleTask(id);
+			}
+		});
+	}
+
+	private void handleBatch() {
+		final List<String> ids = new ArrayList<String>(batch);
+		batch.clear();
+		final List<URI> uris = new ArrayList<URI>();
+		final Map<URI, Integer> columns = new HashMap<URI, Integer>();
+		for (String id : ids) {
+			for (CandidateQueue.Candidate candidate : tasks.get(id).getCandidates()) {
+				if (!columns.containsKey(candidate.getUri())) {
+					columns.put(candidate.getUri(), uris.size());
+					uris.add(candidate.getUri());
+				}
+			}
+		}
+		final double[][] cost = new double[ids.size()][uris.size()];
+		for (int i = 0; i < cost.length; i++) {
+			Arrays.fill(cost[i], Double.POSITIVE_INFINITY);
+			final Task task = tasks.get(ids.get(i));
+			for (CandidateQueue.Candidate offer : task.getCandidates()) {
+				if (vehicleByUri.get(offer.getUri()).isCapable(
+						task.getConfig())) {
+					cost[i][columns.get(offer.getUri())] = offer.getEta()
+							.getMillis();
+				}
+			}
+		}
+		final int[] assigned = Assignment.solve(cost);
+		for (int i = 0; i < assigned.length; i++) {
+			if (assigned[i] >= 0) {
+				final String id = ids.get(i);
+				assign(tasks.remove(id), records.get(id),
+						vehicleByUri.get(uris.get(assigned[i])));
+			}
+		}
+		// The others get the closest volunteer that's still free, if any.
+		for (int i = 0; i < assigned.length; i++) {
+			if (assigned[i] < 0) {
+				handleTask(ids.get(i));
+			}
+		}
+	}
+
+	private void handleTask(final String id) {
+		final Task task = tasks.remove(id);
+		final TaskRecord record = records.get(id);
+		URI candidate = pick(task, record, null);
+		while (candidate != null) {
+			final SimVehicle vehicle = vehicleByUri.get(candidate);
+			if (vehicle.isCapable(task.getConfig())) {
+				assign(task, record, vehicle);
+				return;
+			}
+			// Busy in the meantime, as with a negative acknowledge.
+			record.refusals++;
+			candidate = pick(task, record, candidate);
+		}
+	}
+
+	private void assign(final Task task, final TaskRecord record,
+			final SimVehicle vehicle) {
+		record.assigned = now;
+		record.vehicle = vehicle.getId();
+		vehicle.setPlan(task.getConfig().get("planName").asText(), task
+				.getConfig().get("taskParams"), task.getConfig().get("id")
+				.asText());
+	}
+
+	private URI pick(final Task task, final TaskRecord record,
+			final URI lastTry) {
+		if (lastTry != null) {
+			record.candidates.remove(lastTry);
+		}
+		switch (policy) {
+			case random:
+				if (record.candidates.isEmpty()) {
+					return null;
+				}
+				return record.candidates.get(random.nextInt(record.candidates
+						.size()));
+			default:
+				return lastTry == null ? task.getClosest() : task
+						.getNext(lastTry);
+		}
+	}
+
+	@Override
+	public void startEvac() {
+		stopEvac = false;
+		scheduleAmbulances();
+	}
+
+	private void scheduleAmbulances() {
+		if (!stopEvac) {
+			final Params params = new Params();
+			final int rvp = random.nextInt(2);
+			params.add("hospital", random.nextInt(4));
+			params.add("rvpAmbu", rvp);
+			sendTaskPoI("Evac", "medic vehicle", "rvpAmbu", rvp, 15, params);
+			schedule(AMBULANCEDELAY, new Runnable() {
+				@Override
+				public void run() {
+					scheduleAmbulances();
+				}
+			});
+		}
+	}
+
+	/**
+	 * Gets the statistics: per task, and aggregated.
+	 *
+	 * @return the stats
+	 */
+	public ObjectNode getStats() {
+		final ObjectNode result = JOM.createObjectNode();
+		final ArrayNode list = JOM.createArrayNode();
+		int assigned = 0;
+		int arrived = 0;
+		long toAssign = 0;
+		long toArrive = 0;
+		for (TaskRecord record : records.values()) {
+			list.add(record.toJson());
+			if (record.assigned >= 0) {
+				assigned++;
+				toAssign += record.assigned - record.created;
+			}
+			if (record.arrived >= 0) {
+				arrived++;
+				toArrive += record.arrived - record.created;
+			}
+		}
+		result.put("policy", policy.name());
+		result.put("tasks", records.size());
+		result.put("assigned", assigned);
+		result.put("arrived", arrived);
+		result.put("meanTimeToAssign", assigned > 0 ? toAssign / assigned : -1);
+		result.put("meanTimeToArrive", arrived > 0 ? toArrive / arrived : -1);
+		result.put("routingFailures", routingFailures);
+		result.put("simulatedMillis", now);
+		result.set("perTask", list);
+		return result;
+	}
+
+	private static class TaskRecord {
+		final ObjectNode	config;
+		final long			created;
+		final List<URI>		candidates	= new ArrayList<URI>();
+		int					offered		= 0;
+		long				assigned	= -1;
+		long				arrived		= -1;
+		int					refusals	= 0;
+		boolean				unreachable	= false;
+		String				vehicle		= null;
+
+		TaskRecord(final ObjectNode config, final long created) {
+			this.config = config;
+			this.created = created;
+		}
+
+		ObjectNode toJson() {
+			final ObjectNode result = JOM.createObjectNode();
+			result.put("id", config.get("id").asText());
+			result.put("planName", config.get("planName").asText());
+			result.put("resType", config.get("resType").asText());
+			result.put("created", created);
+			result.put("candidates", offered);
+			result.put("assigned", assigned);
+			result.put("arrived", arrived);
+			result.put("refusals", refusals);
+			result.put("unreachable", unreachable);
+			if (vehicle != null) {
+				result.put("vehicle", vehicle);
+			}
+			return result;
+		}
+	}
+
+	private static class Event implements Comparable<Event> {
+		final long		time;
+		final long		seq;
+		final String	id;
+		final Runnable	action;
+		boolean			cancelled	= false;
+
+		Event(final long time, final long seq, final Runnable action) {
+			this.time = time;
+			this.seq = seq;
+			this.id = Long.toString(seq);
+			this.action = action;
+		}
+
+		@Override
+		public int compareTo(final Event other) {
+			if (time != other.time) {
+				return time < other.time ? -1 : 1;
+			}
+			return Long.compare(seq, other.seq);
+		}
+	}
+}
@@ -0,0 +1,233 @@
+/*
+ * Copyright: Almende B.V. (2014), Rotterdam, The Netherlands
+ * License: The Apache Software License, Version 2.0
+ */
+package com.almende.bridge.resources.simulation;
+
+import java.net.URI;
+
+import org.geojson.Feature;
+import org.geojson.Point;
+
+import com.almende.bridge.resources.plans.Evac;
+import com.almende.bridge.resources.plans.GotoAndStay;
+import com.almende.bridge.resources.plans.Plan;
+import com.almende.eve.protocol.jsonrpc.formats.JSONRequest;
+import com.almende.eve.scheduling.Scheduler;
+import com.almende.util.jackson.JOM;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * A simulated resource without an agent: position, plan and deployment state,
+ * driven by the events of a {@link DiscreteEventSimulation}. Plans are set up
+ * with the same triggers as in SimulatedResource.
+ */
+class SimVehicle {
+	private static final JSONRequest	NEXTLEGREQ	= new JSONRequest(
+															"planNextLeg", null);
+	private static final JSONRequest	STOPREQ		= new JSONRequest("stop",
+															null);
+
+	private final DiscreteEventSimulation	sim;
+	private final String					id;
+	private final URI						uri;
+	private final String					resType;
+	private final Scheduler					scheduler;
+	private double							lon;
+	private double							lat;
+	private Plan							plan		= null;
+	private boolean							active		= false;
+	private String							taskId		= null;
+
+	/**
+	 * Instantiates a new vehicle.
+	 *
+	 * @param sim
+	 *            the simulation
+	 * @param id
+	 *            the id
+	 * @param resType
+	 *            the resource type
+	 * @param location
+	 *            the initial location, as [lon, lat]
+	 */
+	SimVehicle(final DiscreteEventSimulation sim, final String id,
+			final String resType, final double[] location) {
+		this.sim = sim;
+		this.id = id;
+		this.uri = URI.create("sim:" + id);
+		this.resType = resType;
+		this.lon = location[0];
+		this.lat = location[1];
+		this.scheduler = sim.createScheduler(this);
+	}
+
+	String getId() {
+		return id;
+	}
+
+	URI getUri() {
+		return uri;
+	}
+
+	String getResType() {
+		return resType;
+	}
+
+	double getLon() {
+		return lon;
+	}
+
+	double getLat() {
+		return lat;
+	}
+
+	boolean isActive() {
+		return active;
+	}
+
+	String getTaskId() {
+		return taskId;
+	}
+
+	/**
+	 * Checks if the vehicle can take the task, as SimulatedResource does in
+	 * taskRequest.
+	 *
+	 * @param task
+	 *            the task config
+	 * @return true, if capable and unassigned
+	 */
+	boolean isCapable(final JsonNode task) {
+		if (active) {
+			return false;
+		}
+		if (task.has("resType")
+				&& !resType.equals(task.get("resType").asText())) {
+			return false;
+		}
+		final String planName = task.get("planName").asText();
+		if ("Goto".equals(planName) || "GotoAndStay".equals(planName)) {
+			return true;
+		}
+		return "medic vehicle".equals(resType) && "Evac".equals(planName);
+	}
+
+	/**
+	 * Sets the plan.
+	 *
+	 * @param planName
+	 *            the plan name
+	 * @param params
+	 *            the task params
+	 * @param taskId
+	 *            the task id
+	 */
+	void setPlan(final String planName, final JsonNode params,
+			final String taskId) {
+		final ObjectNode config = JOM.createObjectNode();
+		String title = "Goto location";
+		if (params.has("title")) {
+			title = params.get("title").asText();
+		}
+		if ("Evac".equals(planName)) {
+			config.set(
+					"hospital",
+					JOM.getInstance().valueToTree(
+							sim.getPoI("hospital", params.get("hospital")
+									.asInt())));
+			config.set(
+					"pickupPoint",
+					JOM.getInstance().valueToTree(
+							sim.getPoI("rvpAmbu", params.get("rvpAmbu")
+									.asInt())));
+			plan = new Evac(scheduler, config, title);
+			plan.onStateChange("toPickup", NEXTLEGREQ);
+			plan.onStateChange("toDropOff", NEXTLEGREQ);
+		} else if ("GotoAndStay".equals(planName) || "Goto".equals(planName)) {
+			config.set(
+					"goal",
+					JOM.getInstance().valueToTree(
+							sim.getPoI(params.get("poiType").asText(), params
+									.get("poiNumber").asInt())));
+			plan = new GotoAndStay(scheduler, config, title,
+					!"Goto".equals(planName));
+			plan.onStateChange("travel", NEXTLEGREQ);
+		} else {
+			return;
+		}
+		plan.onStateChange("finished", STOPREQ);
+		this.taskId = taskId;
+		active = true;
+		plan.arrival();
+	}
+
+	/**
+	 * Handle a message the plan scheduled for this vehicle.
+	 *
+	 * @param message
+	 *            the message
+	 */
+	void receive(final Object message) {
+		if (!(message instanceof JSONRequest)) {
+			return;
+		}
+		final JSONRequest request = (JSONRequest) message;
+		final String method = request.getMethod();
+		if ("planNextLeg".equals(method)) {
+			planNextLeg();
+		} else if ("stop".equals(method)) {
+			stop();
+		} else if ("repeat".equals(method)) {
+			if (plan != null) {
+				plan.doStateChange("init");
+				plan.arrival();
+			}
+		} else if ("plan.doStateChange".equals(method)) {
+			if (plan != null) {
+				plan.doStateChange(request.getParams().get("state").asText());
+			}
+		}
+	}
+
+	/**
+	 * Reset the vehicle to unassigned.
+	 */
+	void stop() {
+		plan = null;
+		active = false;
+		taskId = null;
+	}
+
+	private void planNextLeg() {
+		if (plan == null) {
+			return;
+		}
+		final Feature goal = plan.getTargetLocation();
+		if (goal == null) {
+			return;
+		}
+		final Point point = (Point) goal.getGeometry();
+		final double goalLon = point.getCoordinates().getLongitude();
+		final double goalLat = point.getCoordinates().getLatitude();
+		final long millis = sim.getTravelTime(lon, lat, goalLon, goalLat);
+		if (millis < 0) {
+			sim.unreachable(this);
+			return;
+		}
+		final Plan legPlan = plan;
+		sim.schedule(sim.jitter(10000) + millis, new Runnable() {
+			@Override
+			public void run() {
+				if (plan != legPlan) {
+					return;
+				}
+				lon = goalLon;
+				lat = goalLat;
+				sim.arrived(SimVehicle.this);
+				plan.arrival();
+			}
+		});
+	}
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright: Almende B.V. (2014), Rotterdam, The Netherlands
+ * License: The Apache Software License, Version 2.0
+ */
+package com.almende.bridge.resources.simulation;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Logger;
+
+import com.almende.bridge.swarm.navigation.RoutingEngine;
+import com.almende.util.jackson.JOM;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.graphhopper.util.CmdArgs;
+
+/**
+ * Runs seeded replications of the demo scenario offline, in parallel, and
+ * prints the statistics as JSON. The GraphHopper arguments are those of the
+ * navigation agent, the simulation is configured through the "sim." ones:
+ *
+ * <pre>
+ * java ...SimulationRunner osmreader.osm=maps/france-latest.osm.pbf \
+ *    graph.location=maps/france-latest-gh graph.flagEncoders=car \
+ *    sim.replications=100 sim.seed=1 sim.threads=8 sim.policy=closest \
+ *    sim.stepInterval=300000 sim.horizon=7200000
+ * </pre>
+ */
+public class SimulationRunner {
+	private static final Logger	LOG	= Logger.getLogger(SimulationRunner.class
+											.getName());
+
+	/**
+	 * The main method.
+	 *
+	 * @param args
+	 *            the arguments
+	 * @throws InterruptedException
+	 *             the interrupted exception
+	 * @throws ExecutionException
+	 *             the execution exception
+	 * @throws JsonProcessingException
+	 *             the json processing exception
+	 */
+	public static void main(String[] args) throws InterruptedException,
+			ExecutionException, JsonProcessingException {
+		final CmdArgs cargs = CmdArgs.read(args);
+		final int replications = cargs.getInt("sim.replications", 10);
+		final long seed = cargs.getLong("sim.seed", 1);
+		final int threads = cargs.getInt("sim.threads", Runtime.getRuntime()
+				.availableProcessors());
+
+		final ObjectNode routingConfig = JOM.createObjectNode();
+		routingConfig.put("routingWorkers", threads);
+		routingConfig.put("routingQueueSize", threads * 16);
+		final RoutingEngine routing = new RoutingEngine(
+				RoutingEngine.loadGraph(cargs), routingConfig);
+
+		final ObjectNode simConfig = JOM.createObjectNode();
+		simConfig.put("policy", cargs.get("sim.policy", "closest"));
+		simConfig.put("stepInterval", cargs.getLong("sim.stepInterval", 300000));
+		simConfig.put("horizon", cargs.getLong("sim.horizon", 7200000));
+
+		LOG.info("Running " + replications + " replications on " + threads
+				+ " threads:" + simConfig);
+		final ExecutorService pool = Executors.newFixedThreadPool(threads);
+		final List<Future<ObjectNode>> results = new ArrayList<Future<ObjectNode>>(
+				replications);
+		for (int i = 0; i < replications; i++) {
+			final ObjectNode config = simConfig.deepCopy();
+			config.put("seed", seed + i);
+			results.add(pool.submit(new Callable<ObjectNode>() {
+				@Override
+				public ObjectNode call() {
+					final ObjectNode result = new DiscreteEventSimulation(
+							routing, config).run();
+					result.put("seed", config.get("seed").asLong());
+					return result;
+				}
+			}));
+		}
+		final ArrayNode list = JOM.createArrayNode();
+		int tasks = 0;
+		int assigned = 0;
+		int arrived = 0;
+		for (Future<ObjectNode> future : results) {
+			final ObjectNode result = future.get();
+			tasks += result.get("tasks").asInt();
+			assigned += result.get("assigned").asInt();
+			arrived += result.get("arrived").asInt();
+			list.add(result);
+		}
+		pool.shutdown();
+
+		final ObjectNode summary = JOM.createObjectNode();
+		summary.setAll(simConfig);
+		summary.put("replications", replications);
+		summary.put("tasks", tasks);
+		summary.put("assignedRatio", tasks > 0 ? (double) assigned / tasks : 0);
+		summary.put("arrivedRatio", tasks > 0 ? (double) arrived / tasks : 0);
+		summary.set("results", list);
+		System.out.println(JOM.getInstance().writerWithDefaultPrettyPrinter()
+				.writeValueAsString(summary));
+	}
+}
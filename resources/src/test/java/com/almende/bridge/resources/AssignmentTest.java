@@ -0,0 +1,83 @@
+/*
+ * Copyright: Almende B.V. (2014), Rotterdam, The Netherlands
+ * License: The Apache Software License, Version 2.0
+ */
+package com.almende.bridge.resources;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+/**
+ * Tests for {@link Assignment}.
+ */
+public class AssignmentTest {
+	private static final double	INF	= Double.POSITIVE_INFINITY;
+
+	/**
+	 * A square matrix gets the minimum cost assignment.
+	 */
+	@Test
+	public void testSquare() {
+		final int[] result = Assignment.solve(new double[][] { { 4, 1, 3 },
+				{ 2, 0, 5 }, { 3, 2, 2 } });
+		assertArrayEquals(new int[] { 1, 0, 2 }, result);
+	}
+
+	/**
+	 * With more rows than columns, the matrix is solved transposed and the
+	 * most expensive row stays unassigned.
+	 */
+	@Test
+	public void testTransposed() {
+		final int[] result = Assignment.solve(new double[][] { { 5, 9 },
+				{ 1, 8 }, { 7, 2 } });
+		assertArrayEquals(new int[] { -1, 0, 1 }, result);
+	}
+
+	/**
+	 * With more columns than rows, every row gets its own column.
+	 */
+	@Test
+	public void testWide() {
+		final int[] result = Assignment.solve(new double[][] { { 9, 3, 1, 8 },
+				{ 2, 3, 1, 9 } });
+		assertArrayEquals(new int[] { 2, 0 }, result);
+	}
+
+	/**
+	 * A row that can only be assigned at infinite cost stays unassigned,
+	 * also when the matrix is transposed.
+	 */
+	@Test
+	public void testInfiniteRow() {
+		assertArrayEquals(new int[] { 0, -1 },
+				Assignment.solve(new double[][] { { 1, 2 }, { INF, INF } }));
+		assertArrayEquals(new int[] { 0, -1, 1 },
+				Assignment.solve(new double[][] { { 1, 2 }, { INF, INF },
+						{ 3, 1 } }));
+	}
+
+	/**
+	 * Infinite pairs are avoided, even if that makes the finite part more
+	 * expensive.
+	 */
+	@Test
+	public void testInfinitePairs() {
+		assertArrayEquals(new int[] { 1, 0 },
+				Assignment.solve(new double[][] { { INF, 5 }, { 5, INF } }));
+		assertArrayEquals(new int[] { 0, -1 },
+				Assignment.solve(new double[][] { { 1, INF }, { 2, INF } }));
+	}
+
+	/**
+	 * An empty matrix has an empty assignment.
+	 */
+	@Test
+	public void testEmpty() {
+		assertEquals(0, Assignment.solve(new double[0][]).length);
+		assertArrayEquals(new int[] { -1, -1 },
+				Assignment.solve(new double[][] { {}, {} }));
+	}
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright: Almende B.V. (2014), Rotterdam, The Netherlands
+ * License: The Apache Software License, Version 2.0
+ */
+package com.almende.bridge.resources;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.net.URI;
+import java.util.Arrays;
+
+import org.joda.time.DateTime;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for {@link CandidateQueue}.
+ */
+public class CandidateQueueTest {
+	private static final DateTime	NOW	= new DateTime(1400000000000L);
+	private CandidateQueue			queue;
+
+	/**
+	 * Start with an empty queue.
+	 */
+	@Before
+	public void setUp() {
+		queue = new CandidateQueue();
+	}
+
+	private static URI address(final String id) {
+		return URI.create("local:" + id);
+	}
+
+	/**
+	 * Candidates with equal etas are all kept, ranked by uri.
+	 */
+	@Test
+	public void testEqualEtas() {
+		queue.add(NOW, address("b"));
+		queue.add(NOW, address("a"));
+		queue.add(NOW.plus(1000), address("c"));
+		assertEquals(3, queue.size());
+		assertEquals(address("a"), queue.first().getUri());
+		assertEquals(Arrays.asList(address("a"), address("b")),
+				queue.offer(2));
+		assertEquals(Arrays.asList(address("c")), queue.offer(2));
+		assertTrue(queue.offer(1).isEmpty());
+	}
+
+	/**
+	 * Volunteering again replaces the eta, without a second entry.
+	 */
+	@Test
+	public void testRevolunteer() {
+		queue.add(NOW, address("a"));
+		queue.add(NOW.plus(1000), address("b"));
+		queue.add(NOW.plus(2000), address("a"));
+		assertEquals(2, queue.size());
+		assertEquals(address("b"), queue.first().getUri());
+	}
+
+	/**
+	 * A candidate that volunteers again after being offered the task stays
+	 * offered: it isn't offered the task twice, nor counted twice.
+	 */
+	@Test
+	public void testRevolunteerOffered() {
+		queue.add(NOW, address("a"));
+		queue.add(NOW.plus(1000), address("b"));
+		assertEquals(Arrays.asList(address("a")), queue.offer(1));
+		queue.add(NOW.plus(500), address("a"));
+		assertEquals(1, queue.getOffered());
+		assertEquals(Arrays.asList(address("b")), queue.offer(2));
+		assertEquals(2, queue.getOffered());
+	}
+
+	/**
+	 * Removing a candidate only lowers the offered count if it had been
+	 * offered the task.
+	 */
+	@Test
+	public void testRemoveOffered() {
+		queue.add(NOW, address("a"));
+		queue.add(NOW.plus(1000), address("b"));
+		queue.markOffered(address("a"));
+		queue.markOffered(address("a"));
+		assertEquals(1, queue.getOffered());
+		assertTrue(queue.remove(address("b")));
+		assertEquals(1, queue.getOffered());
+		assertTrue(queue.remove(address("a")));
+		assertEquals(0, queue.getOffered());
+		assertFalse(queue.remove(address("a")));
+		assertEquals(0, queue.size());
+		assertNull(queue.first());
+	}
+
+	/**
+	 * Asking for no candidates offers nothing.
+	 */
+	@Test
+	public void testOfferNone() {
+		queue.add(NOW, address("a"));
+		assertTrue(queue.offer(0).isEmpty());
+		assertTrue(queue.offer(-1).isEmpty());
+		assertEquals(0, queue.getOffered());
+	}
+}
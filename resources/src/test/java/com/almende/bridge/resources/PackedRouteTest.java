@@ -0,0 +1,101 @@
+/*
+ * Copyright: Almende B.V. (2014), Rotterdam, The Netherlands
+ * License: The Apache Software License, Version 2.0
+ */
+package com.almende.bridge.resources;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for {@link PackedRoute}.
+ */
+public class PackedRouteTest {
+	private static final int	SIZE	= 100;
+	private PackedRoute			route;
+
+	/**
+	 * A straight route east, a point every second, 0.001 degree apart.
+	 */
+	@Before
+	public void setUp() {
+		final List<double[]> points = new ArrayList<double[]>(SIZE);
+		for (int i = 0; i < SIZE; i++) {
+			points.add(new double[] { 4.0 + i * 0.001, 52.0, 0, i * 1000 });
+		}
+		route = new PackedRoute(points);
+	}
+
+	/**
+	 * Lookups find the first point after the time, moving forward step by
+	 * step, jumping far ahead, and going back.
+	 */
+	@Test
+	public void testIndexAfter() {
+		assertEquals(0, route.indexAfter(-1));
+		assertEquals(1, route.indexAfter(0));
+		assertEquals(2, route.indexAfter(1500));
+		assertEquals(3, route.indexAfter(2000));
+		assertEquals(51, route.indexAfter(50999));
+		assertEquals(11, route.indexAfter(10000));
+		assertEquals(SIZE, route.indexAfter((SIZE - 1) * 1000));
+		assertEquals(1, route.indexAfter(500));
+	}
+
+	/**
+	 * Positions are interpolated between the points, clamped at the start
+	 * and absent after the end.
+	 */
+	@Test
+	public void testPosition() {
+		final double[] start = route.getPosition(-1000);
+		assertEquals(4.0, start[0], 1e-9);
+		assertEquals(52.0, start[1], 1e-9);
+		final double[] half = route.getPosition(10500);
+		assertEquals(4.0105, half[0], 1e-9);
+		assertEquals(52.0, half[1], 1e-9);
+		assertNull(route.getPosition(SIZE * 1000));
+	}
+
+	/**
+	 * The binary form reads back as the same route.
+	 *
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	@Test
+	public void testBinary() throws IOException {
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		route.writeTo(new DataOutputStream(bytes));
+		final PackedRoute copy = PackedRoute.readFrom(new DataInputStream(
+				new ByteArrayInputStream(bytes.toByteArray())));
+		assertEquals(SIZE, copy.size());
+		for (int i = 0; i < SIZE; i++) {
+			assertEquals(route.getLon(i), copy.getLon(i), 0);
+			assertEquals(route.getLat(i), copy.getLat(i), 0);
+			assertEquals(route.getMillis(i), copy.getMillis(i));
+		}
+	}
+
+	/**
+	 * An empty route has no positions.
+	 */
+	@Test
+	public void testEmpty() {
+		final PackedRoute empty = new PackedRoute(new ArrayList<double[]>());
+		assertEquals(0, empty.size());
+		assertEquals(0, empty.indexAfter(0));
+		assertNull(empty.getPosition(0));
+	}
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright: Almende B.V. (2014), Rotterdam, The Netherlands
+ * License: The Apache Software License, Version 2.0
+ */
+package com.almende.bridge.resources;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.net.URI;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for {@link ResourceIndex}.
+ */
+public class ResourceIndexTest {
+	private static final String	TYPE	= "medic vehicle";
+	private ResourceIndex		index;
+
+	/**
+	 * Create an index with cells of about 1km.
+	 */
+	@Before
+	public void setUp() {
+		index = new ResourceIndex(0.01, 5);
+	}
+
+	private static URI address(final String id) {
+		return URI.create("local:" + id);
+	}
+
+	/**
+	 * A closer resource in the next ring is found before a resource in the
+	 * cell of the query itself.
+	 */
+	@Test
+	public void testNextRingCloser() {
+		index.update(address("far"), TYPE, 4.0001, 52.0001, true);
+		index.update(address("near"), TYPE, 4.0101, 52.0101, true);
+		assertEquals(Arrays.asList(address("near")),
+				index.nearest(TYPE, 4.0099, 52.0099, 1));
+	}
+
+	/**
+	 * The search stops at the outermost occupied ring, even if there are
+	 * fewer resources than asked for.
+	 */
+	@Test
+	public void testFewerThanK() {
+		index.update(address("a"), TYPE, 4.0, 52.0, true);
+		index.update(address("b"), TYPE, 4.5, 52.3, true);
+		assertEquals(Arrays.asList(address("a"), address("b")),
+				index.nearest(TYPE, 4.01, 52.01, 5));
+	}
+
+	/**
+	 * A single resource far outside the query's neighborhood is still found,
+	 * from either side of it.
+	 */
+	@Test
+	public void testFarAway() {
+		index.update(address("a"), TYPE, 4.0, 52.0, true);
+		assertEquals(Arrays.asList(address("a")),
+				index.nearest(TYPE, -3.0, 40.0, 1));
+		assertEquals(Arrays.asList(address("a")),
+				index.nearest(TYPE, 9.0, 58.0, 1));
+	}
+
+	/**
+	 * Busy and removed resources aren't found, and an empty type returns
+	 * nothing.
+	 */
+	@Test
+	public void testIdleOnly() {
+		index.update(address("a"), TYPE, 4.0, 52.0, true);
+		index.update(address("b"), TYPE, 4.001, 52.001, true);
+		index.update(address("c"), TYPE, 4.002, 52.002, true);
+		index.update(address("a"), TYPE, 4.0, 52.0, false);
+		index.remove(address("b"));
+		assertEquals(Arrays.asList(address("c")),
+				index.nearest(TYPE, 4.0, 52.0, 3));
+		assertTrue(index.nearest("ambulance", 4.0, 52.0, 3).isEmpty());
+	}
+
+	/**
+	 * Asking for no resources returns nothing, instead of failing.
+	 */
+	@Test
+	public void testNoneAsked() {
+		index.update(address("a"), TYPE, 4.0, 52.0, true);
+		assertTrue(index.nearest(TYPE, 4.0, 52.0, 0).isEmpty());
+		assertTrue(index.nearest(TYPE, 4.0, 52.0, -1).isEmpty());
+	}
+
+	/**
+	 * Only the resources within the radius are found, nearest first.
+	 */
+	@Test
+	public void testWithin() {
+		index.update(address("a"), TYPE, 4.002, 52.0, true);
+		index.update(address("b"), TYPE, 4.001, 52.0, true);
+		index.update(address("c"), TYPE, 4.1, 52.0, true);
+		assertEquals(Arrays.asList(address("b"), address("a")),
+				index.within(TYPE, 4.0, 52.0, 500));
+	}
+
+	/**
+	 * The k nearest of many resources come back nearest first.
+	 */
+	@Test
+	public void testOrder() {
+		for (int i = 0; i < 50; i++) {
+			index.update(address("r" + i), TYPE, 4.0 + i * 0.003, 52.0, true);
+		}
+		final List<URI> result = index.nearest(TYPE, 4.0, 52.0, 3);
+		assertEquals(
+				Arrays.asList(address("r0"), address("r1"), address("r2")),
+				result);
+	}
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright: Almende B.V. (2014), Rotterdam, The Netherlands
+ * License: The Apache Software License, Version 2.0
+ */
+package com.almende.bridge.resources;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.HashSet;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * Tests for {@link TaskRegistry}.
+ */
+public class TaskRegistryTest {
+	private static final long	RETAIN	= 1000;
+	private TaskRegistry		tasks;
+
+	/**
+	 * Start with an empty registry.
+	 */
+	@Before
+	public void setUp() {
+		tasks = new TaskRegistry();
+	}
+
+	private Task add(final String id, final long before) {
+		final ObjectNode config = new ObjectMapper().createObjectNode();
+		config.put("id", id);
+		config.put("before", before);
+		final Task task = new Task(config);
+		tasks.put(task);
+		return task;
+	}
+
+	/**
+	 * A transition only happens from the expected state, and moves the task
+	 * between the state sets.
+	 */
+	@Test
+	public void testTransition() {
+		add("a", 100);
+		assertEquals(TaskRegistry.State.open, tasks.getState("a"));
+		assertFalse(tasks.transition("a", TaskRegistry.State.offering,
+				TaskRegistry.State.assigned));
+		assertTrue(tasks.transition("a", TaskRegistry.State.open,
+				TaskRegistry.State.offering));
+		assertFalse(tasks.transition("a", TaskRegistry.State.open,
+				TaskRegistry.State.offering));
+		assertEquals(TaskRegistry.State.offering, tasks.getState("a"));
+		assertTrue(tasks.getIds(TaskRegistry.State.open).isEmpty());
+		assertEquals(new HashSet<String>(Arrays.asList("a")),
+				tasks.getIds(TaskRegistry.State.offering));
+		assertFalse(tasks.transition("unknown", TaskRegistry.State.open,
+				TaskRegistry.State.offering));
+	}
+
+	/**
+	 * Ended tasks keep their end state.
+	 */
+	@Test
+	public void testFinal() {
+		add("a", 100);
+		assertTrue(tasks.setState("a", TaskRegistry.State.assigned));
+		assertFalse(tasks.setState("a", TaskRegistry.State.failed));
+		assertTrue(tasks.setState("a", TaskRegistry.State.assigned));
+		assertEquals(TaskRegistry.State.assigned, tasks.getState("a"));
+		assertFalse(tasks.setState("unknown", TaskRegistry.State.failed));
+	}
+
+	/**
+	 * Unassigned tasks expire at their deadline and are evicted after the
+	 * retention time; assigned ones stay assigned until evicted.
+	 */
+	@Test
+	public void testEvict() {
+		add("open", 100);
+		add("offering", 100);
+		add("assigned", 100);
+		add("later", 5000);
+		tasks.transition("offering", TaskRegistry.State.open,
+				TaskRegistry.State.offering);
+		tasks.setState("assigned", TaskRegistry.State.assigned);
+
+		assertEquals(0, tasks.evict(50, RETAIN));
+		assertEquals(TaskRegistry.State.open, tasks.getState("open"));
+
+		assertEquals(0, tasks.evict(100, RETAIN));
+		assertEquals(TaskRegistry.State.expired, tasks.getState("open"));
+		assertEquals(TaskRegistry.State.expired, tasks.getState("offering"));
+		assertEquals(TaskRegistry.State.assigned, tasks.getState("assigned"));
+		assertEquals(TaskRegistry.State.open, tasks.getState("later"));
+		assertEquals(2, tasks.getIds(TaskRegistry.State.expired).size());
+
+		assertEquals(3, tasks.evict(100 + RETAIN, RETAIN));
+		assertNull(tasks.get("open"));
+		assertNull(tasks.getState("assigned"));
+		assertTrue(tasks.getIds(TaskRegistry.State.expired).isEmpty());
+		assertTrue(tasks.getIds(TaskRegistry.State.assigned).isEmpty());
+		assertEquals(TaskRegistry.State.open, tasks.getState("later"));
+		assertEquals(3, tasks.getCounts().get("evicted").asLong());
+		assertEquals(1, tasks.getCounts().get("open").asInt());
+	}
+}